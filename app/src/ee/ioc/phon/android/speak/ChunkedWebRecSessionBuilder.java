@@ -137,6 +137,18 @@ public class ChunkedWebRecSessionBuilder {
         return mDeviceId;
     }
 
+	public String getContentType() {
+		return mContentType;
+	}
+
+	public int getNbest() {
+		return mNbest;
+	}
+
+	public String getPhrase() {
+		return mPhrase;
+	}
+
 	public URL getServerUrl() {
 		return mWsUrl;
 	}
@@ -92,6 +92,21 @@ public class PreferencesRecognitionServiceHttp extends PreferenceActivity {
                     findPreference(getString(R.string.keyRecordingRate)),
                     getString(R.string.summaryRecordingRate),
                     sp.getString(getString(R.string.keyRecordingRate), "?"));
+
+            setSummary(
+                    findPreference(getString(R.string.keyUploadLagCap)),
+                    getString(R.string.summaryUploadLagCap),
+                    sp.getString(getString(R.string.keyUploadLagCap), getString(R.string.defaultUploadLagCap)));
+
+            setSummary(
+                    findPreference(getString(R.string.keyVadThreshold)),
+                    getString(R.string.summaryVadThreshold),
+                    sp.getString(getString(R.string.keyVadThreshold), getString(R.string.defaultVadThreshold)));
+
+            setSummary(
+                    findPreference(getString(R.string.keyVadPadding)),
+                    getString(R.string.summaryVadPadding),
+                    sp.getString(getString(R.string.keyVadPadding), getString(R.string.defaultVadPadding)));
         }
 
 
@@ -133,6 +148,12 @@ public class PreferencesRecognitionServiceHttp extends PreferenceActivity {
                     setSummary(pref, getString(R.string.summaryAutoStopAfterTime), lp.getValue());
                 } else if (getString(R.string.keyRecordingRate).equals(key)) {
                     setSummary(pref, getString(R.string.summaryRecordingRate), lp.getValue());
+                } else if (getString(R.string.keyUploadLagCap).equals(key)) {
+                    setSummary(pref, getString(R.string.summaryUploadLagCap), lp.getValue());
+                } else if (getString(R.string.keyVadThreshold).equals(key)) {
+                    setSummary(pref, getString(R.string.summaryVadThreshold), lp.getValue());
+                } else if (getString(R.string.keyVadPadding).equals(key)) {
+                    setSummary(pref, getString(R.string.summaryVadPadding), lp.getValue());
                 }
             }
         }
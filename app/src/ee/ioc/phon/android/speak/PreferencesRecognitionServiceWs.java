@@ -20,6 +20,7 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
@@ -46,6 +47,21 @@ public class PreferencesRecognitionServiceWs extends PreferenceActivity {
             SharedPreferences sp = getPreferenceScreen().getSharedPreferences();
             Resources res = getResources();
             setSummary(sp, res, R.string.keyWsServer, R.string.summaryWsServer);
+            findPreference(getString(R.string.keyWsFrameLength)).setSummary(
+                    String.format(getString(R.string.summaryWsFrameLength),
+                            PreferenceUtils.getPrefString(sp, res, R.string.keyWsFrameLength, R.string.defaultWsFrameLength)));
+            findPreference(getString(R.string.keyWsHedgeDeadline)).setSummary(
+                    String.format(getString(R.string.summaryWsHedgeDeadline),
+                            PreferenceUtils.getPrefString(sp, res, R.string.keyWsHedgeDeadline, R.string.defaultWsHedgeDeadline)));
+            findPreference(getString(R.string.keyUploadLagCap)).setSummary(
+                    String.format(getString(R.string.summaryUploadLagCap),
+                            PreferenceUtils.getPrefString(sp, res, R.string.keyUploadLagCap, R.string.defaultUploadLagCap)));
+            findPreference(getString(R.string.keyVadThreshold)).setSummary(
+                    String.format(getString(R.string.summaryVadThreshold),
+                            PreferenceUtils.getPrefString(sp, res, R.string.keyVadThreshold, R.string.defaultVadThreshold)));
+            findPreference(getString(R.string.keyVadPadding)).setSummary(
+                    String.format(getString(R.string.summaryVadPadding),
+                            PreferenceUtils.getPrefString(sp, res, R.string.keyVadPadding, R.string.defaultVadPadding)));
         }
 
         @Override
@@ -66,6 +82,19 @@ public class PreferencesRecognitionServiceWs extends PreferenceActivity {
             if (pref instanceof EditTextPreference) {
                 EditTextPreference etp = (EditTextPreference) pref;
                 pref.setSummary(etp.getText());
+            } else if (pref instanceof ListPreference) {
+                ListPreference lp = (ListPreference) pref;
+                if (getString(R.string.keyWsFrameLength).equals(key)) {
+                    pref.setSummary(String.format(getString(R.string.summaryWsFrameLength), lp.getValue()));
+                } else if (getString(R.string.keyWsHedgeDeadline).equals(key)) {
+                    pref.setSummary(String.format(getString(R.string.summaryWsHedgeDeadline), lp.getValue()));
+                } else if (getString(R.string.keyUploadLagCap).equals(key)) {
+                    pref.setSummary(String.format(getString(R.string.summaryUploadLagCap), lp.getValue()));
+                } else if (getString(R.string.keyVadThreshold).equals(key)) {
+                    pref.setSummary(String.format(getString(R.string.summaryVadThreshold), lp.getValue()));
+                } else if (getString(R.string.keyVadPadding).equals(key)) {
+                    pref.setSummary(String.format(getString(R.string.summaryVadPadding), lp.getValue()));
+                }
             }
         }
 
@@ -72,9 +72,17 @@ public abstract class RecognizerIntentListActivity extends ListActivity {
 	}
 
 
+	/**
+	 * @throws MalformedURLException if the given string is not a valid URL
+	 */
+	protected void checkUrl(String url) throws MalformedURLException {
+		new URL(url);
+	}
+
+
 	protected void insertUrl(Uri contentUri, String fieldKey, String url) throws MalformedURLException {
 		if (url.length() > 0) {
-			new URL(url);
+			checkUrl(url);
 			ContentValues values = new ContentValues();
 			values.put(fieldKey, url);
 			insert(contentUri, values);
@@ -88,7 +96,7 @@ public abstract class RecognizerIntentListActivity extends ListActivity {
 
 
 	protected void updateUrl(Uri contentUri, long key, String fieldKey, String url) throws MalformedURLException {
-		new URL(url);
+		checkUrl(url);
 		update(contentUri, key, fieldKey, url);
 	}
 
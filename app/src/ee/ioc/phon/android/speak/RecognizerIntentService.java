@@ -21,16 +21,13 @@ import android.app.Service;
 import android.content.Intent;
 
 import android.os.Binder;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Process;
 import android.os.SystemClock;
 import android.speech.RecognizerIntent;
 
 import java.io.IOException;
 
+import ee.ioc.phon.android.speak.service.SessionScheduler;
 import ee.ioc.phon.android.speechutils.RawAudioRecorder;
 import ee.ioc.phon.netspeechapi.recsession.ChunkedWebRecSession;
 import ee.ioc.phon.netspeechapi.recsession.NotAvailableException;
@@ -50,13 +47,18 @@ public class RecognizerIntentService extends Service {
 
 	private final IBinder mBinder = new RecognizerBinder();
 
-	private volatile Looper mSendLooper;
-	private volatile Handler mSendHandler;
+	// Background tasks of the current session
+	private volatile SessionScheduler.Session mSession;
 
+	// Moves the recorded audio to the network lane, as long as the recording continues
 	private Runnable mSendTask;
+	private volatile boolean mIsSending;
 
 	private ChunkedWebRecSession mRecSession;
 
+	// Set once the session has been created on the server
+	private volatile boolean mIsCreated;
+
 	private RawAudioRecorder mRecorder;
 
 	private OnResultListener mOnResultListener;
@@ -225,7 +227,9 @@ public class RecognizerIntentService extends Service {
 
 
 	/**
-	 * <p>Tries to create a speech recognition session.</p>
+	 * <p>Prepares the speech recognition session. The session is created on the server
+	 * in the background, when the recording starts, so that the recording does not wait
+	 * for the network. The audio recorded in the meantime is sent once the session exists.</p>
 	 *
 	 * @return <code>true</code> iff there was no error
 	 */
@@ -235,16 +239,9 @@ public class RecognizerIntentService extends Service {
 			return false;
 		}
 		mRecSession = recSession;
-		try {
-			mRecSession.create();
-			setState(State.INITIALIZED);
-			return true;
-		} catch (IOException e) {
-			processError(RecognizerIntent.RESULT_NETWORK_ERROR, e);
-		} catch (NotAvailableException e) {
-			processError(RecognizerIntent.RESULT_SERVER_ERROR, e);
-		}
-		return false;
+		mIsCreated = false;
+		setState(State.INITIALIZED);
+		return true;
 	}
 
 
@@ -284,7 +281,7 @@ public class RecognizerIntentService extends Service {
 			return false;
 		}
 		mRecorder.stop();
-		mSendHandler.removeCallbacks(mSendTask);
+		mIsSending = false;
 		transcribe(mRecorder.consumeRecording());
 		if (mAudioPauser != null) {
 			mAudioPauser.resume();
@@ -304,17 +301,27 @@ public class RecognizerIntentService extends Service {
 			processError(RecognizerIntent.RESULT_CLIENT_ERROR, null);
 			return false;
 		}
-		new Thread(new Runnable() {
+		Runnable task = new Runnable() {
 			public void run() {
 				transcribeAux(bytes);
 			}
-		}).start();
+		};
+		// While recording, the last chunk must follow the session creation and the other chunks
+		SessionScheduler.Session session = mSession;
+		if (mState != State.RECORDING || session == null) {
+			session = SessionScheduler.newSession("RecognizerIntentService");
+			mSession = session;
+		}
+		session.execute(task);
 		setState(State.PROCESSING);
 		return true;
 	}
 
 
 	private void transcribeAux(byte[] bytes) {
+		if (!createSession()) {
+			return;
+		}
 		try {
 			sendChunk(bytes, true);
 			RecSessionResult result = getResult();
@@ -330,31 +337,72 @@ public class RecognizerIntentService extends Service {
 
 
 	/**
-	 * <p>Starting chunk sending in a separate thread so that slow internet would not block the UI.</p>
+	 * <p>Creates the session on the server, unless it has already been created.
+	 * Does network I/O, i.e. must not be called from the UI thread.</p>
+	 *
+	 * @return <code>true</code> iff the session exists
+	 */
+	private boolean createSession() {
+		if (mIsCreated) {
+			return true;
+		}
+		try {
+			long t = SystemClock.elapsedRealtime();
+			mRecSession.create();
+			mIsCreated = true;
+			Log.i(LOG_TAG, "Session created in " + (SystemClock.elapsedRealtime() - t) + " ms");
+			return true;
+		} catch (IOException e) {
+			processError(RecognizerIntent.RESULT_NETWORK_ERROR, e);
+		} catch (NotAvailableException e) {
+			processError(RecognizerIntent.RESULT_SERVER_ERROR, e);
+		}
+		return false;
+	}
+
+
+	/**
+	 * <p>Starting chunk sending in the background so that slow internet would not block the UI.
+	 * The session is created first (in the network lane), the chunks recorded in the meantime
+	 * are sent after it.</p>
 	 */
 	private void startChunkSending(final int interval, int delay, final boolean consumeAll) {
 		mChunkCount = 0;
-		HandlerThread thread = new HandlerThread("SendHandlerThread", Process.THREAD_PRIORITY_BACKGROUND);
-		thread.start();
-		mSendLooper = thread.getLooper();
-		mSendHandler = new Handler(mSendLooper);
+		final SessionScheduler.Session session = SessionScheduler.newSession("RecognizerIntentService");
+		mSession = session;
+		mIsSending = true;
+
+		session.execute(new Runnable() {
+			public void run() {
+				createSession();
+			}
+		});
 
 		mSendTask = new Runnable() {
 			public void run() {
-				if (mRecorder != null && mRecorder.getState() == RawAudioRecorder.State.RECORDING) {
-					try {
-						sendChunk(mRecorder.consumeRecording(), consumeAll);
-					} catch (IOException e) {
-						processError(RecognizerIntent.RESULT_NETWORK_ERROR, e);
-						return;
-					}
+				RawAudioRecorder recorder = mRecorder;
+				if (mIsSending && recorder != null && recorder.getState() == RawAudioRecorder.State.RECORDING) {
+					final byte[] chunk = recorder.consumeRecording();
+					session.execute(new Runnable() {
+						public void run() {
+							if (!mIsCreated) {
+								// The session creation failed
+								return;
+							}
+							try {
+								sendChunk(chunk, consumeAll);
+							} catch (IOException e) {
+								processError(RecognizerIntent.RESULT_NETWORK_ERROR, e);
+							}
+						}
+					});
 					if (! consumeAll) {
-						mSendHandler.postDelayed(this, interval);
+						session.postDelayed(this, interval);
 					}
 				}
 			}
 		};
-		mSendHandler.postDelayed(mSendTask, delay);
+		session.postDelayed(mSendTask, delay);
 	}
 
 
@@ -390,13 +438,10 @@ public class RecognizerIntentService extends Service {
 	 * so we should set it to <code>null</code>.</p>
 	 */
 	private void releaseResources() {
-		if (mSendLooper != null) {
-			mSendLooper.quit();
-			mSendLooper = null;
-		}
-
-		if (mSendHandler != null) {
-			mSendHandler.removeCallbacks(mSendTask);
+		mIsSending = false;
+		SessionScheduler.Session session = mSession;
+		if (session != null) {
+			session.cancel();
 		}
 
 		if (mRecSession != null && ! mRecSession.isFinished()) {
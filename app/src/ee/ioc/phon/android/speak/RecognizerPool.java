@@ -0,0 +1,198 @@
+package ee.ioc.phon.android.speak;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.speech.RecognitionListener;
+import android.speech.SpeechRecognizer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ee.ioc.phon.android.speak.service.LocalRecognitionListener;
+import ee.ioc.phon.android.speak.service.LocalRecognizer;
+import ee.ioc.phon.android.speechutils.utils.IntentUtils;
+
+/**
+ * Pool of recognizers by combo, shared by the speech UIs of the process. A recognizer keeps its service
+ * bound between the sessions, so that restarting the recognition, switching the combo, or reopening
+ * the UI does not bind the service again. The recognizer of the next combo in the cycle can be bound
+ * ahead of time (only Kõnele's own services, because SpeechRecognizer binds on the first session).
+ * A recognizer that has not been used for IDLE_TIMEOUT is destroyed, i.e. its service is unbound.
+ * <p>
+ * A recognizer runs one session at a time. Its session belongs to the listener that started it, and a start
+ * with another listener (e.g. of the IME while the speech action is still running) is refused with
+ * ERROR_RECOGNIZER_BUSY, i.e. the listener of the running session keeps receiving its callbacks.
+ * <p>
+ * Must be used on the main thread.
+ */
+public final class RecognizerPool {
+
+    // Unbind the service if the recognizer has not been used for this long
+    private static final int IDLE_TIMEOUT = 60000;
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private RecognizerPool() {
+    }
+
+    /**
+     * Returns the recognizer of the given combo, creating it if needed.
+     *
+     * @param service service of the combo, or null for the default service
+     */
+    static Entry get(Context context, String combo, ComponentName service) {
+        Entry entry = ENTRIES.get(combo);
+        if (entry == null) {
+            entry = new Entry(context.getApplicationContext(), combo, service);
+            ENTRIES.put(combo, entry);
+            Log.i("Recognizer pool: added: " + combo + " (" + ENTRIES.size() + ")");
+        }
+        entry.scheduleEviction();
+        return entry;
+    }
+
+    /**
+     * Binds the service of the given combo ahead of its first session.
+     */
+    static void prewarm(Context context, String combo, ComponentName service) {
+        Entry entry = get(context, combo, service);
+        if (entry.mLocalRecognizer != null) {
+            entry.mLocalRecognizer.bind();
+        }
+    }
+
+    private static void evict(Entry entry) {
+        if (ENTRIES.get(entry.mCombo) == entry) {
+            ENTRIES.remove(entry.mCombo);
+        }
+        entry.destroy();
+        Log.i("Recognizer pool: evicted: " + entry.mCombo + " (" + ENTRIES.size() + ")");
+    }
+
+    /**
+     * Recognizer of a combo: either Kõnele's own service called in-process, or a SpeechRecognizer.
+     */
+    public static final class Entry {
+        private final String mCombo;
+        private final SpeechRecognizer mSpeechRecognizer;
+        private final LocalRecognizer mLocalRecognizer;
+        // Listener of the session, from its start until it is finished or cancelled, otherwise null
+        private Object mOwner;
+
+        private final Runnable mEvictTask = new Runnable() {
+            @Override
+            public void run() {
+                if (mOwner != null) {
+                    scheduleEviction();
+                } else {
+                    evict(Entry.this);
+                }
+            }
+        };
+
+        private Entry(Context context, String combo, ComponentName service) {
+            mCombo = combo;
+            // If the stored combo name does not refer to an existing service on the device then we use
+            // the default service. This can happen if services get removed or renamed.
+            if (service == null || !IntentUtils.isRecognitionAvailable(context, service)) {
+                mSpeechRecognizer = SpeechRecognizer.createSpeechRecognizer(context);
+                mLocalRecognizer = null;
+            } else if (LocalRecognizer.isLocal(context, service)) {
+                // Kõnele's own service is called in-process, i.e. not through the binder
+                mSpeechRecognizer = null;
+                mLocalRecognizer = new LocalRecognizer(context, service);
+            } else {
+                mSpeechRecognizer = SpeechRecognizer.createSpeechRecognizer(context, service);
+                mLocalRecognizer = null;
+            }
+        }
+
+        /**
+         * Starts a session, unless the session of another listener is running.
+         */
+        public <T extends RecognitionListener & LocalRecognitionListener> void startListening(Intent intent, final T listener) {
+            if (mOwner != null && mOwner != listener) {
+                Log.i("Recognizer pool: busy: " + mCombo);
+                // Called back after the return, as by the recognizers
+                HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
+                    }
+                });
+                return;
+            }
+            mOwner = listener;
+            scheduleEviction();
+            if (mLocalRecognizer == null) {
+                mSpeechRecognizer.setRecognitionListener(listener);
+                mSpeechRecognizer.startListening(intent);
+            } else {
+                mLocalRecognizer.startListening(intent, listener);
+            }
+        }
+
+        /**
+         * Stops the session, if it is the session of the given listener.
+         * (SpeechRecognizer reports an error if there is no session to stop or cancel.)
+         */
+        public void stopListening(Object listener) {
+            if (!isOwner(listener)) {
+                return;
+            }
+            if (mLocalRecognizer == null) {
+                mSpeechRecognizer.stopListening();
+            } else {
+                mLocalRecognizer.stopListening();
+            }
+        }
+
+        /**
+         * Cancels the session, if it is the session of the given listener, but keeps the service bound.
+         */
+        public void cancel(Object listener) {
+            if (!isOwner(listener)) {
+                return;
+            }
+            if (mLocalRecognizer == null) {
+                mSpeechRecognizer.cancel();
+            } else {
+                mLocalRecognizer.cancel();
+            }
+            finishSession(listener);
+        }
+
+        /**
+         * Marks the session of the given listener as finished, i.e. the idle time of the recognizer starts.
+         */
+        public void finishSession(Object listener) {
+            if (isOwner(listener)) {
+                mOwner = null;
+                scheduleEviction();
+            }
+        }
+
+        private boolean isOwner(Object listener) {
+            return listener != null && listener == mOwner;
+        }
+
+        private void scheduleEviction() {
+            HANDLER.removeCallbacks(mEvictTask);
+            HANDLER.postDelayed(mEvictTask, IDLE_TIMEOUT);
+        }
+
+        private void destroy() {
+            HANDLER.removeCallbacks(mEvictTask);
+            if (mLocalRecognizer == null) {
+                mSpeechRecognizer.destroy();
+            } else {
+                mLocalRecognizer.destroy();
+            }
+        }
+    }
+}
@@ -86,6 +86,22 @@ public class ServerListActivity extends RecognizerIntentListActivity {
 	}
 
 
+	/**
+	 * <p>Accepts also WebSocket URLs (ws:// and wss://), which are
+	 * used by the WebSocket service as backup servers.</p>
+	 */
+	@Override
+	protected void checkUrl(String url) throws MalformedURLException {
+		if (url.startsWith("ws://")) {
+			super.checkUrl("http://" + url.substring(5));
+		} else if (url.startsWith("wss://")) {
+			super.checkUrl("https://" + url.substring(6));
+		} else {
+			super.checkUrl(url);
+		}
+	}
+
+
 	public boolean onCreateOptionsMenu(Menu menu) {
 		MenuInflater inflater = getMenuInflater();
 		inflater.inflate(R.menu.servers, menu);
@@ -8,7 +8,6 @@ import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.os.Bundle;
 import android.speech.RecognizerIntent;
-import android.speech.SpeechRecognizer;
 import android.text.TextUtils;
 
 import java.util.ArrayList;
@@ -20,7 +19,6 @@ import ee.ioc.phon.android.speak.model.CallerInfo;
 import ee.ioc.phon.android.speak.utils.Utils;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.RecognitionServiceManager;
-import ee.ioc.phon.android.speechutils.utils.IntentUtils;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
 
@@ -32,7 +30,6 @@ public class ServiceLanguageChooser {
     private final CallerInfo mCallerInfo;
     private final int mKeyCurrentCombo;
     private int mIndex;
-    private SpeechRecognizer mSpeechRecognizer;
     private Intent mIntent;
     private String mLanguage = null;
     private ComponentName mRecognizerComponentName = null;
@@ -86,8 +83,11 @@ public class ServiceLanguageChooser {
     }
 
 
-    public SpeechRecognizer getSpeechRecognizer() {
-        return mSpeechRecognizer;
+    /**
+     * @return recognizer of the current combo from the pool, i.e. its service is possibly already bound
+     */
+    public RecognizerPool.Entry getRecognizer() {
+        return RecognizerPool.get(mContext, getCombo(), mRecognizerComponentName);
     }
 
     public int size() {
@@ -134,12 +134,11 @@ public class ServiceLanguageChooser {
             language = splits[1];
         }
 
-        // If the stored combo name does not refer to an existing service on the device then we use
-        // the default service. This can happen if services get removed or renamed.
-        if (mRecognizerComponentName == null || !IntentUtils.isRecognitionAvailable(mContext, mRecognizerComponentName)) {
-            mSpeechRecognizer = SpeechRecognizer.createSpeechRecognizer(mContext);
-        } else {
-            mSpeechRecognizer = SpeechRecognizer.createSpeechRecognizer(mContext, mRecognizerComponentName);
+        // The recognizer of the combo is taken from the pool when the session starts.
+        // The service of the next combo is bound ahead, so that switching to it costs no binding.
+        if (size() > 1) {
+            String nextCombo = mCombosAsList.get((mIndex + 1) % size());
+            RecognizerPool.prewarm(mContext, nextCombo, ComponentName.unflattenFromString(TextUtils.split(nextCombo, ";")[0]));
         }
 
         // TODO: support other actions
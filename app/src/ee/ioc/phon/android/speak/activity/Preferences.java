@@ -141,6 +141,9 @@ public class Preferences extends PreferenceActivity {
             String maxResults = sp.getString(mKeyMaxResults, getString(R.string.defaultMaxResults));
             updateSummaryInt(findPreference(mKeyMaxResults), R.plurals.summaryMaxResults, maxResults);
 
+            ListPreference preRollLength = (ListPreference) findPreference(getString(R.string.keyPreRollLength));
+            preRollLength.setSummary(preRollLength.getEntry());
+
             updateSummary(R.string.keyImeCombo, R.string.emptylistImeCombos);
             updateSummary(R.string.keyCombo, R.string.emptylistCombos);
         }
@@ -50,6 +50,7 @@ import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.RecognizerIntentService;
 import ee.ioc.phon.android.speak.RecognizerIntentService.RecognizerBinder;
 import ee.ioc.phon.android.speak.RecognizerIntentService.State;
+import ee.ioc.phon.android.speak.utils.Endpointer;
 import ee.ioc.phon.android.speak.utils.Utils;
 import ee.ioc.phon.android.speechutils.AudioCue;
 import ee.ioc.phon.android.speechutils.utils.BundleUtils;
@@ -112,11 +113,11 @@ public class RecognizerIntentActivity extends AbstractRecognizerIntentActivity {
     // Start the task almost immediately
     private static final int TASK_BYTES_DELAY = 100;
 
-    // Check for pause / max time limit twice a second
+    // Check for max time limit twice a second
     private static final int TASK_STOP_INTERVAL = 500;
     private static final int TASK_STOP_DELAY = 1000;
 
-    // Check the volume 10 times a second
+    // Check the volume (and detect the end of speech) 10 times a second
     private static final int TASK_VOLUME_INTERVAL = 100;
     private static final int TASK_VOLUME_DELAY = 500;
 
@@ -147,6 +148,9 @@ public class RecognizerIntentActivity extends AbstractRecognizerIntentActivity {
     private Runnable mRunnableBytes;
     private Runnable mRunnableStop;
     private Runnable mRunnableVolume;
+
+    // Detects the end of speech from the volume, null if the recording is not stopped after a pause
+    private Endpointer mEndpointer;
     private Runnable mRunnableChunks;
 
     private Resources mRes;
@@ -315,9 +319,8 @@ public class RecognizerIntentActivity extends AbstractRecognizerIntentActivity {
             }
         };
 
-        // Decide if we should stop recording
-        // 1. Max recording time (in milliseconds) has passed
-        // 2. Speaker stopped speaking
+        // Decide if we should stop recording because the max recording time (in milliseconds) has passed.
+        // Stopping after the speaker stopped speaking is detected by the endpointer.
         final int maxRecordingTime = 1000 * PreferenceUtils.getPrefInt(mPrefs, mRes, R.string.keyAutoStopAfterTime, R.string.defaultAutoStopAfterTime);
 
         mRunnableStop = new Runnable() {
@@ -326,9 +329,6 @@ public class RecognizerIntentActivity extends AbstractRecognizerIntentActivity {
                     if (maxRecordingTime < (SystemClock.elapsedRealtime() - mService.getStartTime())) {
                         Log.i("Max recording time exceeded");
                         stopRecording();
-                    } else if (PreferenceUtils.getPrefBoolean(mPrefs, mRes, R.string.keyAutoStopAfterPause, R.bool.defaultAutoStopAfterPause) && mService.isPausing()) {
-                        Log.i("Speaker finished speaking");
-                        stopRecording();
                     } else {
                         mHandlerStop.postDelayed(this, TASK_STOP_INTERVAL);
                     }
@@ -353,6 +353,11 @@ public class RecognizerIntentActivity extends AbstractRecognizerIntentActivity {
                     }
 
                     mHandlerVolume.postDelayed(this, TASK_VOLUME_INTERVAL);
+
+                    // Can stop the recording, which also removes the task that was just posted
+                    if (mEndpointer != null) {
+                        mEndpointer.onLevel(db, SystemClock.uptimeMillis());
+                    }
                 }
             }
         };
@@ -470,6 +475,17 @@ public class RecognizerIntentActivity extends AbstractRecognizerIntentActivity {
 
 
     private void startAllTasks() {
+        if (PreferenceUtils.getPrefBoolean(mPrefs, mRes, R.string.keyAutoStopAfterPause, R.bool.defaultAutoStopAfterPause)) {
+            mEndpointer = new Endpointer(Utils.getCompleteSilenceLength(getExtras()), new Endpointer.Listener() {
+                @Override
+                public void onEndpoint() {
+                    Log.i("Speaker finished speaking");
+                    stopRecording();
+                }
+            });
+        } else {
+            mEndpointer = null;
+        }
         mHandlerBytes.postDelayed(mRunnableBytes, TASK_BYTES_DELAY);
         mHandlerStop.postDelayed(mRunnableStop, TASK_STOP_DELAY);
         mHandlerVolume.postDelayed(mRunnableVolume, TASK_VOLUME_DELAY);
@@ -15,6 +15,7 @@ import java.util.List;
 import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.model.CallerInfo;
+import ee.ioc.phon.android.speak.service.PreRollRecorder;
 import ee.ioc.phon.android.speak.view.AbstractSpeechInputViewListener;
 import ee.ioc.phon.android.speak.view.SpeechInputView;
 import ee.ioc.phon.android.speechutils.Extras;
@@ -149,6 +150,9 @@ public class SpeechActionActivity extends AbstractRecognizerIntentActivity {
         mView.init(R.array.keysActivity, callerInfo, false);
         mView.setListener(getSpeechInputViewListener());
 
+        // Record the last moment of audio while the user is preparing to speak
+        PreRollRecorder.start(this);
+
         String[] results = getExtras().getStringArray(Extras.EXTRA_RESULT_RESULTS);
         if (results == null) {
             if (hasVoicePrompt()) {
@@ -189,6 +193,7 @@ public class SpeechActionActivity extends AbstractRecognizerIntentActivity {
         if (!isChangingConfigurations()) {
             mView.cancel();
         }
+        PreRollRecorder.release();
 
         stopTts();
     }
@@ -7,6 +7,7 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
@@ -23,6 +24,7 @@ import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.activity.DetailsActivity;
 import ee.ioc.phon.android.speak.provider.FileContentProvider;
+import ee.ioc.phon.android.speak.utils.Endpointer;
 import ee.ioc.phon.android.speechutils.AudioRecorder;
 import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
 import ee.ioc.phon.android.speechutils.utils.AudioUtils;
@@ -101,15 +103,19 @@ public class EncoderDemoActivity extends Activity {
             throw new IOException("not RECORDING");
         }
 
-        // Check if we should stop recording
+        // Stop recording as soon as the speaker has finished
+        final Endpointer endpointer = new Endpointer(Endpointer.DEFAULT_SILENCE_LENGTH, new Endpointer.Listener() {
+            @Override
+            public void onEndpoint() {
+                onEndOfSpeech();
+            }
+        });
+
         mStopTask = new Runnable() {
             public void run() {
                 if (mRecorder != null) {
-                    if (mRecorder.isPausing()) {
-                        onEndOfSpeech();
-                    } else {
-                        mStopHandler.postDelayed(this, 1000);
-                    }
+                    mStopHandler.postDelayed(this, 100);
+                    endpointer.onLevel(mRecorder.getRmsdb(), SystemClock.uptimeMillis());
                 }
             }
         };
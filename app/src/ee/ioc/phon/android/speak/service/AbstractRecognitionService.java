@@ -1,5 +1,6 @@
 package ee.ioc.phon.android.speak.service;
 
+import android.content.ComponentName;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Build;
@@ -13,9 +14,15 @@ import android.speech.SpeechRecognizer;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 
 import ee.ioc.phon.android.speak.AudioPauser;
 import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.utils.Endpointer;
+import ee.ioc.phon.android.speak.utils.Utils;
 import ee.ioc.phon.android.speechutils.AudioCue;
 import ee.ioc.phon.android.speechutils.AudioRecorder;
 import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
@@ -30,28 +37,73 @@ import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
  */
 public abstract class AbstractRecognitionService extends RecognitionService {
 
-    // Check the volume 10 times a second
+    /**
+     * Minimal interval (in milliseconds) between two (non-final) partial results.
+     * Partial results that arrive faster are coalesced, i.e. only the latest one is delivered.
+     * Set to 0 to deliver every partial result.
+     */
+    public static final String EXTRA_PARTIAL_RESULTS_INTERVAL = "ee.ioc.phon.android.extra.PARTIAL_RESULTS_INTERVAL";
+
+    /**
+     * Number of seconds (float) by which the upload lags behind the recording, added to the partial results.
+     */
+    public static final String EXTRA_UPLOAD_LAG = "ee.ioc.phon.android.extra.UPLOAD_LAG";
+
+    private static final int DEFAULT_PARTIAL_RESULTS_INTERVAL = 100;
+
+    // Running services of this process by class name, for the in-process clients
+    private static final Map<String, AbstractRecognitionService> LOCAL_INSTANCES = new HashMap<>();
+
+    // Audio below this level can be dropped if the upload lags behind
+    private static final float SILENCE_RMSDB = 15.0f;
+
+    // Check the volume 10 times a second (this also detects the end of speech and the time limit)
     private static final int TASK_INTERVAL_VOL = 100;
     // Wait for 1/2 sec before starting to measure the volume
     private static final int TASK_DELAY_VOL = 500;
 
-    private static final int TASK_INTERVAL_STOP = 1000;
-    private static final int TASK_DELAY_STOP = 1000;
-
     private AudioCue mAudioCue;
     private AudioPauser mAudioPauser;
     private RecognitionService.Callback mListener;
+    // Listener of the in-process client (see LocalRecognizer), null if the client is bound via SpeechRecognizer
+    private LocalRecognitionListener mLocalListener;
 
     private AudioRecorder mRecorder;
+    // Format of the recorder
+    private UploadEstimator.Format mAudioFormat;
+    // Audio recorded before the session (see PreRollRecorder), followed by the comfort noise that replaces
+    // the start cue, until it is taken by the stream
+    private byte[] mPreRoll;
+
+    // True while the start cue is playing during the recording, i.e. until the audio recorded so far has been
+    // replaced with comfort noise (see finishCue). The streams must not consume the recorder until then.
+    private volatile boolean mIsCuePlaying;
+
+    // True from the start of a session until its results, error or cancellation have been delivered,
+    // i.e. also while the recording has stopped but the result is still awaited. Accessed on the main thread.
+    private boolean mIsSessionActive;
+
+    // Time (in milliseconds since the boot) when the session started, and if the first audio has been sent since
+    private long mStartTime;
+    private boolean mIsAudioSent;
 
     private Handler mVolumeHandler = new Handler();
     private Runnable mShowVolumeTask;
 
-    private Handler mStopHandler = new Handler();
-    private Runnable mStopTask;
-
     private Bundle mExtras;
 
+    // Max upload lag (in seconds) and the policy that is applied beyond it
+    private float mUploadLagCap;
+    private String mUploadLagPolicy;
+
+    private final PartialResultsCoalescer mPartialResultsCoalescer = new PartialResultsCoalescer(new Handler(),
+            new PartialResultsCoalescer.Sink() {
+                @Override
+                public void deliver(Bundle bundle) {
+                    deliverPartialResults(bundle);
+                }
+            });
+
     protected static Bundle toResultsBundle(String hypothesis) {
         ArrayList<String> hypotheses = new ArrayList<>();
         hypotheses.add(hypothesis);
@@ -100,11 +152,124 @@ public abstract class AbstractRecognitionService extends RecognitionService {
      */
     AudioRecorder getAudioRecorder() throws IOException {
         if (mRecorder == null) {
-            mRecorder = createAudioRecorder(getEncoderType(), getSampleRate());
+            UploadEstimator.Format format;
+            if (isAdaptiveAudio()) {
+                format = UploadEstimator.pick(getEncoderType(), getSampleRate());
+            } else {
+                format = new UploadEstimator.Format(getEncoderType(), getSampleRate());
+            }
+            mRecorder = createAudioRecorder(format.getEncoderType(), format.getSampleRate());
+            mAudioFormat = format;
         }
         return mRecorder;
     }
 
+    /**
+     * @return format of the audio recorder, which can differ from the configured format
+     * if the format adapts to the upload bandwidth
+     */
+    UploadEstimator.Format getAudioFormat() throws IOException {
+        getAudioRecorder();
+        return mAudioFormat;
+    }
+
+    /**
+     * @return number of seconds by which the upload lags behind the recording, i.e. the duration
+     * of the audio that has been recorded but not sent
+     */
+    float getUploadLag() {
+        return 0;
+    }
+
+    /**
+     * @return max upload lag (in seconds) before the policy applies
+     */
+    float getUploadLagCap() {
+        return mUploadLagCap;
+    }
+
+    /**
+     * @return true iff the upload lags behind more than the configured cap
+     */
+    boolean isUploadLagOverCap() {
+        return getUploadLag() > mUploadLagCap;
+    }
+
+    /**
+     * @return policy that is applied if the upload lag is over the cap
+     * (one of the UploadMeter.POLICY_* constants)
+     */
+    String getUploadLagPolicy() {
+        return mUploadLagPolicy;
+    }
+
+    /**
+     * The silence can be dropped only from the raw audio, the frames of the encoded audio depend on each other.
+     *
+     * @return true iff the recorder currently records silence, which should be dropped
+     * because the upload lags behind more than the cap
+     */
+    boolean isDroppingSilence(AudioRecorder recorder) {
+        return UploadMeter.POLICY_DROP_SILENCE.equals(mUploadLagPolicy) && !isEncoding(recorder)
+                && recorder.getRmsdb() < SILENCE_RMSDB && isUploadLagOverCap();
+    }
+
+    /**
+     * The silence can be collapsed only in the raw audio, the frames of the encoded audio depend on each other.
+     *
+     * @return new filter that collapses the long silences of the audio of the given recorder,
+     * or null if this is switched off in the settings, or if the recorder encodes the audio
+     */
+    SilenceFilter newSilenceFilter(AudioRecorder recorder) throws IOException {
+        SharedPreferences prefs = getSharedPreferences();
+        if (isEncoding(recorder) || !PreferenceUtils.getPrefBoolean(prefs, getResources(), R.string.keyVad, R.bool.defaultVad)) {
+            return null;
+        }
+        return new SilenceFilter(getAudioFormat().getSampleRate(),
+                PreferenceUtils.getPrefInt(prefs, getResources(), R.string.keyVadThreshold, R.string.defaultVadThreshold),
+                PreferenceUtils.getPrefInt(prefs, getResources(), R.string.keyVadPadding, R.string.defaultVadPadding));
+    }
+
+    /**
+     * Returns the audio that was recorded just before the session (see PreRollRecorder), and
+     * the comfort noise that replaces the start cue, to be prepended to the raw audio stream.
+     * Returns it only once per session.
+     *
+     * @return raw audio in the format of the recorder, or null if there is none
+     */
+    synchronized byte[] takePreRoll() {
+        byte[] preRoll = mPreRoll;
+        mPreRoll = null;
+        return preRoll;
+    }
+
+    /**
+     * @return true iff the start cue is playing, i.e. the stream must hold the recorded audio (and the pre-roll),
+     * which is going to be replaced with comfort noise
+     */
+    boolean isCuePlaying() {
+        return mIsCuePlaying;
+    }
+
+    /**
+     * Called by the subclasses whenever audio has been sent to the server. Logs the time from the start
+     * of the session to the first audio sent.
+     */
+    synchronized void onAudioSent() {
+        if (!mIsAudioSent) {
+            mIsAudioSent = true;
+            Log.i("Time to first byte sent: " + (SystemClock.uptimeMillis() - mStartTime) + " ms");
+        }
+    }
+
+    /**
+     * Queries the preferences to find out if the audio format should adapt to the upload bandwidth.
+     * Different services can have different preferences.
+     */
+    boolean isAdaptiveAudio() {
+        return false;
+    }
+
     /**
      * Queries the preferences to find out if audio cues are switched on.
      * Different services can have different preferences.
@@ -136,6 +301,18 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         return false;
     }
 
+    /**
+     * Consumes the audio that has not been consumed yet, just before the recorder is released.
+     * By default returns it (encoded, if the recorder encodes), to be passed to afterRecording.
+     * Services that stream the audio drain it to their consumers instead, and return null.
+     */
+    byte[] consumeRemainingRecording(AudioRecorder recorder) {
+        if (isEncoding(recorder)) {
+            return consumeRecordingEnc(recorder, false, true);
+        }
+        return recorder.consumeRecording();
+    }
+
     /**
      * Tasks done after the recording has finished and the audio has been obtained.
      */
@@ -152,24 +329,111 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         return PreferenceManager.getDefaultSharedPreferences(this);
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        synchronized (LOCAL_INSTANCES) {
+            LOCAL_INSTANCES.put(getClass().getName(), this);
+        }
+    }
+
     public void onDestroy() {
         super.onDestroy();
+        synchronized (LOCAL_INSTANCES) {
+            if (LOCAL_INSTANCES.get(getClass().getName()) == this) {
+                LOCAL_INSTANCES.remove(getClass().getName());
+            }
+        }
         disconnectAndStopRecording();
     }
 
+    /**
+     * @return the running instance of the given service, if it is one of the services of this process
+     */
+    static AbstractRecognitionService getLocalInstance(ComponentName componentName) {
+        synchronized (LOCAL_INSTANCES) {
+            return LOCAL_INSTANCES.get(componentName.getClassName());
+        }
+    }
+
+    /**
+     * Starts the session of an in-process client (see LocalRecognizer), which gets the callbacks directly,
+     * i.e. not through the binder. Must be called on the main thread (as is onStartListening).
+     */
+    void startListening(Intent recognizerIntent, LocalRecognitionListener listener) {
+        if (isBusy()) {
+            listener.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
+            return;
+        }
+        mListener = null;
+        mLocalListener = listener;
+        startListening(recognizerIntent);
+    }
+
+    /**
+     * Stops the session of the in-process client, if the session is still the session of the given listener,
+     * i.e. the client does not stop the session of another client.
+     */
+    void stopListening(LocalRecognitionListener listener) {
+        if (mIsSessionActive && listener == mLocalListener) {
+            onStopListening(null);
+        }
+    }
+
+    /**
+     * Cancels the session of the in-process client, if the session is still the session of the given listener.
+     */
+    void cancel(LocalRecognitionListener listener) {
+        if (mIsSessionActive && listener == mLocalListener) {
+            onCancel(null);
+        }
+    }
+
     /**
      * Starts recording and opens the connection to the server to start sending the recorded packages.
+     * The framework lets only one binder client in at a time, but it does not know about the session
+     * of the in-process client.
      */
     @Override
     protected void onStartListening(final Intent recognizerIntent, RecognitionService.Callback listener) {
+        if (isBusy()) {
+            try {
+                listener.error(SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
+            } catch (RemoteException e) {
+            }
+            return;
+        }
         mListener = listener;
+        mLocalListener = null;
+        startListening(recognizerIntent);
+    }
+
+    /**
+     * @return true iff a session (of any client) is running, i.e. recording or waiting for its result
+     */
+    private boolean isBusy() {
+        return mIsSessionActive;
+    }
+
+    private void startListening(Intent recognizerIntent) {
         Log.i("onStartListening");
+        mIsSessionActive = true;
+        synchronized (this) {
+            mStartTime = SystemClock.uptimeMillis();
+            mIsAudioSent = false;
+        }
 
         mExtras = recognizerIntent.getExtras();
         if (mExtras == null) {
             mExtras = new Bundle();
         }
 
+        mPartialResultsCoalescer.reset(mExtras.getInt(EXTRA_PARTIAL_RESULTS_INTERVAL, DEFAULT_PARTIAL_RESULTS_INTERVAL));
+
+        SharedPreferences prefs = getSharedPreferences();
+        mUploadLagCap = PreferenceUtils.getPrefInt(prefs, getResources(), R.string.keyUploadLagCap, R.string.defaultUploadLagCap);
+        mUploadLagPolicy = PreferenceUtils.getPrefString(prefs, getResources(), R.string.keyUploadLagPolicy, R.string.defaultUploadLagPolicy);
+
         if (mExtras.containsKey(Extras.EXTRA_AUDIO_CUES)) {
             setAudioCuesEnabled(mExtras.getBoolean(Extras.EXTRA_AUDIO_CUES));
         } else {
@@ -187,8 +451,18 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         mAudioPauser.pause();
 
         try {
-            onReadyForSpeech(new Bundle());
-            startRecord();
+            // The raw audio is recorded already during the start cue, which plays in the background while
+            // the connection is opened. The cue is then replaced with comfort noise.
+            // The encoded audio cannot be patched, i.e. the recording starts after the cue.
+            if (isEncoding(getAudioRecorder())) {
+                if (mAudioCue != null) mAudioCue.playStartSoundAndSleep();
+                onReadyForSpeech(new Bundle());
+                startRecord();
+            } else {
+                startRecord();
+                onReadyForSpeech(new Bundle());
+                playStartCue();
+            }
         } catch (IOException e) {
             onError(SpeechRecognizer.ERROR_AUDIO);
             return;
@@ -239,7 +513,11 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     }
 
     protected void onReadyForSpeech(Bundle bundle) {
-        if (mAudioCue != null) mAudioCue.playStartSoundAndSleep();
+        LocalRecognitionListener localListener = mLocalListener;
+        if (localListener != null) {
+            localListener.onReadyForSpeech();
+            return;
+        }
         try {
             mListener.readyForSpeech(bundle);
         } catch (RemoteException e) {
@@ -247,6 +525,11 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     }
 
     protected void onRmsChanged(float rms) {
+        LocalRecognitionListener localListener = mLocalListener;
+        if (localListener != null) {
+            localListener.onRmsChanged(rms);
+            return;
+        }
         try {
             mListener.rmsChanged(rms);
         } catch (RemoteException e) {
@@ -254,8 +537,15 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     }
 
     protected void onError(int errorCode) {
+        mIsSessionActive = false;
         disconnectAndStopRecording();
+        cancelPartialResults();
         if (mAudioCue != null) mAudioCue.playErrorSound();
+        LocalRecognitionListener localListener = mLocalListener;
+        if (localListener != null) {
+            localListener.onError(errorCode);
+            return;
+        }
         try {
             mListener.error(errorCode);
         } catch (RemoteException e) {
@@ -263,21 +553,71 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     }
 
     protected void onResults(Bundle bundle) {
+        mIsSessionActive = false;
         disconnectAndStopRecording();
+        cancelPartialResults();
+        LocalRecognitionListener localListener = mLocalListener;
+        if (localListener != null) {
+            localListener.onResults(bundle.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION), bundle);
+            return;
+        }
         try {
             mListener.results(bundle);
         } catch (RemoteException e) {
         }
     }
 
+    /**
+     * Delivers the partial results, coalescing the non-final ones. A semi-final result
+     * is delivered immediately, and replaces the non-final result that is held back.
+     */
     protected void onPartialResults(Bundle bundle) {
+        bundle.putFloat(EXTRA_UPLOAD_LAG, getUploadLag());
+        if (bundle.getBoolean(Extras.EXTRA_SEMI_FINAL)) {
+            mPartialResultsCoalescer.cancel();
+            deliverPartialResults(bundle);
+        } else {
+            mPartialResultsCoalescer.offer(bundle);
+        }
+    }
+
+    /**
+     * Delivers the partial results to the in-process client as values, or to the client of the binder as a Bundle.
+     */
+    private void deliverPartialResults(Bundle bundle) {
+        LocalRecognitionListener localListener = mLocalListener;
+        if (localListener != null) {
+            localListener.onPartialResults(bundle.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION),
+                    bundle.getBoolean(Extras.EXTRA_SEMI_FINAL), bundle.getFloat(EXTRA_UPLOAD_LAG));
+            return;
+        }
         try {
             mListener.partialResults(bundle);
         } catch (RemoteException e) {
         }
     }
 
+    /**
+     * @return number of non-final partial results delivered in the current session
+     */
+    int getNumPartialResultsDelivered() {
+        return mPartialResultsCoalescer.getNumDelivered();
+    }
+
+    /**
+     * @return number of non-final partial results dropped in the current session
+     * because a newer result replaced them
+     */
+    int getNumPartialResultsDropped() {
+        return mPartialResultsCoalescer.getNumDropped();
+    }
+
     protected void onBeginningOfSpeech() {
+        LocalRecognitionListener localListener = mLocalListener;
+        if (localListener != null) {
+            localListener.onBeginningOfSpeech();
+            return;
+        }
         try {
             mListener.beginningOfSpeech();
         } catch (RemoteException e) {
@@ -291,28 +631,31 @@ public abstract class AbstractRecognitionService extends RecognitionService {
         if (mRecorder == null || mRecorder.getState() != AudioRecorder.State.RECORDING) {
             return;
         }
-        byte[] recording;
-
-        // TODO: make sure this call does not do too much work in the case of the
-        // WebSocket-service which does not use the bytes in the end
-        if (mRecorder instanceof EncodedAudioRecorder) {
-            recording = ((EncodedAudioRecorder) mRecorder).consumeRecordingEnc();
-        } else {
-            recording = mRecorder.consumeRecording();
-        }
-
+        // Stopped during the start cue
+        finishCue();
+        byte[] recording = consumeRemainingRecording(mRecorder);
         stopRecording0();
         if (mAudioCue != null) {
             mAudioCue.playStopSound();
         }
-        try {
-            mListener.endOfSpeech();
-        } catch (RemoteException e) {
+        LocalRecognitionListener localListener = mLocalListener;
+        if (localListener != null) {
+            localListener.onEndOfSpeech();
+        } else {
+            try {
+                mListener.endOfSpeech();
+            } catch (RemoteException e) {
+            }
         }
         afterRecording(recording);
     }
 
     protected void onBufferReceived(byte[] buffer) {
+        LocalRecognitionListener localListener = mLocalListener;
+        if (localListener != null) {
+            localListener.onBufferReceived(buffer);
+            return;
+        }
         try {
             mListener.bufferReceived(buffer);
         } catch (RemoteException e) {
@@ -349,11 +692,49 @@ public abstract class AbstractRecognitionService extends RecognitionService {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
                 return new EncodedAudioRecorder(sampleRate);
             }
-            throw new IOException(encoderType + " not supported");
+            // MediaCodec is not available, the audio is encoded in Java
+            return new FlacAudioRecorder(sampleRate);
         }
         return new RawAudioRecorder(sampleRate);
     }
 
+    /**
+     * @return true iff the recorder also provides the encoded audio
+     */
+    static boolean isEncoding(AudioRecorder recorder) {
+        return recorder instanceof EncodedAudioRecorder || recorder instanceof FlacAudioRecorder;
+    }
+
+    /**
+     * Consumes the encoded audio recorded since the last consumption.
+     * The raw audio must be consumed before, otherwise it is lost to the raw consumers.
+     *
+     * @param isTruncate true if the consumed audio is not needed later (e.g. for getCompleteRecording)
+     * @return encoded audio, or null if the recorder does not encode
+     */
+    static byte[] consumeRecordingEnc(AudioRecorder recorder, boolean isTruncate) {
+        return consumeRecordingEnc(recorder, isTruncate, false);
+    }
+
+    /**
+     * @param isLast true at the end of the recording, i.e. the encoder is flushed and its last frame returned
+     *               in the same call (a consumer on another thread cannot flush it before the end of the audio)
+     */
+    static byte[] consumeRecordingEnc(AudioRecorder recorder, boolean isTruncate, boolean isLast) {
+        if (recorder instanceof EncodedAudioRecorder) {
+            EncodedAudioRecorder encodedRecorder = (EncodedAudioRecorder) recorder;
+            return isTruncate ? encodedRecorder.consumeRecordingEncAndTruncate() : encodedRecorder.consumeRecordingEnc();
+        }
+        if (recorder instanceof FlacAudioRecorder) {
+            FlacAudioRecorder flacRecorder = (FlacAudioRecorder) recorder;
+            if (isLast) {
+                return flacRecorder.consumeRemainingEnc(isTruncate);
+            }
+            return isTruncate ? flacRecorder.consumeRecordingEncAndTruncate() : flacRecorder.consumeRecordingEnc();
+        }
+        return null;
+    }
+
 
     /**
      * Starts recording.
@@ -370,49 +751,132 @@ public abstract class AbstractRecognitionService extends RecognitionService {
             throw new IOException();
         }
 
+        // Frees the microphone. The pre-roll can be prepended only to the raw audio of the same sample rate.
+        byte[] preRoll = PreRollRecorder.take(mAudioFormat.getSampleRate());
+        synchronized (this) {
+            mPreRoll = isEncoding(mRecorder) ? null : preRoll;
+        }
+
         mRecorder.start();
 
         if (mRecorder.getState() != AudioRecorder.State.RECORDING) {
             throw new IOException();
         }
+        Log.i("Time to mic open: " + (SystemClock.uptimeMillis() - mStartTime) + " ms");
+
+        // Time (in milliseconds since the boot) when the recording is going to be stopped
+        final long timeToFinish = SystemClock.uptimeMillis() + getAutoStopAfterMillis();
 
-        // Monitor the volume level
+        // Stop (and send EOS) as soon as the trailing silence requested by the caller has been reached
+        final Endpointer endpointer;
+        if (isAutoStopAfterPause()) {
+            endpointer = new Endpointer(Utils.getCompleteSilenceLength(mExtras), new Endpointer.Listener() {
+                @Override
+                public void onEndpoint() {
+                    Log.i("Endpoint detected");
+                    onEndOfSpeech();
+                }
+            });
+        } else {
+            endpointer = null;
+        }
+
+        // Monitor the volume level, and stop recording if the time is up or the speaker has finished
         mShowVolumeTask = new Runnable() {
             public void run() {
                 if (mRecorder != null) {
-                    onRmsChanged(mRecorder.getRmsdb());
-                    mVolumeHandler.postDelayed(this, TASK_INTERVAL_VOL);
+                    float rmsdb = mRecorder.getRmsdb();
+                    onRmsChanged(rmsdb);
+                    long time = SystemClock.uptimeMillis();
+                    if (timeToFinish < time) {
+                        onEndOfSpeech();
+                    } else if (endpointer != null && !mIsCuePlaying) {
+                        endpointer.onLevel(rmsdb, time);
+                    }
+                    // The recorder is released if the recording was stopped
+                    if (mRecorder != null) {
+                        mVolumeHandler.postDelayed(this, TASK_INTERVAL_VOL);
+                    }
                 }
             }
         };
 
         mVolumeHandler.postDelayed(mShowVolumeTask, TASK_DELAY_VOL);
+    }
 
-        // Time (in milliseconds since the boot) when the recording is going to be stopped
-        final long timeToFinish = SystemClock.uptimeMillis() + getAutoStopAfterMillis();
-        final boolean isAutoStopAfterPause = isAutoStopAfterPause();
 
-        // Check if we should stop recording
-        mStopTask = new Runnable() {
+    /**
+     * Plays the start cue in the background (its sleep must not block the main thread, which opens
+     * the connection meanwhile), and then replaces it with comfort noise on the main thread.
+     */
+    private void playStartCue() {
+        final AudioCue audioCue = mAudioCue;
+        if (audioCue == null) {
+            return;
+        }
+        final AudioRecorder recorder = mRecorder;
+        mIsCuePlaying = true;
+        final Runnable onCuePlayed = new Runnable() {
             public void run() {
-                if (mRecorder != null) {
-                    if (timeToFinish < SystemClock.uptimeMillis() || isAutoStopAfterPause && mRecorder.isPausing()) {
-                        onEndOfSpeech();
-                    } else {
-                        mStopHandler.postDelayed(this, TASK_INTERVAL_STOP);
-                    }
+                // The session can have stopped (or another one started) in the meantime
+                if (mRecorder == recorder) {
+                    finishCue();
                 }
             }
         };
+        boolean isStarted = SessionScheduler.newSession("StartCue").executeStream(new Runnable() {
+            public void run() {
+                audioCue.playStartSoundAndSleep();
+                mVolumeHandler.post(onCuePlayed);
+            }
+        });
+        if (!isStarted) {
+            audioCue.playStartSoundAndSleep();
+            finishCue();
+        }
+    }
+
+    /**
+     * Replaces the audio that has been recorded so far with comfort noise, if the start cue is (or was) playing,
+     * and lets the stream consume the recorder. Called on the main thread when the cue has finished,
+     * or when the recording stops before it.
+     */
+    private void finishCue() {
+        if (mIsCuePlaying) {
+            silenceCue();
+            mIsCuePlaying = false;
+        }
+    }
 
-        mStopHandler.postDelayed(mStopTask, TASK_DELAY_STOP);
+    /**
+     * Replaces the audio that was recorded during the start cue with comfort noise of the same length
+     * (see ComfortNoise), so that the server does not hear the cue, but the timing of the audio is kept.
+     * The level of the noise is taken from the quietest part of the pre-roll and of the cue recording.
+     * Must be called before the stream starts consuming the recorder.
+     */
+    private void silenceCue() {
+        if (mRecorder == null) {
+            return;
+        }
+        byte[] cue = mRecorder.consumeRecording();
+        int sampleRate = mAudioFormat.getSampleRate();
+        synchronized (this) {
+            byte[] preRoll = mPreRoll == null ? new byte[0] : mPreRoll;
+            double rms = Math.min(ComfortNoise.getMinRms(preRoll, sampleRate), ComfortNoise.getMinRms(cue, sampleRate));
+            ComfortNoise.fill(cue, rms, new Random());
+            mPreRoll = new byte[preRoll.length + cue.length];
+            System.arraycopy(preRoll, 0, mPreRoll, 0, preRoll.length);
+            System.arraycopy(cue, 0, mPreRoll, preRoll.length, cue.length);
+            Log.i("Replaced the start cue with noise: " + cue.length + " bytes, RMS " + rms);
+        }
     }
 
 
     private void stopRecording0() {
+        mIsCuePlaying = false;
         releaseRecorder();
+        PreRollRecorder.resume();
         if (mVolumeHandler != null) mVolumeHandler.removeCallbacks(mShowVolumeTask);
-        if (mStopHandler != null) mStopHandler.removeCallbacks(mStopTask);
         if (mAudioPauser != null) mAudioPauser.resume();
     }
 
@@ -434,6 +898,13 @@ public abstract class AbstractRecognitionService extends RecognitionService {
     }
 
 
+    private void cancelPartialResults() {
+        mPartialResultsCoalescer.cancel();
+        Log.i("Partial results: delivered: " + getNumPartialResultsDelivered()
+                + ", dropped: " + getNumPartialResultsDropped());
+    }
+
+
     private void disconnectAndStopRecording() {
         disconnect();
         stopRecording0();
@@ -0,0 +1,144 @@
+package ee.ioc.phon.android.speak.service;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ee.ioc.phon.android.speak.Log;
+
+/**
+ * Stores the speaker adaptation states returned by kaldi-gstreamer-server, one file per
+ * (server URL, language, device ID). The total size of the files is bounded, the least
+ * recently used states are evicted first. The access order is kept in an index file.
+ */
+class AdaptationStateStore {
+
+    private static final String INDEX = "index";
+    private static final String ENCODING = "UTF-8";
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    // File name -> file size, in access order (the eldest first)
+    private LinkedHashMap<String, Long> mIndex;
+
+    AdaptationStateStore(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+    }
+
+    static String makeKey(String serverUrl, String lang, String deviceId) {
+        return serverUrl + "\n" + lang + "\n" + deviceId;
+    }
+
+    /**
+     * @return adaptation state (as JSON) or null if no state is stored under the given key
+     */
+    synchronized String get(String key) {
+        String name = toFileName(key);
+        LinkedHashMap<String, Long> index = getIndex();
+        if (index.get(name) == null) {
+            return null;
+        }
+        try {
+            String state = FileUtils.readFileToString(new File(mDir, name), ENCODING);
+            saveIndex();
+            return state;
+        } catch (IOException e) {
+            Log.e("Failed to read the adaptation state", e);
+            index.remove(name);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the adaptation state (as JSON) and evicts the least recently used states
+     * if the store becomes too large. States larger than the store are not stored.
+     */
+    synchronized void put(String key, String state) {
+        String name = toFileName(key);
+        LinkedHashMap<String, Long> index = getIndex();
+        try {
+            byte[] bytes = state.getBytes(ENCODING);
+            if (bytes.length > mMaxBytes) {
+                return;
+            }
+            FileUtils.writeByteArrayToFile(new File(mDir, name), bytes);
+            index.remove(name);
+            index.put(name, (long) bytes.length);
+            evict(index);
+            saveIndex();
+        } catch (IOException e) {
+            Log.e("Failed to store the adaptation state", e);
+        }
+    }
+
+    private void evict(LinkedHashMap<String, Long> index) {
+        long size = 0;
+        for (Long fileSize : index.values()) {
+            size += fileSize;
+        }
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (size > mMaxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            size -= entry.getValue();
+            FileUtils.deleteQuietly(new File(mDir, entry.getKey()));
+            it.remove();
+        }
+    }
+
+    private LinkedHashMap<String, Long> getIndex() {
+        if (mIndex == null) {
+            mIndex = new LinkedHashMap<>(16, 0.75f, true);
+            File file = new File(mDir, INDEX);
+            if (file.exists()) {
+                try {
+                    for (String line : FileUtils.readLines(file, ENCODING)) {
+                        String[] splits = line.split(" ");
+                        if (splits.length == 2 && new File(mDir, splits[0]).exists()) {
+                            mIndex.put(splits[0], Long.parseLong(splits[1]));
+                        }
+                    }
+                } catch (IOException | NumberFormatException e) {
+                    Log.e("Failed to read the adaptation state index", e);
+                }
+            }
+        }
+        return mIndex;
+    }
+
+    private void saveIndex() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : mIndex.entrySet()) {
+            lines.add(entry.getKey() + " " + entry.getValue());
+        }
+        try {
+            FileUtils.writeLines(new File(mDir, INDEX), ENCODING, lines);
+        } catch (IOException e) {
+            Log.e("Failed to store the adaptation state index", e);
+        }
+    }
+
+    private static String toFileName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(ENCODING));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
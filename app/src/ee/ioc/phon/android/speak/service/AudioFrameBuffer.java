@@ -0,0 +1,245 @@
+package ee.ioc.phon.android.speak.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Audio of the session, shared by the recorder (the producer) and the network senders
+ * (the consumers). The audio is stored in a ring of bytes, and each sender reads it through its own
+ * reader (a cursor into the ring), which blocks until audio arrives. A reader that is created later
+ * (e.g. for another server) starts from the oldest byte that is still in the buffer, i.e. it first gets
+ * the audio that the other readers have already sent.
+ * <p>
+ * Audio that all the readers have passed is kept until the next checkpoint (e.g. a final result),
+ * as long as the buffer is within its size. Audio is never dropped before all the readers have
+ * passed it (the ring grows if needed). If there are no readers then nothing is dropped.
+ * <p>
+ * The rings are pooled, i.e. in the steady state, the buffer does not allocate: the audio is copied
+ * into the ring, and from the ring into the array of the reader.
+ */
+class AudioFrameBuffer {
+
+    // Max number of rings kept for the next sessions
+    private static final int POOL_SIZE = 2;
+    private static final List<byte[]> POOL = new ArrayList<>();
+
+    private final int mMaxBytes;
+    private final List<Reader> mReaders = new ArrayList<>();
+
+    private byte[] mRing;
+    // Positions (in bytes, counted from the start of the session) of the oldest byte in the ring,
+    // and of the byte after the newest byte
+    private long mStart;
+    private long mEnd;
+    // Audio before this position is not needed for replays
+    private long mCheckpoint;
+    private boolean mIsEos;
+
+    AudioFrameBuffer(int maxBytes) {
+        mMaxBytes = maxBytes;
+        mRing = obtainRing(maxBytes);
+    }
+
+    /**
+     * @return true iff the producer can add a frame without exceeding the size of the buffer
+     */
+    synchronized boolean hasCapacity() {
+        return mEnd - mStart < mMaxBytes;
+    }
+
+    /**
+     * Adds the given frame. Empty frames, and frames after the end of the stream, are not added.
+     */
+    synchronized void put(byte[] frame) {
+        if (frame != null) {
+            put(frame, 0, frame.length);
+        }
+    }
+
+    /**
+     * Adds the given part of the array (which the buffer does not keep).
+     */
+    synchronized void put(byte[] bytes, int offset, int length) {
+        if (length == 0 || mIsEos || mRing == null) {
+            return;
+        }
+        ensureCapacity(length);
+        int index = (int) (mEnd % mRing.length);
+        int length1 = Math.min(length, mRing.length - index);
+        System.arraycopy(bytes, offset, mRing, index, length1);
+        System.arraycopy(bytes, offset + length1, mRing, 0, length - length1);
+        mEnd += length;
+        trim();
+        notifyAll();
+    }
+
+    /**
+     * Marks the end of the stream. Does nothing if the end is already marked.
+     */
+    synchronized void putEos() {
+        if (!mIsEos) {
+            mIsEos = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the audio added so far as not needed for replays.
+     */
+    synchronized void checkpoint() {
+        mCheckpoint = mEnd;
+        trim();
+    }
+
+    /**
+     * @return true iff all the audio since the last checkpoint is still in the buffer
+     */
+    synchronized boolean isReplayable() {
+        return mStart <= mCheckpoint;
+    }
+
+    /**
+     * @return reader that starts from the oldest byte in the buffer
+     */
+    synchronized Reader newReader() {
+        Reader reader = new Reader(mStart);
+        mReaders.add(reader);
+        return reader;
+    }
+
+    /**
+     * @return number of bytes in the buffer
+     */
+    synchronized long getLength() {
+        return mEnd - mStart;
+    }
+
+    synchronized void clear() {
+        mStart = mEnd;
+        mCheckpoint = mEnd;
+        mReaders.clear();
+    }
+
+    /**
+     * Clears the buffer, and returns its ring to the pool. The readers that are still waiting
+     * are interrupted.
+     */
+    synchronized void release() {
+        clear();
+        if (mRing != null) {
+            recycleRing(mRing);
+            mRing = null;
+        }
+        notifyAll();
+    }
+
+    private static byte[] obtainRing(int size) {
+        synchronized (POOL) {
+            for (int i = 0; i < POOL.size(); i++) {
+                if (POOL.get(i).length >= size) {
+                    return POOL.remove(i);
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    private static void recycleRing(byte[] ring) {
+        synchronized (POOL) {
+            if (POOL.size() < POOL_SIZE) {
+                POOL.add(ring);
+            }
+        }
+    }
+
+    /**
+     * Grows the ring if the given number of bytes does not fit into it (e.g. if a reader is slow).
+     * Does not happen in the steady state.
+     */
+    private void ensureCapacity(int length) {
+        long size = mEnd - mStart + length;
+        if (size <= mRing.length) {
+            return;
+        }
+        byte[] ring = new byte[(int) Math.max(size, 2L * mRing.length)];
+        for (long pos = mStart; pos < mEnd; pos++) {
+            ring[(int) (pos % ring.length)] = mRing[(int) (pos % mRing.length)];
+        }
+        mRing = ring;
+    }
+
+    private void trim() {
+        if (mReaders.isEmpty()) {
+            return;
+        }
+        long min = mEnd;
+        // Called for every frame, i.e. without an iterator
+        for (int i = 0; i < mReaders.size(); i++) {
+            min = Math.min(min, mReaders.get(i).mPosition);
+        }
+        long start = Math.min(min, Math.max(mCheckpoint, mEnd - mMaxBytes));
+        if (start > mStart) {
+            mStart = start;
+        }
+    }
+
+    class Reader {
+        private long mPosition;
+
+        private Reader(long position) {
+            mPosition = position;
+        }
+
+        /**
+         * Waits for the audio, and copies as much of it as fits into the given array.
+         *
+         * @return number of bytes copied, or -1 if the end of the stream has been reached
+         * @throws InterruptedException if interrupted, or if the buffer has been released
+         */
+        int read(byte[] bytes) throws InterruptedException {
+            synchronized (AudioFrameBuffer.this) {
+                while (true) {
+                    if (mRing == null) {
+                        throw new InterruptedException();
+                    }
+                    // Skips the audio that has been cleared
+                    mPosition = Math.max(mPosition, mStart);
+                    if (mPosition < mEnd || mIsEos) {
+                        break;
+                    }
+                    AudioFrameBuffer.this.wait();
+                }
+                if (mPosition >= mEnd) {
+                    return -1;
+                }
+                int length = (int) Math.min(bytes.length, mEnd - mPosition);
+                int index = (int) (mPosition % mRing.length);
+                int length1 = Math.min(length, mRing.length - index);
+                System.arraycopy(mRing, index, bytes, 0, length1);
+                System.arraycopy(mRing, 0, bytes, length1, length - length1);
+                mPosition += length;
+                trim();
+                return length;
+            }
+        }
+
+        /**
+         * @return number of bytes that have been added but not read by this reader
+         */
+        long getNumBytesAvailable() {
+            synchronized (AudioFrameBuffer.this) {
+                return mEnd - Math.max(mPosition, mStart);
+            }
+        }
+
+        /**
+         * Removes the reader, so that it does not hold back the dropping of audio.
+         */
+        void close() {
+            synchronized (AudioFrameBuffer.this) {
+                mReaders.remove(this);
+                trim();
+            }
+        }
+    }
+}
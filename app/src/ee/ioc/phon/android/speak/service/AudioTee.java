@@ -0,0 +1,76 @@
+package ee.ioc.phon.android.speak.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ee.ioc.phon.android.speechutils.AudioRecorder;
+
+/**
+ * Consumes the audio from the recorder, and passes it to the registered sinks, e.g. the network sender,
+ * the client's buffer callback, or a file writer. Each frame is consumed (and thus encoded) exactly once,
+ * however many sinks there are. The encoded audio is consumed only if some sink needs it.
+ * <p>
+ * The recorder can be drained from several threads (e.g. by the pump, and by the main thread just
+ * before the recorder is released), the frames are passed to the sinks in the recording order.
+ * The tee itself does not allocate per frame.
+ */
+class AudioTee {
+
+    interface Sink {
+        void onFrame(byte[] frame);
+    }
+
+    private final List<Sink> mRawSinks = new ArrayList<>();
+    private final List<Sink> mEncodedSinks = new ArrayList<>();
+
+    /**
+     * Registers a sink for the raw audio.
+     */
+    synchronized void addRawSink(Sink sink) {
+        mRawSinks.add(sink);
+    }
+
+    /**
+     * Registers a sink for the encoded audio, or for the raw audio if the recorder does not encode.
+     */
+    synchronized void addEncodedSink(Sink sink) {
+        mEncodedSinks.add(sink);
+    }
+
+    /**
+     * Passes the raw audio that did not come from the recorder (e.g. the pre-roll) to all the sinks.
+     * Must not be called if the recorder encodes.
+     */
+    synchronized void offer(byte[] frame) {
+        if (frame.length > 0) {
+            onFrame(mRawSinks, frame);
+            onFrame(mEncodedSinks, frame);
+        }
+    }
+
+    /**
+     * Consumes the audio recorded since the last drain, and passes the non-empty frames to the sinks.
+     *
+     * @param isLast true for the last drain before the recorder is released, i.e. the encoder is flushed
+     */
+    synchronized void drain(AudioRecorder recorder, boolean isLast) {
+        // The raw audio is consumed also if there are no sinks for it, to truncate the recording
+        byte[] frame = recorder.consumeRecordingAndTruncate();
+        byte[] encodedFrame = frame;
+        if (AbstractRecognitionService.isEncoding(recorder) && !mEncodedSinks.isEmpty()) {
+            encodedFrame = AbstractRecognitionService.consumeRecordingEnc(recorder, true, isLast);
+        }
+        if (frame.length > 0) {
+            onFrame(mRawSinks, frame);
+        }
+        if (encodedFrame != null && encodedFrame.length > 0) {
+            onFrame(mEncodedSinks, encodedFrame);
+        }
+    }
+
+    private static void onFrame(List<Sink> sinks, byte[] frame) {
+        for (int i = 0; i < sinks.size(); i++) {
+            sinks.get(i).onFrame(frame);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ee.ioc.phon.android.speak.service;
+
+import java.util.Random;
+
+/**
+ * Comfort noise for the raw audio (little-endian 16-bit mono PCM), i.e. Gaussian noise at the level of the
+ * room noise. It replaces the audio that was recorded during the start cue: the server does not hear the beep,
+ * and the stream does not drop to digital silence, which the VAD and the Endpointer skip when they track the
+ * noise floor. The level of the room noise is the RMS of the quietest 10 ms frame, i.e. of the audio before
+ * or after the beep.
+ */
+final class ComfortNoise {
+
+    private static final int FRAME_LENGTH = 10;
+    // A quietest frame above this RMS (about 40 dB) is not noise, e.g. the beep covers the whole audio
+    private static final double MAX_RMS = 100;
+
+    private ComfortNoise() {
+    }
+
+    /**
+     * @param sampleRate sample rate in Hz
+     * @return RMS of the quietest frame of the audio, or positive infinity if the audio is shorter than a frame
+     */
+    static double getMinRms(byte[] pcm, int sampleRate) {
+        int numSamples = sampleRate * FRAME_LENGTH / 1000;
+        double min = Double.POSITIVE_INFINITY;
+        for (int offset = 0; offset + 2 * numSamples <= pcm.length; offset += 2 * numSamples) {
+            double sum = 0;
+            for (int i = 0; i < numSamples; i++) {
+                int sample = (short) ((pcm[offset + 2 * i + 1] << 8) | (pcm[offset + 2 * i] & 0xFF));
+                sum += (double) sample * sample;
+            }
+            min = Math.min(min, Math.sqrt(sum / numSamples));
+        }
+        return min;
+    }
+
+    /**
+     * Replaces the audio with noise of the given RMS, in place. If the RMS is too high to be noise
+     * (or infinite), the audio is replaced with digital silence.
+     */
+    static void fill(byte[] pcm, double rms, Random random) {
+        if (!(rms <= MAX_RMS)) {
+            rms = 0;
+        }
+        for (int i = 0; i + 1 < pcm.length; i += 2) {
+            long sample = Math.round(rms * random.nextGaussian());
+            sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+            pcm[i] = (byte) sample;
+            pcm[i + 1] = (byte) (sample >> 8);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ee.ioc.phon.android.speak.service;
+
+import java.io.ByteArrayOutputStream;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.utils.FlacEncoder;
+import ee.ioc.phon.android.speechutils.RawAudioRecorder;
+
+/**
+ * Records raw audio, and encodes it into FLAC with the pure-Java FlacEncoder, i.e. on every API level
+ * (EncodedAudioRecorder uses MediaCodec, which is available from Jelly Bean on).
+ * <p>
+ * The raw audio is encoded as it is consumed, and the encoded audio is consumed in the same way
+ * as from EncodedAudioRecorder: the encoded methods also consume (and encode) the raw audio that
+ * has not been consumed yet. The last (partial) FLAC frame is returned only by consumeRemainingEnc, which
+ * encodes the rest of the raw audio and flushes the encoder in one call, i.e. no other consumer can
+ * flush the encoder before the end of the audio.
+ * <p>
+ * The encoded audio is kept until it is consumed, i.e. the caller must consume it regularly
+ * (as the senders do, see AbstractRecognitionService.isEncoding). A caller that consumes only
+ * the raw audio would make it grow for the whole session, so its size is capped: once the cap is reached,
+ * the encoding stops (and the encoded audio ends there), so that the memory stays bounded.
+ */
+class FlacAudioRecorder extends RawAudioRecorder {
+
+    // About a minute of 16 kHz speech, i.e. reached only if the encoded audio is not consumed at all
+    private static final int MAX_ENCODED_LENGTH = 1 << 20;
+
+    private final FlacEncoder mEncoder;
+    private final ByteArrayOutputStream mEncoded = new ByteArrayOutputStream();
+    private boolean mIsOverCap;
+
+    FlacAudioRecorder(int sampleRate) {
+        super(sampleRate);
+        mEncoder = new FlacEncoder(sampleRate);
+    }
+
+    @Override
+    public String getWsArgs() {
+        return "?content-type=audio/x-flac";
+    }
+
+    @Override
+    public synchronized byte[] consumeRecording() {
+        return encode(super.consumeRecording());
+    }
+
+    @Override
+    public synchronized byte[] consumeRecordingAndTruncate() {
+        return encode(super.consumeRecordingAndTruncate());
+    }
+
+    synchronized byte[] consumeRecordingEnc() {
+        encode(super.consumeRecording());
+        return takeEncoded();
+    }
+
+    synchronized byte[] consumeRecordingEncAndTruncate() {
+        encode(super.consumeRecordingAndTruncate());
+        return takeEncoded();
+    }
+
+    /**
+     * Consumes the rest of the audio at the end of the recording: encodes the raw audio that has not been
+     * consumed yet, flushes the encoder, and returns all the encoded audio that has not been consumed yet,
+     * including the last frame.
+     */
+    synchronized byte[] consumeRemainingEnc(boolean isTruncate) {
+        encode(isTruncate ? super.consumeRecordingAndTruncate() : super.consumeRecording());
+        if (!mIsOverCap) {
+            write(mEncoder.flush());
+        }
+        Log.i("FLAC compression ratio: " + mEncoder.getCompressionRatio());
+        return takeEncoded();
+    }
+
+    private byte[] encode(byte[] raw) {
+        if (raw != null && raw.length > 0 && !mIsOverCap) {
+            write(mEncoder.encode(raw));
+        }
+        return raw;
+    }
+
+    private void write(byte[] encoded) {
+        if (mEncoded.size() + encoded.length > MAX_ENCODED_LENGTH) {
+            Log.e("FLAC: the encoded audio is not consumed, encoding stopped at " + mEncoded.size() + " bytes");
+            mIsOverCap = true;
+            return;
+        }
+        mEncoded.write(encoded, 0, encoded.length);
+    }
+
+    private byte[] takeEncoded() {
+        byte[] encoded = mEncoded.toByteArray();
+        mEncoded.reset();
+        return encoded;
+    }
+}
@@ -22,9 +22,8 @@ import android.app.SearchManager;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.Process;
+import android.os.SystemClock;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
 
@@ -36,7 +35,6 @@ import ee.ioc.phon.android.speak.ChunkedWebRecSessionBuilder;
 import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speechutils.AudioRecorder;
-import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.utils.IntentUtils;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
@@ -49,6 +47,10 @@ import ee.ioc.phon.netspeechapi.recsession.RecSessionResult;
 
 /**
  * Implements RecognitionService, connects to the server via HTTP.
+ * <p>
+ * By default, the audio is sent in chunks (every 300 ms), each in its own request, and the result
+ * is requested after the recording has finished. In the streaming mode (see the settings), the audio is
+ * written into a single chunked POST request as it is recorded, and the result is read from its response.
  *
  * @author Kaarel Kaljurand
  */
@@ -57,13 +59,28 @@ public class HttpRecognitionService extends AbstractRecognitionService {
     // When does the chunk sending start and what is its interval
     private static final int TASK_DELAY_SEND = 100;
     private static final int TASK_INTERVAL_SEND = 300;
+    // Interval of writing the recorded audio into the streaming request
+    private static final int TASK_INTERVAL_STREAM = 50;
 
-    private volatile Looper mSendLooper;
-    private volatile Handler mSendHandler;
+    // Background tasks of the current session, null after the session has delivered its final callback
+    private volatile SessionScheduler.Session mSession;
 
+    // Delivers the errors and the results of the background tasks on the main thread
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Moves the recorded audio to the network lane, as long as the recording continues
     private Runnable mSendTask;
+    private volatile boolean mIsSending;
 
     private ChunkedWebRecSession mRecSession;
+    // Set once the session has been created on the server
+    private volatile boolean mIsCreated;
+    private HttpStreamingSession mStreamingSession;
+    private volatile UploadMeter mMeter;
+    // Time since when the recorded audio is held in the recorder because of the upload lag, 0 if it is not
+    private volatile long mHeldSince;
+    // Collapses the long silences of the raw audio, null if off
+    private SilenceFilter mSilenceFilter;
 
     @Override
     String getEncoderType() {
@@ -75,52 +92,99 @@ public class HttpRecognitionService extends AbstractRecognitionService {
     void configure(Intent recognizerIntent) throws IOException {
         ChunkedWebRecSessionBuilder mRecSessionBuilder = new ChunkedWebRecSessionBuilder(this, getExtras(), null);
 
-        mRecSessionBuilder.setContentType(getEncoderType(), getSampleRate());
+        UploadEstimator.Format format = getAudioFormat();
+        mRecSessionBuilder.setContentType(format.getEncoderType(), format.getSampleRate());
+        mMeter = new UploadMeter(format.getBytesPerSecond());
+        mHeldSince = 0;
+        mSilenceFilter = newSilenceFilter(getAudioRecorder());
         if (Log.DEBUG) Log.i(mRecSessionBuilder.toStringArrayList());
-        mRecSession = mRecSessionBuilder.build();
-        try {
-            mRecSession.create();
-        } catch (IOException e) {
-            onError(SpeechRecognizer.ERROR_NETWORK);
-        } catch (NotAvailableException e) {
-            // This cannot happen in the current net-speech-api?
-            onError(SpeechRecognizer.ERROR_SERVER);
+        mRecSession = null;
+        mStreamingSession = null;
+        if (PreferenceUtils.getPrefBoolean(getSharedPreferences(), getResources(), R.string.keyHttpStreaming, R.bool.defaultHttpStreaming)) {
+            // The request is opened in connect(), in the network lane
+            mStreamingSession = new HttpStreamingSession(mRecSessionBuilder);
+            return;
         }
+        // The session is created in connect(), in the network lane, while the recorder is already recording
+        mRecSession = mRecSessionBuilder.build();
+        mIsCreated = false;
     }
 
     @Override
     void connect() {
-        HandlerThread thread = new HandlerThread("HttpSendHandlerThread", Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mSendLooper = thread.getLooper();
-        mSendHandler = new Handler(mSendLooper);
+        final SessionScheduler.Session session = SessionScheduler.newSession("HttpRecognitionService");
+        mSession = session;
+        mIsSending = true;
+
+        if (mStreamingSession != null) {
+            startStreaming(session, mStreamingSession);
+            return;
+        }
+
+        // The session is created in the network lane while the recorder is already recording.
+        // The chunks are sent after it, starting with the audio recorded in the meantime.
+        session.execute(new Runnable() {
+            public void run() {
+                createSession();
+            }
+        });
 
         // Send chunks to the server
         mSendTask = new Runnable() {
             public void run() {
                 AudioRecorder audioRecorder = getRecorder();
-                if (audioRecorder != null) {
-                    byte[] buffer = audioRecorder.consumeRecording();
+                if (audioRecorder != null && mIsSending) {
+                    if (failIfUploadLagOverCap()) {
+                        return;
+                    }
+                    if (isCuePlaying() || isHoldingAudio()) {
+                        session.postDelayed(this, TASK_INTERVAL_SEND);
+                        return;
+                    }
+                    boolean isDroppingSilence = isDroppingSilence(audioRecorder);
+                    byte[] buffer = withPreRoll(audioRecorder.consumeRecording());
                     onBufferReceived(buffer);
-                    try {
-                        if (audioRecorder instanceof EncodedAudioRecorder) {
-                            sendChunk(((EncodedAudioRecorder) audioRecorder).consumeRecordingEnc(), false);
-                        } else {
-                            sendChunk(buffer, false);
-                        }
-                        mSendHandler.postDelayed(this, TASK_INTERVAL_SEND);
-                    } catch (IOException e) {
-                        onError(SpeechRecognizer.ERROR_NETWORK);
+                    final byte[] chunk;
+                    if (isEncoding(audioRecorder)) {
+                        chunk = consumeRecordingEnc(audioRecorder, false);
+                    } else {
+                        chunk = filterSilence(buffer, false);
+                    }
+                    if (isDroppingSilence) {
+                        session.postDelayed(this, TASK_INTERVAL_SEND);
+                        return;
                     }
+                    onQueued(chunk);
+                    session.execute(new Runnable() {
+                        public void run() {
+                            if (!mIsCreated) {
+                                // The session creation failed
+                                return;
+                            }
+                            try {
+                                sendChunk(chunk, false);
+                            } catch (IOException e) {
+                                postError(SpeechRecognizer.ERROR_NETWORK);
+                            }
+                        }
+                    });
+                    session.postDelayed(this, TASK_INTERVAL_SEND);
                 }
             }
         };
-        mSendHandler.postDelayed(mSendTask, TASK_DELAY_SEND);
+        session.postDelayed(mSendTask, TASK_DELAY_SEND);
     }
 
     @Override
     void disconnect() {
         releaseResources();
+        // The callbacks that the background tasks have posted but that have not run yet are dropped
+        mSession = null;
+    }
+
+    @Override
+    boolean isAdaptiveAudio() {
+        return PreferenceUtils.getPrefBoolean(getSharedPreferences(), getResources(), R.string.keyAdaptiveAudio, R.bool.defaultAdaptiveAudio);
     }
 
     @Override
@@ -156,10 +220,13 @@ public class HttpRecognitionService extends AbstractRecognitionService {
         if (mRecSession != null && !mRecSession.isFinished()) {
             mRecSession.cancel();
         }
+        if (mStreamingSession != null && !mStreamingSession.isFinished()) {
+            mStreamingSession.cancel();
+        }
 
-        if (mSendLooper != null) {
-            mSendLooper.quit();
-            mSendLooper = null;
+        SessionScheduler.Session session = mSession;
+        if (session != null) {
+            session.cancel();
         }
     }
 
@@ -167,7 +234,111 @@ public class HttpRecognitionService extends AbstractRecognitionService {
     @Override
     void afterRecording(byte[] recording) {
         stopTasks();
-        transcribeAndFinishInBackground(recording);
+        recording = filterSilence(withPreRoll(recording), true);
+        if (mStreamingSession != null) {
+            finishStreamingInBackground(mStreamingSession, recording);
+        } else {
+            transcribeAndFinishInBackground(recording);
+        }
+    }
+
+    /**
+     * Opens the streaming request in the network lane, and then writes the recorded audio
+     * into it every TASK_INTERVAL_STREAM ms.
+     */
+    private void startStreaming(final SessionScheduler.Session session, final HttpStreamingSession streamingSession) {
+        session.execute(new Runnable() {
+            public void run() {
+                try {
+                    long t = SystemClock.elapsedRealtime();
+                    streamingSession.open();
+                    UploadEstimator.onRoundTrip(SystemClock.elapsedRealtime() - t);
+                } catch (IOException e) {
+                    failStreaming(session, streamingSession);
+                }
+            }
+        });
+        mSendTask = new Runnable() {
+            public void run() {
+                AudioRecorder audioRecorder = getRecorder();
+                if (audioRecorder != null && mIsSending) {
+                    if (failIfUploadLagOverCap()) {
+                        return;
+                    }
+                    if (isCuePlaying() || isHoldingAudio()) {
+                        session.postDelayed(this, TASK_INTERVAL_STREAM);
+                        return;
+                    }
+                    boolean isDroppingSilence = isDroppingSilence(audioRecorder);
+                    byte[] buffer = withPreRoll(audioRecorder.consumeRecording());
+                    onBufferReceived(buffer);
+                    final byte[] chunk;
+                    if (isEncoding(audioRecorder)) {
+                        chunk = consumeRecordingEnc(audioRecorder, false);
+                    } else {
+                        chunk = filterSilence(buffer, false);
+                    }
+                    if (isDroppingSilence) {
+                        session.postDelayed(this, TASK_INTERVAL_STREAM);
+                        return;
+                    }
+                    onQueued(chunk);
+                    session.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                long t = SystemClock.elapsedRealtime();
+                                streamingSession.send(chunk);
+                                onSent(chunk, SystemClock.elapsedRealtime() - t);
+                            } catch (IOException e) {
+                                failStreaming(session, streamingSession);
+                            }
+                        }
+                    });
+                    session.postDelayed(this, TASK_INTERVAL_STREAM);
+                }
+            }
+        };
+        session.post(mSendTask);
+    }
+
+    /**
+     * Aborts the request and drops the queued tasks of the session (i.e. the chunks and the end of the request
+     * are not written into a request that failed), and reports the network error.
+     */
+    private void failStreaming(SessionScheduler.Session session, HttpStreamingSession streamingSession) {
+        streamingSession.cancel();
+        session.cancel();
+        postError(SpeechRecognizer.ERROR_NETWORK);
+    }
+
+    /**
+     * Writes the last audio and reads the result in the network lane, i.e. after the request
+     * has been opened and the audio recorded so far has been written.
+     */
+    private void finishStreamingInBackground(final HttpStreamingSession session, final byte[] bytes) {
+        final SessionScheduler.Session schedulerSession = mSession;
+        if (schedulerSession == null) {
+            return;
+        }
+        schedulerSession.execute(new Runnable() {
+            public void run() {
+                if (session.isFinished()) {
+                    return;
+                }
+                try {
+                    HttpStreamingSession.Result result = session.finish(bytes);
+                    if (result != null) {
+                        getResult(result);
+                    }
+                } catch (IOException e) {
+                    postError(SpeechRecognizer.ERROR_NETWORK);
+                } finally {
+                    // Releases only this session, the fields can already belong to the next one
+                    session.cancel();
+                    schedulerSession.cancel();
+                }
+            }
+        });
     }
 
     /**
@@ -177,30 +348,206 @@ public class HttpRecognitionService extends AbstractRecognitionService {
      */
     private void sendChunk(byte[] bytes, boolean isLast) throws IOException {
         if (mRecSession != null && !mRecSession.isFinished()) {
+            long t = SystemClock.elapsedRealtime();
             mRecSession.sendChunk(bytes, isLast);
+            // Each chunk is a request, i.e. its time includes the round trip
+            onSent(bytes, SystemClock.elapsedRealtime() - t - (long) Math.max(0, UploadEstimator.getRtt()));
+        }
+    }
+
+    /**
+     * @return lag of the audio that has been queued, plus the time the audio has been held in the recorder
+     */
+    @Override
+    float getUploadLag() {
+        UploadMeter meter = mMeter;
+        if (meter == null) {
+            return 0;
+        }
+        long heldSince = mHeldSince;
+        float lag = meter.getLag();
+        if (heldSince > 0) {
+            lag += (SystemClock.uptimeMillis() - heldSince) / 1000f;
+        }
+        return lag;
+    }
+
+    /**
+     * Fails the session if the policy is to fail and the upload lag is over the cap.
+     *
+     * @return true iff the session has failed
+     */
+    private boolean failIfUploadLagOverCap() {
+        if (UploadMeter.POLICY_FAIL.equals(getUploadLagPolicy()) && isUploadLagOverCap()) {
+            Log.i("Upload lag over the cap: " + getUploadLag() + " s");
+            postError(SpeechRecognizer.ERROR_NETWORK);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * With the wait policy, the recorded audio is held in the recorder while the queued audio
+     * is over the cap.
+     *
+     * @return true iff the recorded audio should not be consumed yet
+     */
+    private boolean isHoldingAudio() {
+        UploadMeter meter = mMeter;
+        if (meter != null && UploadMeter.POLICY_WAIT.equals(getUploadLagPolicy()) && meter.getLag() > getUploadLagCap()) {
+            if (mHeldSince == 0) {
+                mHeldSince = SystemClock.uptimeMillis();
+            }
+            return true;
         }
+        mHeldSince = 0;
+        return false;
+    }
+
+    /**
+     * Prepends the pre-roll to the first raw audio of the session.
+     */
+    private byte[] withPreRoll(byte[] bytes) {
+        byte[] preRoll = takePreRoll();
+        if (preRoll == null) {
+            return bytes;
+        }
+        byte[] audio = new byte[preRoll.length + bytes.length];
+        System.arraycopy(preRoll, 0, audio, 0, preRoll.length);
+        System.arraycopy(bytes, 0, audio, preRoll.length, bytes.length);
+        return audio;
+    }
+
+    private byte[] filterSilence(byte[] bytes, boolean isLast) {
+        SilenceFilter silenceFilter = mSilenceFilter;
+        if (silenceFilter == null) {
+            return bytes;
+        }
+        return silenceFilter.filter(bytes, isLast);
+    }
+
+    private void onQueued(byte[] bytes) {
+        UploadMeter meter = mMeter;
+        if (meter != null && bytes != null) {
+            meter.onQueued(bytes.length);
+        }
+    }
+
+    /**
+     * @param time time it took to send the bytes
+     */
+    private void onSent(byte[] bytes, long time) {
+        UploadMeter meter = mMeter;
+        if (meter != null && bytes != null) {
+            meter.onSent(bytes.length, Math.max(0, time));
+        }
+        onAudioSent();
     }
 
 
     private void stopTasks() {
-        if (mSendHandler != null) mSendHandler.removeCallbacks(mSendTask);
+        mIsSending = false;
     }
 
+    /**
+     * Posts the error to the main thread, because it releases the recorder, which the main thread
+     * is using. Can be called from the background tasks.
+     */
+    private void postError(final int errorCode) {
+        postToMain(new Runnable() {
+            @Override
+            public void run() {
+                onError(errorCode);
+            }
+        });
+    }
+
+    private void postResults(final Bundle bundle) {
+        postToMain(new Runnable() {
+            @Override
+            public void run() {
+                onResults(bundle);
+            }
+        });
+    }
 
+    /**
+     * Runs the callback on the main thread, unless the session has ended (or a new session has
+     * started) in the meantime. The first error or results end the session, i.e. the rest are dropped.
+     */
+    private void postToMain(final Runnable callback) {
+        final SessionScheduler.Session session = mSession;
+        if (session == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (session == mSession) {
+                    callback.run();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Creates the session on the server, unless it has already been created.
+     * Must be called from the network lane.
+     *
+     * @return true iff the session exists
+     */
+    private boolean createSession() {
+        if (mIsCreated) {
+            return true;
+        }
+        try {
+            long t = SystemClock.elapsedRealtime();
+            mRecSession.create();
+            mIsCreated = true;
+            t = SystemClock.elapsedRealtime() - t;
+            UploadEstimator.onRoundTrip(t);
+            Log.i("Session created in " + t + " ms");
+            return true;
+        } catch (IOException e) {
+            postError(SpeechRecognizer.ERROR_NETWORK);
+        } catch (NotAvailableException e) {
+            // This cannot happen in the current net-speech-api?
+            postError(SpeechRecognizer.ERROR_SERVER);
+        }
+        return false;
+    }
+
+    /**
+     * Sends the last chunk and gets the result in the network lane, i.e. after the session
+     * has been created and the other chunks have been sent.
+     */
     private void transcribeAndFinishInBackground(final byte[] bytes) {
-        Thread t = new Thread() {
+        final SessionScheduler.Session session = mSession;
+        final ChunkedWebRecSession recSession = mRecSession;
+        if (session == null) {
+            return;
+        }
+        onQueued(bytes);
+        session.execute(new Runnable() {
             public void run() {
+                if (!createSession()) {
+                    return;
+                }
                 try {
                     sendChunk(bytes, true);
-                    getResult(mRecSession);
+                    getResult(recSession);
                 } catch (IOException e) {
-                    onError(SpeechRecognizer.ERROR_NETWORK);
+                    postError(SpeechRecognizer.ERROR_NETWORK);
                 } finally {
-                    releaseResources();
+                    // Releases only this session, the fields can already belong to the next one
+                    if (recSession != null && !recSession.isFinished()) {
+                        recSession.cancel();
+                    }
+                    session.cancel();
                 }
             }
-        };
-        t.start();
+        });
     }
 
 
@@ -214,14 +561,45 @@ public class HttpRecognitionService extends AbstractRecognitionService {
 
         if (result == null) {
             Log.i("Callback: error: ERROR_NO_MATCH: RecSessionResult == null");
-            onError(SpeechRecognizer.ERROR_NO_MATCH);
+            postError(SpeechRecognizer.ERROR_NO_MATCH);
             return;
         }
 
-        List<Hypothesis> hyps = result.getHypotheses();
+        List<HttpStreamingSession.Hypothesis> hyps = new ArrayList<>();
+        for (Hypothesis hyp : result.getHypotheses()) {
+            List<String> outputs = new ArrayList<>();
+            List<String> langs = new ArrayList<>();
+            List<Linearization> hypLins = hyp.getLinearizations();
+            if (hypLins != null) {
+                for (Linearization lin : hypLins) {
+                    outputs.add(lin.getOutput());
+                    langs.add(lin.getLang());
+                }
+            }
+            hyps.add(new HttpStreamingSession.Hypothesis(hyp.getUtterance(), outputs, langs));
+        }
+        returnHypotheses(hyps);
+    }
+
+    private void getResult(HttpStreamingSession.Result result) {
+        int status = result.getStatus();
+        if (status == HttpStreamingSession.STATUS_SUCCESS) {
+            returnHypotheses(result.getHypotheses());
+        } else if (status == HttpStreamingSession.STATUS_NO_SPEECH) {
+            postError(SpeechRecognizer.ERROR_SPEECH_TIMEOUT);
+        } else if (status == HttpStreamingSession.STATUS_ABORTED) {
+            postError(SpeechRecognizer.ERROR_SERVER);
+        } else if (status == HttpStreamingSession.STATUS_NOT_AVAILABLE) {
+            postError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
+        } else {
+            postError(SpeechRecognizer.ERROR_CLIENT);
+        }
+    }
+
+    private void returnHypotheses(List<HttpStreamingSession.Hypothesis> hyps) {
         if (hyps.isEmpty()) {
             Log.i("Callback: error: ERROR_NO_MATCH: getHypotheses().isEmpty()");
-            onError(SpeechRecognizer.ERROR_NO_MATCH);
+            postError(SpeechRecognizer.ERROR_NO_MATCH);
             return;
         }
 
@@ -237,7 +615,7 @@ public class HttpRecognitionService extends AbstractRecognitionService {
         ArrayList<String> everything = new ArrayList<>();
         ArrayList<Integer> counts = new ArrayList<>(hyps.size());
         int count = 0;
-        for (Hypothesis hyp : hyps) {
+        for (HttpStreamingSession.Hypothesis hyp : hyps) {
             if (count++ >= maxResults) {
                 break;
             }
@@ -249,16 +627,16 @@ public class HttpRecognitionService extends AbstractRecognitionService {
                 continue;
             }
             everything.add(utterance);
-            List<Linearization> hypLins = hyp.getLinearizations();
-            if (hypLins == null || hypLins.isEmpty()) {
+            List<String> outputs = hyp.getOutputs();
+            if (outputs.isEmpty()) {
                 lins.add(hyp.getUtterance());
                 counts.add(0);
             } else {
-                counts.add(hypLins.size());
-                for (Linearization lin : hypLins) {
-                    String output = lin.getOutput();
+                counts.add(outputs.size());
+                for (int i = 0; i < outputs.size(); i++) {
+                    String output = outputs.get(i);
                     everything.add(output);
-                    everything.add(lin.getLang());
+                    everything.add(hyp.getLangs().get(i));
                     if (output == null || output.length() == 0) {
                         lins.add(utterance);
                     } else {
@@ -289,7 +667,7 @@ public class HttpRecognitionService extends AbstractRecognitionService {
             Log.i("Callback: results: RESULTS_RECOGNITION: " + matches);
             Log.i("Callback: results: RESULTS_RECOGNITION_LINEARIZATIONS: " + everything);
             Log.i("Callback: results: RESULTS_RECOGNITION_LINEARIZATIONS_COUNTS: " + counts);
-            onResults(bundle);
+            postResults(bundle);
         } else {
             Log.i("EXTRA_RESULTS_PENDINGINTENT_BUNDLE was used with SpeechRecognizer (this is not tested)");
             // This probably never occurs...
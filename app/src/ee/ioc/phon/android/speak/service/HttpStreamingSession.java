@@ -0,0 +1,226 @@
+package ee.ioc.phon.android.speak.service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import ee.ioc.phon.android.speak.ChunkedWebRecSessionBuilder;
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.utils.QueryUtils;
+
+/**
+ * Sends the audio to the HTTP server in a single POST request with chunked transfer encoding,
+ * writing each frame into the request as soon as it is recorded, and reads the result from the response
+ * of the same request. Compared to ChunkedWebRecSession, there is no round trip per chunk.
+ * <p>
+ * The response is the JSON object of the speech API, e.g.
+ * {"status": 0, "hypotheses": [{"utterance": "...", "linearizations": [{"output": "...", "lang": "..."}]}]}
+ */
+class HttpStreamingSession {
+
+    static final int STATUS_SUCCESS = 0;
+    static final int STATUS_NO_SPEECH = 1;
+    static final int STATUS_ABORTED = 2;
+    static final int STATUS_NOT_AVAILABLE = 9;
+
+    private static final String ENCODING = "UTF-8";
+
+    // A server that does not respond must not block the network lane forever (in milliseconds)
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final URL mUrl;
+    private final String mContentType;
+    private final String mUserAgent;
+
+    private HttpURLConnection mConnection;
+    private OutputStream mOutputStream;
+    private int mNumBytesSent;
+    private volatile boolean mIsFinished;
+
+    HttpStreamingSession(ChunkedWebRecSessionBuilder builder) throws IOException {
+        this(toUrl(builder), builder.getContentType(), builder.getUserAgentComment());
+    }
+
+    HttpStreamingSession(URL url, String contentType, String userAgent) {
+        mUrl = url;
+        mContentType = contentType;
+        mUserAgent = userAgent;
+    }
+
+    /**
+     * Opens the request. Does network I/O, i.e. must not be called from the main thread.
+     */
+    void open() throws IOException {
+        Log.i("POST (chunked): " + mUrl);
+        mConnection = (HttpURLConnection) mUrl.openConnection();
+        mConnection.setConnectTimeout(CONNECT_TIMEOUT);
+        mConnection.setReadTimeout(READ_TIMEOUT);
+        mConnection.setDoOutput(true);
+        mConnection.setRequestMethod("POST");
+        // The chunk is sent on every flush, i.e. the chunk length is only an upper bound
+        mConnection.setChunkedStreamingMode(0);
+        if (mContentType != null) {
+            mConnection.setRequestProperty("Content-Type", mContentType);
+        }
+        if (mUserAgent != null) {
+            mConnection.setRequestProperty("User-Agent", mUserAgent);
+        }
+        mOutputStream = mConnection.getOutputStream();
+    }
+
+    /**
+     * Writes the given audio into the request as one chunk.
+     *
+     * @throws IOException if the request was not opened (e.g. the connection failed)
+     */
+    void send(byte[] bytes) throws IOException {
+        if (bytes != null && bytes.length > 0 && !mIsFinished) {
+            checkOpen();
+            mOutputStream.write(bytes);
+            mOutputStream.flush();
+            mNumBytesSent += bytes.length;
+        }
+    }
+
+    /**
+     * Writes the last chunk and the end of the request, and waits for the response.
+     *
+     * @return result, or null if the session was cancelled
+     */
+    Result finish(byte[] lastBytes) throws IOException {
+        send(lastBytes);
+        if (mIsFinished) {
+            return null;
+        }
+        checkOpen();
+        mOutputStream.close();
+        Log.i("Number of bytes sent: " + mNumBytesSent);
+        InputStream is = mConnection.getInputStream();
+        try {
+            return parseResult(readString(is));
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            is.close();
+            cancel();
+        }
+    }
+
+    boolean isFinished() {
+        return mIsFinished;
+    }
+
+    /**
+     * Aborts the request. Can be called from any thread.
+     */
+    void cancel() {
+        mIsFinished = true;
+        HttpURLConnection connection = mConnection;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    private static URL toUrl(ChunkedWebRecSessionBuilder builder) throws IOException {
+        String query = QueryUtils.getHttpQueryParams(builder, ENCODING);
+        String url = builder.getServerUrl().toString();
+        if (query.length() > 0) {
+            url += (url.contains("?") ? "&" : "?") + query;
+        }
+        return new URL(url);
+    }
+
+    private void checkOpen() throws IOException {
+        if (mOutputStream == null) {
+            throw new IOException("The request is not open: " + mUrl);
+        }
+    }
+
+    private static String readString(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, length);
+        }
+        return baos.toString(ENCODING);
+    }
+
+    private static Result parseResult(String str) throws JSONException {
+        JSONObject json = new JSONObject(str);
+        List<Hypothesis> hypotheses = new ArrayList<>();
+        JSONArray hyps = json.optJSONArray("hypotheses");
+        if (hyps != null) {
+            for (int i = 0; i < hyps.length(); i++) {
+                JSONObject hyp = hyps.getJSONObject(i);
+                List<String> outputs = new ArrayList<>();
+                List<String> langs = new ArrayList<>();
+                JSONArray lins = hyp.optJSONArray("linearizations");
+                if (lins != null) {
+                    for (int j = 0; j < lins.length(); j++) {
+                        JSONObject lin = lins.getJSONObject(j);
+                        outputs.add(lin.optString("output", null));
+                        langs.add(lin.optString("lang", null));
+                    }
+                }
+                hypotheses.add(new Hypothesis(hyp.optString("utterance", null), outputs, langs));
+            }
+        }
+        return new Result(json.optInt("status", STATUS_SUCCESS), hypotheses);
+    }
+
+    static class Result {
+        private final int mStatus;
+        private final List<Hypothesis> mHypotheses;
+
+        Result(int status, List<Hypothesis> hypotheses) {
+            mStatus = status;
+            mHypotheses = hypotheses;
+        }
+
+        int getStatus() {
+            return mStatus;
+        }
+
+        List<Hypothesis> getHypotheses() {
+            return mHypotheses;
+        }
+    }
+
+    /**
+     * Utterance and its linearizations (the outputs and their languages, in parallel lists).
+     */
+    static class Hypothesis {
+        private final String mUtterance;
+        private final List<String> mOutputs;
+        private final List<String> mLangs;
+
+        Hypothesis(String utterance, List<String> outputs, List<String> langs) {
+            mUtterance = utterance;
+            mOutputs = outputs;
+            mLangs = langs;
+        }
+
+        String getUtterance() {
+            return mUtterance;
+        }
+
+        List<String> getOutputs() {
+            return mOutputs;
+        }
+
+        List<String> getLangs() {
+            return mLangs;
+        }
+    }
+}
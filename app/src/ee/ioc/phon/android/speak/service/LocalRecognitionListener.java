@@ -0,0 +1,39 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.os.Bundle;
+
+import java.util.List;
+
+/**
+ * Typed callbacks of a recognition session of an in-process client (see LocalRecognizer).
+ * Corresponds to android.speech.RecognitionListener, but the results are delivered as values
+ * rather than in Bundles, and the audio buffers are passed by reference (i.e. must not be modified).
+ * The callbacks are called on the main thread.
+ */
+public interface LocalRecognitionListener {
+
+    void onReadyForSpeech();
+
+    void onBeginningOfSpeech();
+
+    void onRmsChanged(float rmsdB);
+
+    void onBufferReceived(byte[] buffer);
+
+    void onEndOfSpeech();
+
+    void onError(int errorCode);
+
+    /**
+     * @param results     hypotheses
+     * @param isSemiFinal true iff the hypotheses are final for the current segment of the audio
+     * @param uploadLag   number of seconds by which the upload lags behind the recording
+     */
+    void onPartialResults(List<String> results, boolean isSemiFinal, float uploadLag);
+
+    /**
+     * @param results hypotheses, or null if the session was cancelled
+     * @param bundle  the results with the extras added by the service
+     */
+    void onResults(List<String> results, Bundle bundle);
+}
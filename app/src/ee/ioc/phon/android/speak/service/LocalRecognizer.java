@@ -0,0 +1,249 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.speech.SpeechRecognizer;
+
+import java.util.List;
+
+import ee.ioc.phon.android.speak.Log;
+
+/**
+ * In-process replacement of SpeechRecognizer for Kõnele's own recognition services. The service is bound
+ * (which keeps it alive), but it is then called directly, and it calls back the typed listener directly,
+ * i.e. the partial results and the audio buffers do not go through the binder.
+ * The third-party services, and the apps that call Kõnele's services, keep using SpeechRecognizer.
+ * <p>
+ * Like SpeechRecognizer, must be used on the main thread, and delivers the callbacks on the main thread.
+ */
+public class LocalRecognizer {
+
+    private final Context mContext;
+    private final ComponentName mComponentName;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private AbstractRecognitionService mService;
+    private boolean mIsBound;
+    private boolean mIsListening;
+    // Listener of the current session, null if cancelled (the service calls back from its threads)
+    private volatile LocalRecognitionListener mListener;
+    // Start of the session, waiting for the service to be connected
+    private Runnable mPendingStart;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            // The binder is the framework's recognition service interface, the service instance is looked up instead
+            mService = AbstractRecognitionService.getLocalInstance(mComponentName);
+            Log.i("Local service connected: " + mService);
+            Runnable pendingStart = mPendingStart;
+            mPendingStart = null;
+            if (pendingStart != null) {
+                pendingStart.run();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+
+    // Posts the callbacks to the main thread, and drops them if the session has been cancelled in the meantime
+    private final LocalRecognitionListener mMainThreadListener = new LocalRecognitionListener() {
+        @Override
+        public void onReadyForSpeech() {
+            final LocalRecognitionListener listener = mListener;
+            post(new Runnable() {
+                public void run() {
+                    if (isCurrent(listener)) listener.onReadyForSpeech();
+                }
+            });
+        }
+
+        @Override
+        public void onBeginningOfSpeech() {
+            final LocalRecognitionListener listener = mListener;
+            post(new Runnable() {
+                public void run() {
+                    if (isCurrent(listener)) listener.onBeginningOfSpeech();
+                }
+            });
+        }
+
+        @Override
+        public void onRmsChanged(final float rmsdB) {
+            final LocalRecognitionListener listener = mListener;
+            post(new Runnable() {
+                public void run() {
+                    if (isCurrent(listener)) listener.onRmsChanged(rmsdB);
+                }
+            });
+        }
+
+        @Override
+        public void onBufferReceived(final byte[] buffer) {
+            final LocalRecognitionListener listener = mListener;
+            post(new Runnable() {
+                public void run() {
+                    if (isCurrent(listener)) listener.onBufferReceived(buffer);
+                }
+            });
+        }
+
+        @Override
+        public void onEndOfSpeech() {
+            final LocalRecognitionListener listener = mListener;
+            post(new Runnable() {
+                public void run() {
+                    if (isCurrent(listener)) listener.onEndOfSpeech();
+                }
+            });
+        }
+
+        @Override
+        public void onError(final int errorCode) {
+            final LocalRecognitionListener listener = mListener;
+            post(new Runnable() {
+                public void run() {
+                    if (isCurrent(listener)) {
+                        mIsListening = false;
+                        listener.onError(errorCode);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onPartialResults(final List<String> results, final boolean isSemiFinal, final float uploadLag) {
+            final LocalRecognitionListener listener = mListener;
+            post(new Runnable() {
+                public void run() {
+                    if (isCurrent(listener)) listener.onPartialResults(results, isSemiFinal, uploadLag);
+                }
+            });
+        }
+
+        @Override
+        public void onResults(final List<String> results, final Bundle bundle) {
+            final LocalRecognitionListener listener = mListener;
+            post(new Runnable() {
+                public void run() {
+                    if (isCurrent(listener)) {
+                        mIsListening = false;
+                        listener.onResults(results, bundle);
+                    }
+                }
+            });
+        }
+    };
+
+    public LocalRecognizer(Context context, ComponentName componentName) {
+        mContext = context;
+        mComponentName = componentName;
+    }
+
+    /**
+     * @return true iff the given service is one of Kõnele's recognition services, i.e. it runs in this process
+     */
+    public static boolean isLocal(Context context, ComponentName componentName) {
+        if (componentName == null || !context.getPackageName().equals(componentName.getPackageName())) {
+            return false;
+        }
+        try {
+            return AbstractRecognitionService.class.isAssignableFrom(Class.forName(componentName.getClassName()));
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    public ComponentName getComponentName() {
+        return mComponentName;
+    }
+
+    /**
+     * Starts the session, binding the service first if needed.
+     */
+    public void startListening(final Intent recognizerIntent, LocalRecognitionListener listener) {
+        mListener = listener;
+        mIsListening = true;
+        Runnable start = new Runnable() {
+            @Override
+            public void run() {
+                if (mService == null) {
+                    mMainThreadListener.onError(SpeechRecognizer.ERROR_CLIENT);
+                } else {
+                    mService.startListening(recognizerIntent, mMainThreadListener);
+                }
+            }
+        };
+        if (mService == null) {
+            mPendingStart = start;
+            bind();
+        } else {
+            start.run();
+        }
+    }
+
+    public void stopListening() {
+        if (mService != null && mIsListening) {
+            mService.stopListening(mMainThreadListener);
+        }
+    }
+
+    /**
+     * Cancels the session, but keeps the service bound. After this no callbacks of the session are called.
+     */
+    public void cancel() {
+        mListener = null;
+        mPendingStart = null;
+        if (mService != null && mIsListening) {
+            mService.cancel(mMainThreadListener);
+        }
+        mIsListening = false;
+    }
+
+    /**
+     * Cancels the session, and unbinds the service. The recognizer can be started again.
+     */
+    public void destroy() {
+        cancel();
+        mService = null;
+        if (mIsBound) {
+            mContext.unbindService(mConnection);
+            mIsBound = false;
+        }
+    }
+
+    /**
+     * Binds the service (if not yet bound), e.g. ahead of the first session.
+     */
+    public void bind() {
+        if (!mIsBound) {
+            mIsBound = mContext.bindService(new Intent().setComponent(mComponentName), mConnection, Context.BIND_AUTO_CREATE);
+            if (!mIsBound) {
+                Log.i("Failed to bind: " + mComponentName);
+                mPendingStart = null;
+                mMainThreadListener.onError(SpeechRecognizer.ERROR_CLIENT);
+            }
+        }
+    }
+
+    private boolean isCurrent(LocalRecognitionListener listener) {
+        return listener != null && listener == mListener;
+    }
+
+    /**
+     * Posts the callback to the main thread also if already on it, so that (as with SpeechRecognizer)
+     * no callback is called before startListening returns.
+     */
+    private void post(Runnable runnable) {
+        mHandler.post(runnable);
+    }
+}
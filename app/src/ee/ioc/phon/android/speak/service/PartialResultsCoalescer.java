@@ -0,0 +1,102 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Limits the rate at which (non-final) partial results are delivered to the client: at most one
+ * partial result per interval. A partial result that arrives too early is held back, and replaced
+ * if a newer one arrives in the meantime, i.e. the latest partial result always wins.
+ * Final results are not passed through this class, they only cancel the held-back partial result.
+ * Must be used from the thread of the given handler.
+ */
+class PartialResultsCoalescer {
+
+    interface Sink {
+        void deliver(Bundle bundle);
+    }
+
+    private final Handler mHandler;
+    private final Sink mSink;
+
+    private int mInterval;
+    private long mLastDeliveryTime;
+    private Bundle mPending;
+
+    private int mNumDelivered;
+    private int mNumDropped;
+
+    private final Runnable mDeliverTask = new Runnable() {
+        @Override
+        public void run() {
+            deliverPending();
+        }
+    };
+
+    PartialResultsCoalescer(Handler handler, Sink sink) {
+        mHandler = handler;
+        mSink = sink;
+    }
+
+    /**
+     * Starts a new session, with the given minimal interval (in milliseconds) between
+     * two partial results. If the interval is not positive then the partial results are not delayed.
+     */
+    void reset(int interval) {
+        cancel();
+        mInterval = interval;
+        mLastDeliveryTime = 0;
+        mNumDelivered = 0;
+        mNumDropped = 0;
+    }
+
+    /**
+     * Delivers the partial result now, or once the interval since the previous delivery has passed.
+     */
+    void offer(Bundle bundle) {
+        long now = SystemClock.uptimeMillis();
+        if (mPending != null) {
+            mNumDropped++;
+            mPending = bundle;
+        } else if (mInterval <= 0 || now - mLastDeliveryTime >= mInterval) {
+            deliver(bundle, now);
+        } else {
+            mPending = bundle;
+            mHandler.postAtTime(mDeliverTask, mLastDeliveryTime + mInterval);
+        }
+    }
+
+    /**
+     * Drops the held-back partial result, e.g. because a final result replaces it.
+     */
+    void cancel() {
+        mHandler.removeCallbacks(mDeliverTask);
+        if (mPending != null) {
+            mNumDropped++;
+            mPending = null;
+        }
+    }
+
+    int getNumDelivered() {
+        return mNumDelivered;
+    }
+
+    int getNumDropped() {
+        return mNumDropped;
+    }
+
+    private void deliverPending() {
+        Bundle bundle = mPending;
+        mPending = null;
+        if (bundle != null) {
+            deliver(bundle, SystemClock.uptimeMillis());
+        }
+    }
+
+    private void deliver(Bundle bundle, long now) {
+        mLastDeliveryTime = now;
+        mNumDelivered++;
+        mSink.deliver(bundle);
+    }
+}
@@ -0,0 +1,182 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import java.io.IOException;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speechutils.AudioRecorder;
+import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
+
+/**
+ * Records the audio while the speech UI (the IME or the search panel) is visible and the user has opted in,
+ * and keeps the last few hundred milliseconds of it in a ring buffer. When the session starts,
+ * it takes over this audio (and the microphone) and prepends the audio to the stream,
+ * so that the speech that started before the session is not lost.
+ * <p>
+ * The ring buffer is allocated once for the configured length, which is capped at MAX_LENGTH
+ * (i.e. at most 32 kB). The recorder and the buffer are released as soon as the UI is hidden.
+ * After the session has released its recorder, the recording resumes if the UI is still visible.
+ */
+public final class PreRollRecorder {
+
+    // Hard cap of the pre-roll length in milliseconds
+    private static final int MAX_LENGTH = 1000;
+    private static final int SAMPLE_RATE = 16000;
+    // Move the recorded audio to the ring buffer 10 times a second
+    private static final int TASK_INTERVAL_DRAIN = 100;
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final Runnable DRAIN_TASK = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+            HANDLER.postDelayed(this, TASK_INTERVAL_DRAIN);
+        }
+    };
+
+    // True while the UI is visible and the pre-roll is switched on
+    private static boolean sIsEnabled;
+    // Pre-roll length in milliseconds
+    private static int sLength;
+
+    private static AudioRecorder sRecorder;
+    private static byte[] sRing;
+    // Position of the next byte in the ring buffer, and if the buffer has wrapped around
+    private static int sRingPos;
+    private static boolean sIsRingFull;
+
+    private PreRollRecorder() {
+    }
+
+    /**
+     * Starts recording, if the pre-roll is switched on in the settings, e.g. when the UI becomes visible.
+     */
+    public static synchronized void start(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Resources res = context.getResources();
+        if (!PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyPreRoll, R.bool.defaultPreRoll)) {
+            release();
+            return;
+        }
+        sIsEnabled = true;
+        sLength = Math.min(MAX_LENGTH, PreferenceUtils.getPrefInt(prefs, res, R.string.keyPreRollLength, R.string.defaultPreRollLength));
+        open();
+    }
+
+    /**
+     * Stops recording and frees the buffer, e.g. when the UI is hidden.
+     */
+    public static synchronized void release() {
+        sIsEnabled = false;
+        close();
+    }
+
+    /**
+     * Stops recording (to free the microphone for the session), and returns the recorded audio.
+     *
+     * @param sampleRate sample rate of the session
+     * @return last audio (raw) before the session, or null if there is none, or if its sample rate differs
+     */
+    static synchronized byte[] take(int sampleRate) {
+        if (sRecorder == null) {
+            return null;
+        }
+        drain();
+        byte[] audio = null;
+        if (sampleRate == SAMPLE_RATE) {
+            audio = getRing();
+            Log.i("Pre-roll: " + audio.length + " bytes");
+        }
+        close();
+        return audio;
+    }
+
+    /**
+     * Resumes recording after the session, if the UI is still visible.
+     */
+    static synchronized void resume() {
+        if (sIsEnabled) {
+            open();
+        }
+    }
+
+    private static void open() {
+        if (sRecorder != null) {
+            return;
+        }
+        AudioRecorder recorder;
+        try {
+            recorder = AbstractRecognitionService.createAudioRecorder(null, SAMPLE_RATE);
+        } catch (IOException e) {
+            Log.e("Pre-roll: failed to create the recorder", e);
+            return;
+        }
+        if (recorder.getState() == AudioRecorder.State.READY) {
+            recorder.start();
+        }
+        if (recorder.getState() != AudioRecorder.State.RECORDING) {
+            // E.g. no permission, or the microphone is used by another app
+            Log.i("Pre-roll: recorder not available");
+            recorder.release();
+            return;
+        }
+        sRecorder = recorder;
+        sRing = new byte[2 * SAMPLE_RATE * sLength / 1000];
+        sRingPos = 0;
+        sIsRingFull = false;
+        HANDLER.postDelayed(DRAIN_TASK, TASK_INTERVAL_DRAIN);
+    }
+
+    private static void close() {
+        HANDLER.removeCallbacks(DRAIN_TASK);
+        if (sRecorder != null) {
+            sRecorder.release();
+            sRecorder = null;
+        }
+        sRing = null;
+    }
+
+    /**
+     * Moves the audio recorded since the last drain to the ring buffer, overwriting the oldest audio.
+     */
+    private static synchronized void drain() {
+        if (sRecorder == null) {
+            return;
+        }
+        byte[] audio = sRecorder.consumeRecordingAndTruncate();
+        int length = Math.min(audio.length, sRing.length);
+        int offset = audio.length - length;
+        while (length > 0) {
+            int n = Math.min(length, sRing.length - sRingPos);
+            System.arraycopy(audio, offset, sRing, sRingPos, n);
+            offset += n;
+            length -= n;
+            sRingPos += n;
+            if (sRingPos == sRing.length) {
+                sRingPos = 0;
+                sIsRingFull = true;
+            }
+        }
+    }
+
+    private static byte[] getRing() {
+        if (!sIsRingFull) {
+            byte[] audio = new byte[sRingPos];
+            System.arraycopy(sRing, 0, audio, 0, sRingPos);
+            return audio;
+        }
+        byte[] audio = new byte[sRing.length];
+        int tail = sRing.length - sRingPos;
+        System.arraycopy(sRing, sRingPos, audio, 0, tail);
+        System.arraycopy(sRing, 0, audio, tail, sRingPos);
+        return audio;
+    }
+}
@@ -0,0 +1,372 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ee.ioc.phon.android.speak.Log;
+
+/**
+ * Runs the background tasks of the recognition sessions on long-lived threads (shared by all
+ * the sessions of the process), in three lanes:
+ * <ul>
+ * <li>audio lane: one looper thread for the short, periodic tasks, e.g. moving the recorded audio
+ * from the recorder to the sender. Nothing else runs on it, so that the recorder is drained on time;</li>
+ * <li>network lane: a fixed pool of threads for the short blocking network and disk I/O,
+ * e.g. sending an HTTP chunk, or storing the adaptation state;</li>
+ * <li>stream lane: a thread per long-running task, e.g. a WebSocket sender that blocks on the audio
+ * for the whole session. These get their own threads, so that they cannot starve the network lane.
+ * The threads are reused, and their number is capped.</li>
+ * </ul>
+ * The network and stream tasks of one session run one at a time, in the order of submission.
+ * Only the task that is running is in the pool's queue, i.e. the queue of the network lane holds
+ * at most one task per session, and the backlog of a session (e.g. the HTTP chunks) is bounded by
+ * its caller (the upload lag cap).
+ * <p>
+ * The results of the sessions are processed on a separate looper thread (see {@link #getResultLooper()}).
+ * <p>
+ * A session is cancelled cooperatively: its pending tasks are dropped, and the threads that are
+ * running its network or stream tasks are interrupted.
+ * <p>
+ * For each lane, the scheduler keeps the number of tasks that are waiting to run, and the latency
+ * of the tasks (the time from when the task should have run until it started).
+ */
+public final class SessionScheduler {
+
+    public enum Lane {
+        AUDIO, NETWORK, STREAM
+    }
+
+    private static final int NETWORK_THREADS = 4;
+    // E.g. the primary and the backup WebSocket connection of two overlapping sessions
+    private static final int MAX_STREAM_THREADS = 4;
+    private static final int KEEP_ALIVE_SECONDS = 30;
+    // Weight of the latest latency in the moving average
+    private static final float LATENCY_WEIGHT = 0.1f;
+
+    private static HandlerThread sAudioThread;
+    private static HandlerThread sResultThread;
+    private static ThreadPoolExecutor sNetworkExecutor;
+    private static ThreadPoolExecutor sStreamExecutor;
+
+    private static final LaneStats[] STATS = {new LaneStats(), new LaneStats(), new LaneStats()};
+
+    private SessionScheduler() {
+    }
+
+    private static synchronized Looper getAudioLooper() {
+        if (sAudioThread == null) {
+            sAudioThread = new HandlerThread("SessionAudioThread", Process.THREAD_PRIORITY_AUDIO);
+            sAudioThread.start();
+        }
+        return sAudioThread.getLooper();
+    }
+
+    /**
+     * @return looper for a handler that processes the server responses (parsing them, and building
+     * the results), shared by all the sessions. It is not the audio lane, i.e. a slow response
+     * does not delay the draining of the recorder.
+     */
+    public static synchronized Looper getResultLooper() {
+        if (sResultThread == null) {
+            sResultThread = new HandlerThread("SessionResultThread", Process.THREAD_PRIORITY_BACKGROUND);
+            sResultThread.start();
+        }
+        return sResultThread.getLooper();
+    }
+
+    /**
+     * @param name name of the session, used in the log
+     */
+    public static Session newSession(String name) {
+        return new Session(name);
+    }
+
+    /**
+     * @return number of tasks in the given lane that are waiting to run
+     */
+    public static synchronized int getQueueDepth(Lane lane) {
+        return STATS[lane.ordinal()].mNumPending;
+    }
+
+    /**
+     * @return moving average of the latency (in milliseconds) of the tasks in the given lane
+     */
+    public static synchronized float getLatency(Lane lane) {
+        return STATS[lane.ordinal()].mLatency;
+    }
+
+    /**
+     * @return max latency (in milliseconds) of the tasks in the given lane since the start of the process
+     */
+    public static synchronized long getMaxLatency(Lane lane) {
+        return STATS[lane.ordinal()].mMaxLatency;
+    }
+
+    public static synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Lane lane : Lane.values()) {
+            LaneStats stats = STATS[lane.ordinal()];
+            sb.append(lane).append(": tasks: ").append(stats.mNumTasks)
+                    .append(", queued: ").append(stats.mNumPending)
+                    .append(", latency: ").append(Math.round(stats.mLatency))
+                    .append(" ms (max ").append(stats.mMaxLatency).append(" ms); ");
+        }
+        return sb.toString();
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor(Lane lane) {
+        if (lane == Lane.STREAM) {
+            if (sStreamExecutor == null) {
+                // No queue: a stream task runs on an idle thread or on a new one, or is rejected
+                sStreamExecutor = new ThreadPoolExecutor(0, MAX_STREAM_THREADS,
+                        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                        new NamingThreadFactory("SessionStreamThread-"));
+            }
+            return sStreamExecutor;
+        }
+        if (sNetworkExecutor == null) {
+            sNetworkExecutor = new ThreadPoolExecutor(NETWORK_THREADS, NETWORK_THREADS,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new NamingThreadFactory("SessionNetworkThread-"));
+            sNetworkExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sNetworkExecutor;
+    }
+
+    private static synchronized void onSubmit(Lane lane, int count) {
+        STATS[lane.ordinal()].mNumPending += count;
+    }
+
+    private static synchronized void onStart(Lane lane, long latency) {
+        LaneStats stats = STATS[lane.ordinal()];
+        stats.mNumPending--;
+        stats.mNumTasks++;
+        stats.mLatency = LATENCY_WEIGHT * latency + (1 - LATENCY_WEIGHT) * stats.mLatency;
+        if (latency > stats.mMaxLatency) {
+            stats.mMaxLatency = latency;
+        }
+    }
+
+    /**
+     * Tasks of one session, or of one connection of the session.
+     */
+    public static final class Session {
+        private final String mName;
+        private final Handler mHandler;
+
+        // Network tasks that wait for the previous task of the session to finish
+        private final ArrayDeque<Task> mNetworkTasks = new ArrayDeque<>();
+        private Task mActiveNetworkTask;
+        private Thread mNetworkThread;
+        // Number of audio tasks that have been posted but have not run yet
+        private int mNumAudioTasks;
+        // Audio task that has run, reused if its runnable is posted again (e.g. by a periodic task),
+        // so that a periodic task does not allocate
+        private Task mFreeAudioTask;
+        private volatile boolean mIsCancelled;
+
+        private Session(String name) {
+            mName = name;
+            mHandler = new Handler(getAudioLooper());
+        }
+
+        /**
+         * Runs the given task in the audio lane.
+         *
+         * @return false if the session has been cancelled
+         */
+        public boolean post(Runnable runnable) {
+            return postDelayed(runnable, 0);
+        }
+
+        /**
+         * Runs the given task in the audio lane after the given delay.
+         *
+         * @return false if the session has been cancelled
+         */
+        public boolean postDelayed(Runnable runnable, long delay) {
+            long time = SystemClock.uptimeMillis() + delay;
+            Task task;
+            synchronized (this) {
+                if (mIsCancelled) {
+                    return false;
+                }
+                task = mFreeAudioTask;
+                if (task != null && task.mRunnable == runnable) {
+                    mFreeAudioTask = null;
+                    task.mTime = time;
+                } else {
+                    task = new Task(Lane.AUDIO, runnable, time);
+                }
+                mNumAudioTasks++;
+            }
+            onSubmit(Lane.AUDIO, 1);
+            return mHandler.postDelayed(task, delay);
+        }
+
+        /**
+         * Runs the given short task in the network lane, after the previous network and stream tasks
+         * of the session.
+         *
+         * @return false if the session has been cancelled
+         */
+        public boolean execute(Runnable runnable) {
+            return submit(new Task(Lane.NETWORK, runnable, SystemClock.uptimeMillis()));
+        }
+
+        /**
+         * Runs the given long-running task (e.g. one that blocks until the end of the session)
+         * on a thread of its own in the stream lane, after the previous network and stream tasks
+         * of the session.
+         *
+         * @return false if the session has been cancelled, or if all the stream threads are busy
+         */
+        public boolean executeStream(Runnable runnable) {
+            return submit(new Task(Lane.STREAM, runnable, SystemClock.uptimeMillis()));
+        }
+
+        private boolean submit(Task task) {
+            synchronized (this) {
+                if (mIsCancelled) {
+                    return false;
+                }
+                onSubmit(task.mLane, 1);
+                if (mActiveNetworkTask != null) {
+                    mNetworkTasks.add(task);
+                    return true;
+                }
+                mActiveNetworkTask = task;
+            }
+            return start(task);
+        }
+
+        private boolean start(Task task) {
+            try {
+                getExecutor(task.mLane).execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                Log.e(mName + ": rejected: " + getStats());
+                onSubmit(task.mLane, -1);
+                // The tasks after it would run out of order, i.e. the session cannot continue
+                cancel();
+                return false;
+            }
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * Drops the pending tasks, and interrupts the network task that is running.
+         * Can be called from any thread, also from a task of the session.
+         */
+        public void cancel() {
+            int numDropped;
+            synchronized (this) {
+                if (mIsCancelled) {
+                    return;
+                }
+                mIsCancelled = true;
+                mHandler.removeCallbacksAndMessages(null);
+                numDropped = mNumAudioTasks;
+                mNumAudioTasks = 0;
+                for (Task task : mNetworkTasks) {
+                    onSubmit(task.mLane, -1);
+                }
+                mNetworkTasks.clear();
+                if (mNetworkThread != null && mNetworkThread != Thread.currentThread()) {
+                    mNetworkThread.interrupt();
+                }
+            }
+            onSubmit(Lane.AUDIO, -numDropped);
+            Log.i(mName + ": cancelled: " + getStats());
+        }
+
+        private void onNetworkTaskDone() {
+            Task next;
+            synchronized (this) {
+                mNetworkThread = null;
+                next = mNetworkTasks.poll();
+                mActiveNetworkTask = next;
+            }
+            if (next != null) {
+                start(next);
+            }
+        }
+
+        private class Task implements Runnable {
+            private final Lane mLane;
+            private final Runnable mRunnable;
+            private long mTime;
+
+            Task(Lane lane, Runnable runnable, long time) {
+                mLane = lane;
+                mRunnable = runnable;
+                mTime = time;
+            }
+
+            @Override
+            public void run() {
+                if (mLane == Lane.AUDIO) {
+                    synchronized (Session.this) {
+                        if (mIsCancelled) {
+                            // Dropped by cancel
+                            return;
+                        }
+                        mNumAudioTasks--;
+                        mFreeAudioTask = this;
+                    }
+                    onStart(mLane, SystemClock.uptimeMillis() - mTime);
+                    mRunnable.run();
+                    return;
+                }
+                onStart(mLane, SystemClock.uptimeMillis() - mTime);
+                synchronized (Session.this) {
+                    mNetworkThread = Thread.currentThread();
+                }
+                try {
+                    if (!mIsCancelled) {
+                        mRunnable.run();
+                    }
+                } finally {
+                    // The pool thread must not stay interrupted
+                    Thread.interrupted();
+                    onNetworkTaskDone();
+                }
+            }
+        }
+    }
+
+    private static class NamingThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private int mCount;
+
+        NamingThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+            return new Thread(runnable, mPrefix + ++mCount);
+        }
+    }
+
+    private static class LaneStats {
+        private int mNumPending;
+        private long mNumTasks;
+        private float mLatency;
+        private long mMaxLatency;
+    }
+}
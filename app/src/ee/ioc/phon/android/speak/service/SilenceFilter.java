@@ -0,0 +1,142 @@
+package ee.ioc.phon.android.speak.service;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.utils.VoiceActivityDetector;
+
+/**
+ * Collapses the long silences of the raw audio stream, using the VoiceActivityDetector: passes the speech
+ * frames, and the padding of silence before and after them, and drops the rest of the silence.
+ * I.e. a silence is shortened to at most twice the padding.
+ * <p>
+ * The audio can be given in chunks of any size, the part of the chunk that does not fill a whole frame
+ * is kept until the next chunk (or the last chunk).
+ * <p>
+ * The filter reuses its output array, i.e. in the steady state, it does not allocate.
+ */
+class SilenceFilter {
+
+    interface Output {
+        void write(byte[] audio, int offset, int length);
+    }
+
+    // Pauses within the speech up to this length (in milliseconds) are passed as speech
+    private static final int HANGOVER = 200;
+
+    private final VoiceActivityDetector mVad;
+    private final int mFrameSize;
+    private final int mPaddingFrames;
+
+    // Start of the frame that has not been completed yet
+    private final byte[] mPartialFrame;
+    private int mPartialFrameLength;
+    // Silent frames that are passed if speech follows
+    private final ArrayDeque<byte[]> mPrePadding = new ArrayDeque<>();
+    // Frames of the pre-padding that have been passed, reused for the next pre-padding
+    private final ArrayDeque<byte[]> mFreeFrames = new ArrayDeque<>();
+    // Number of silent frames since the last speech frame
+    private int mNumSilentFrames;
+    // Output of the current chunk, grows to the size of the largest output
+    private byte[] mOut = new byte[0];
+    private int mOutLength;
+
+    private long mNumBytesIn;
+    private long mNumBytesOut;
+
+    /**
+     * @param sampleRate sample rate in Hz
+     * @param threshold  energy (in dB) above the noise floor that makes a frame speech
+     * @param padding    max length (in milliseconds) of silence that is passed before and after speech
+     */
+    SilenceFilter(int sampleRate, int threshold, int padding) {
+        mVad = new VoiceActivityDetector(sampleRate, threshold, HANGOVER);
+        mFrameSize = mVad.getFrameSize();
+        mPaddingFrames = padding / VoiceActivityDetector.FRAME_LENGTH;
+        mPartialFrame = new byte[mFrameSize];
+        // The silence before the first speech is treated as the silence after speech
+        mNumSilentFrames = mPaddingFrames;
+    }
+
+    /**
+     * @param isLast true iff this is the last chunk, i.e. also the incomplete frame is passed
+     * @return audio to send (possibly empty)
+     */
+    synchronized byte[] filter(byte[] raw, boolean isLast) {
+        filterChunk(raw, isLast);
+        return Arrays.copyOf(mOut, mOutLength);
+    }
+
+    /**
+     * Writes the audio to send (if any) to the given output. The output must not keep the array.
+     *
+     * @param isLast true iff this is the last chunk, i.e. also the incomplete frame is passed
+     */
+    synchronized void filter(byte[] raw, boolean isLast, Output output) {
+        filterChunk(raw, isLast);
+        if (mOutLength > 0) {
+            output.write(mOut, 0, mOutLength);
+        }
+    }
+
+    private void filterChunk(byte[] raw, boolean isLast) {
+        mOutLength = 0;
+        if (raw != null) {
+            mNumBytesIn += raw.length;
+            int offset = 0;
+            while (offset < raw.length) {
+                int length = Math.min(raw.length - offset, mFrameSize - mPartialFrameLength);
+                System.arraycopy(raw, offset, mPartialFrame, mPartialFrameLength, length);
+                mPartialFrameLength += length;
+                offset += length;
+                if (mPartialFrameLength == mFrameSize) {
+                    addFrame();
+                    mPartialFrameLength = 0;
+                }
+            }
+        }
+        if (isLast) {
+            write(mPartialFrame, mPartialFrameLength);
+            mPartialFrameLength = 0;
+        }
+        mNumBytesOut += mOutLength;
+        if (isLast) {
+            Log.i("Silence filter: passed " + mNumBytesOut + " of " + mNumBytesIn + " bytes");
+        }
+    }
+
+    private void addFrame() {
+        if (mVad.isSpeech(mPartialFrame, 0)) {
+            while (!mPrePadding.isEmpty()) {
+                byte[] frame = mPrePadding.poll();
+                write(frame, mFrameSize);
+                mFreeFrames.add(frame);
+            }
+            write(mPartialFrame, mFrameSize);
+            mNumSilentFrames = 0;
+        } else if (mNumSilentFrames < mPaddingFrames) {
+            // Padding after speech
+            write(mPartialFrame, mFrameSize);
+            mNumSilentFrames++;
+        } else if (mPaddingFrames > 0) {
+            // Possibly padding before speech, the oldest frame is dropped
+            byte[] frame = mPrePadding.size() < mPaddingFrames ? obtainFrame() : mPrePadding.poll();
+            System.arraycopy(mPartialFrame, 0, frame, 0, mFrameSize);
+            mPrePadding.add(frame);
+        }
+    }
+
+    private byte[] obtainFrame() {
+        byte[] frame = mFreeFrames.poll();
+        return frame == null ? new byte[mFrameSize] : frame;
+    }
+
+    private void write(byte[] audio, int length) {
+        if (mOutLength + length > mOut.length) {
+            mOut = Arrays.copyOf(mOut, Math.max(mOutLength + length, 2 * mOut.length));
+        }
+        System.arraycopy(audio, 0, mOut, mOutLength, length);
+        mOutLength += length;
+    }
+}
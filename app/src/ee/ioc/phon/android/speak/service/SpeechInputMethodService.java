@@ -145,6 +145,14 @@ public class SpeechInputMethodService extends InputMethodService {
             return;
         }
 
+        // Connect to the server of the previous session while the user is preparing to speak
+        if (PreferenceUtils.getPrefBoolean(mPrefs, mRes, R.string.keyWsPrewarm, R.bool.defaultWsPrewarm)) {
+            WebSocketPrewarmer.prewarm();
+        }
+
+        // Record the last moment of audio while the user is preparing to speak
+        PreRollRecorder.start(this);
+
         mInputView.setListener(getSpeechInputViewListener(editorInfo.packageName));
         mShowPartialResults = PreferenceUtils.getPrefBoolean(mPrefs, mRes, R.string.keyImeShowPartialResults, R.bool.defaultImeShowPartialResults);
 
@@ -170,6 +178,8 @@ public class SpeechInputMethodService extends InputMethodService {
         if (!finishingInput) {
             closeSession();
         }
+        WebSocketPrewarmer.release();
+        PreRollRecorder.release();
     }
 
 
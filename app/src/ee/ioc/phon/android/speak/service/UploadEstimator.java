@@ -0,0 +1,163 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.os.SystemClock;
+
+import ee.ioc.phon.android.speak.Log;
+
+/**
+ * Estimates the upload bandwidth and the round-trip time (shared by all the sessions of the process),
+ * and picks the audio format of the next session: the configured format if the link can carry it
+ * in real time (with some headroom), otherwise FLAC, otherwise FLAC at a lower sample rate.
+ * <p>
+ * The bandwidth is measured only when the link is the bottleneck (e.g. a write that blocks, or a socket
+ * that stays buffering), i.e. if there are no such measurements, then the link is assumed to keep up.
+ * A send backlog that grows during the session caps the estimate below the rate of the current format,
+ * so that the next session (or the next connection) steps down. The format of the running session
+ * does not change, because the server is told the format when the session starts.
+ * The estimates expire after a while, because the device can move to another network.
+ */
+final class UploadEstimator {
+
+    // Measurements older than this are ignored
+    private static final int MAX_AGE = 5 * 60 * 1000;
+    // Weight of the latest measurement in the moving average
+    private static final float WEIGHT = 0.3f;
+    // The link must be this much faster than the audio format
+    private static final float HEADROOM = 1.5f;
+    // Expected size of FLAC compared to raw audio
+    private static final float FLAC_RATIO = 0.5f;
+    // Sample rate of the lowest format
+    private static final int LOW_SAMPLE_RATE = 8000;
+    // Transfers that take less time do not tell much about the bandwidth
+    private static final int MIN_TRANSFER_TIME = 20;
+
+    private static final String RAW = "audio/x-raw";
+    private static final String FLAC = "audio/x-flac";
+
+    // Bytes per second, -1 if unknown
+    private static float sBandwidth = -1;
+    private static long sBandwidthTime;
+    // Milliseconds, -1 if unknown
+    private static float sRtt = -1;
+    private static long sRttTime;
+
+    private UploadEstimator() {
+    }
+
+    /**
+     * Adds a transfer of the given number of bytes, during which the link was the bottleneck.
+     */
+    static synchronized void onTransfer(long numBytes, long time) {
+        if (time < MIN_TRANSFER_TIME || numBytes <= 0) {
+            return;
+        }
+        float bandwidth = 1000f * numBytes / time;
+        sBandwidth = isFresh(sBandwidthTime) ? WEIGHT * bandwidth + (1 - WEIGHT) * sBandwidth : bandwidth;
+        sBandwidthTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Adds a round-trip time, e.g. the time it took to open the connection.
+     */
+    static synchronized void onRoundTrip(long time) {
+        sRtt = isFresh(sRttTime) ? WEIGHT * time + (1 - WEIGHT) * sRtt : time;
+        sRttTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Reports that the audio (at the given number of bytes per second) is sent slower than it is
+     * recorded, i.e. the bandwidth is below it.
+     */
+    static synchronized void onBacklog(int bytesPerSecond) {
+        float bandwidth = bytesPerSecond / HEADROOM;
+        if (!isFresh(sBandwidthTime) || bandwidth < sBandwidth) {
+            Log.i("Upload backlog, capping the bandwidth estimate: " + Math.round(bandwidth) + " B/s");
+            sBandwidth = bandwidth;
+        }
+        sBandwidthTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * @return bandwidth in bytes per second, or -1 if unknown
+     */
+    static synchronized float getBandwidth() {
+        return isFresh(sBandwidthTime) ? sBandwidth : -1;
+    }
+
+    /**
+     * @return round-trip time in milliseconds, or -1 if unknown
+     */
+    static synchronized float getRtt() {
+        return isFresh(sRttTime) ? sRtt : -1;
+    }
+
+    /**
+     * @return number of bytes per second of the given audio format (estimated for FLAC)
+     */
+    static int getBytesPerSecond(String encoderType, int sampleRate) {
+        int bytesPerSecond = 2 * sampleRate;
+        if (FLAC.equals(encoderType)) {
+            return (int) (FLAC_RATIO * bytesPerSecond);
+        }
+        return bytesPerSecond;
+    }
+
+    /**
+     * Picks the format of the next session: the first of the configured format, FLAC, and FLAC at
+     * a lower sample rate, that the link can carry. If none then the last one.
+     *
+     * @param encoderType configured encoder type (null for raw)
+     * @param sampleRate  configured sample rate
+     */
+    static Format pick(String encoderType, int sampleRate) {
+        float bandwidth = getBandwidth();
+        Format format = new Format(encoderType, sampleRate);
+        if (bandwidth < 0) {
+            return format;
+        }
+        Format[] formats = {
+                format,
+                new Format(FLAC, sampleRate),
+                new Format(FLAC, Math.min(sampleRate, LOW_SAMPLE_RATE))
+        };
+        for (Format f : formats) {
+            format = f;
+            if (HEADROOM * format.getBytesPerSecond() <= bandwidth) {
+                break;
+            }
+        }
+        Log.i("Upload: " + Math.round(bandwidth) + " B/s, RTT: " + Math.round(getRtt()) + " ms, picked: " + format);
+        return format;
+    }
+
+    private static boolean isFresh(long time) {
+        return time > 0 && SystemClock.uptimeMillis() - time < MAX_AGE;
+    }
+
+    static final class Format {
+        private final String mEncoderType;
+        private final int mSampleRate;
+
+        Format(String encoderType, int sampleRate) {
+            mEncoderType = encoderType;
+            mSampleRate = sampleRate;
+        }
+
+        String getEncoderType() {
+            return mEncoderType;
+        }
+
+        int getSampleRate() {
+            return mSampleRate;
+        }
+
+        int getBytesPerSecond() {
+            return UploadEstimator.getBytesPerSecond(mEncoderType, mSampleRate);
+        }
+
+        @Override
+        public String toString() {
+            return (mEncoderType == null ? RAW : mEncoderType) + " " + mSampleRate + " Hz";
+        }
+    }
+}
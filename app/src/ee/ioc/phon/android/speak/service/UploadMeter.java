@@ -0,0 +1,73 @@
+package ee.ioc.phon.android.speak.service;
+
+/**
+ * Keeps track of the audio of one connection on its way to the server: the bytes that have been
+ * queued for sending (e.g. handed to the socket), and the bytes that have been sent. Reports the
+ * transfers, and a backlog that grows beyond a few seconds of audio, to the UploadEstimator.
+ * <p>
+ * The backlog is also expressed as the lag behind real time, i.e. the duration of the audio
+ * that has not been sent. If the lag exceeds the configured cap, then one of the policies applies:
+ * wait (i.e. stop taking more audio until the backlog is sent), drop silence, or fail.
+ */
+class UploadMeter {
+
+    // Values of the upload lag policy preference
+    static final String POLICY_WAIT = "wait";
+    static final String POLICY_DROP_SILENCE = "dropSilence";
+    static final String POLICY_FAIL = "fail";
+
+    // Backlog (in seconds of audio) that is reported to the estimator
+    private static final float BACKLOG_SECONDS = 2;
+
+    private final int mBytesPerSecond;
+
+    private long mNumBytesQueued;
+    private long mNumBytesSent;
+    private boolean mIsBacklogReported;
+
+    /**
+     * @param bytesPerSecond number of bytes per second of the audio format
+     */
+    UploadMeter(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    synchronized void onQueued(int numBytes) {
+        mNumBytesQueued += numBytes;
+        if (!mIsBacklogReported && getNumBytesOutstanding() > BACKLOG_SECONDS * mBytesPerSecond) {
+            mIsBacklogReported = true;
+            UploadEstimator.onBacklog(mBytesPerSecond);
+        }
+    }
+
+    /**
+     * @param time time (in milliseconds) it took to send the bytes, if the link was the bottleneck, otherwise 0
+     */
+    synchronized void onSent(long numBytes, long time) {
+        mNumBytesSent += numBytes;
+        if (time > 0) {
+            UploadEstimator.onTransfer(numBytes, time);
+        }
+    }
+
+    /**
+     * @return number of bytes that have been queued but not sent
+     */
+    synchronized long getNumBytesOutstanding() {
+        return mNumBytesQueued - mNumBytesSent;
+    }
+
+    /**
+     * @return duration (in seconds) of the given number of bytes of audio
+     */
+    float toSeconds(long numBytes) {
+        return (float) numBytes / mBytesPerSecond;
+    }
+
+    /**
+     * @return duration (in seconds) of the audio that has been queued but not sent
+     */
+    float getLag() {
+        return toSeconds(getNumBytesOutstanding());
+    }
+}
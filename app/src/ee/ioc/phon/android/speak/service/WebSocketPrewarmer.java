@@ -0,0 +1,213 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.WebSocket;
+
+import ee.ioc.phon.android.speak.Log;
+
+/**
+ * Opens a WebSocket speculatively (e.g. when the IME becomes visible) so that the DNS lookup,
+ * the TCP/TLS handshakes and the HTTP upgrade are done before the user presses the mic button.
+ * The socket is opened to the URL of the most recent session, and is parked until the next session
+ * takes it over, or until the idle timeout expires.
+ * <p>
+ * The socket is only handed over if its URL is the URL of the session, including the editor info
+ * parameters, i.e. the server always gets the editor context of the session. (A socket prewarmed
+ * for one text field is thus not used by the next field, if the fields differ.)
+ * <p>
+ * In the duplex mode, the socket of a finished session is parked in the same way,
+ * so that the next session can continue on it.
+ */
+final class WebSocketPrewarmer {
+
+    // Close the parked socket if it is not taken over within this time
+    private static final int IDLE_TIMEOUT = 15000;
+    // Close the parked duplex socket if it is not taken over within this time
+    private static final int DUPLEX_IDLE_TIMEOUT = 60000;
+
+    private static final String PROTOCOL = "";
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final Runnable RELEASE_TASK = new Runnable() {
+        @Override
+        public void run() {
+            Log.i("Prewarmed socket: idle timeout");
+            release();
+        }
+    };
+
+    private static String sLastUrl;
+
+    // URL of the parked (or connecting) socket
+    private static String sUrl;
+    private static WebSocket sWebSocket;
+    private static boolean sIsConnecting;
+    // Session that is waiting for the connection to complete
+    private static AsyncHttpClient.WebSocketConnectCallback sWaitingCallback;
+
+    private WebSocketPrewarmer() {
+    }
+
+    /**
+     * Remembers the URL of the current session, to be used when prewarming for the next session.
+     */
+    static synchronized void setLastUrl(String url) {
+        sLastUrl = url;
+    }
+
+    /**
+     * Opens a socket to the URL of the most recent session, unless a socket to this URL
+     * is already parked.
+     */
+    static synchronized void prewarm() {
+        if (sLastUrl == null) {
+            return;
+        }
+        if (sLastUrl.equals(sUrl) && (sIsConnecting || isOpen(sWebSocket))) {
+            HANDLER.removeCallbacks(RELEASE_TASK);
+            HANDLER.postDelayed(RELEASE_TASK, IDLE_TIMEOUT);
+            return;
+        }
+        release();
+        Log.i("Prewarming: " + sLastUrl);
+        sUrl = sLastUrl;
+        sIsConnecting = true;
+        AsyncHttpClient.getDefaultInstance().websocket(sLastUrl, PROTOCOL, new AsyncHttpClient.WebSocketConnectCallback() {
+            @Override
+            public void onCompleted(Exception ex, WebSocket webSocket) {
+                onConnected(ex, webSocket);
+            }
+        });
+        HANDLER.postDelayed(RELEASE_TASK, IDLE_TIMEOUT);
+    }
+
+    /**
+     * Parks the socket of a finished session, so that the next session to the same URL can
+     * continue on it. Messages that arrive while the socket is parked (e.g. the adaptation state of
+     * the finished utterance) are ignored.
+     */
+    static synchronized void park(String url, final WebSocket webSocket) {
+        release();
+        if (sWaitingCallback != null) {
+            webSocket.close();
+            return;
+        }
+        Log.i("Parking: " + url);
+        sUrl = url;
+        sWebSocket = webSocket;
+        webSocket.setStringCallback(new WebSocket.StringCallback() {
+            @Override
+            public void onStringAvailable(String s) {
+                Log.i("Parked socket: ignoring: " + s);
+            }
+        });
+        setClosedCallback(webSocket);
+        HANDLER.postDelayed(RELEASE_TASK, DUPLEX_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Hands the parked socket over to the session, if the socket was opened to the given URL.
+     * If the socket is still connecting, then the callback is called once the connection completes.
+     *
+     * @return true iff the callback will be called with the prewarmed socket
+     */
+    static synchronized boolean take(String url, AsyncHttpClient.WebSocketConnectCallback callback) {
+        if (sUrl == null || !sUrl.equals(url)) {
+            return false;
+        }
+        HANDLER.removeCallbacks(RELEASE_TASK);
+        if (sIsConnecting) {
+            Log.i("Prewarmed socket: waiting for the connection");
+            sWaitingCallback = callback;
+            return true;
+        }
+        WebSocket webSocket = sWebSocket;
+        clear();
+        if (!isOpen(webSocket)) {
+            return false;
+        }
+        Log.i("Prewarmed socket: taken over");
+        callback.onCompleted(null, webSocket);
+        return true;
+    }
+
+    /**
+     * Closes the parked socket, e.g. when the IME is hidden.
+     */
+    static synchronized void release() {
+        HANDLER.removeCallbacks(RELEASE_TASK);
+        if (sWaitingCallback == null) {
+            if (isOpen(sWebSocket)) {
+                sWebSocket.close();
+            }
+            clear();
+        }
+    }
+
+    private static synchronized void onConnected(Exception ex, final WebSocket webSocket) {
+        sIsConnecting = false;
+        AsyncHttpClient.WebSocketConnectCallback callback = sWaitingCallback;
+        if (callback != null) {
+            // The session has already asked for this socket
+            clear();
+            callback.onCompleted(ex, webSocket);
+            return;
+        }
+        if (ex != null) {
+            Log.e("Prewarming failed", ex);
+            clear();
+            return;
+        }
+        if (sUrl == null) {
+            // Released while connecting
+            webSocket.close();
+            return;
+        }
+        sWebSocket = webSocket;
+        // A message or close before the handover (e.g. "server busy") makes the socket unusable
+        webSocket.setStringCallback(new WebSocket.StringCallback() {
+            @Override
+            public void onStringAvailable(String s) {
+                Log.i("Prewarmed socket: " + s);
+                drop(webSocket);
+            }
+        });
+        setClosedCallback(webSocket);
+    }
+
+    private static void setClosedCallback(final WebSocket webSocket) {
+        CompletedCallback closedCallback = new CompletedCallback() {
+            @Override
+            public void onCompleted(Exception ex) {
+                drop(webSocket);
+            }
+        };
+        webSocket.setClosedCallback(closedCallback);
+        webSocket.setEndCallback(closedCallback);
+    }
+
+    private static synchronized void drop(WebSocket webSocket) {
+        if (sWebSocket == webSocket) {
+            if (webSocket.isOpen()) {
+                webSocket.close();
+            }
+            clear();
+        }
+    }
+
+    private static void clear() {
+        sUrl = null;
+        sWebSocket = null;
+        sIsConnecting = false;
+        sWaitingCallback = null;
+    }
+
+    private static boolean isOpen(WebSocket webSocket) {
+        return webSocket != null && webSocket.isOpen();
+    }
+}
@@ -1,11 +1,13 @@
 package ee.ioc.phon.android.speak.service;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.Process;
+import android.os.SystemClock;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
 
@@ -14,6 +16,9 @@ import com.koushikdutta.async.http.AsyncHttpClient;
 import com.koushikdutta.async.http.AsyncSSLSocketMiddleware;
 import com.koushikdutta.async.http.WebSocket;
 
+import org.json.JSONException;
+
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.security.KeyManagementException;
@@ -22,6 +27,9 @@ import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeoutException;
 
 import javax.net.ssl.SSLContext;
@@ -32,19 +40,38 @@ import ee.ioc.phon.android.speak.ChunkedWebRecSessionBuilder;
 import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.utils.QueryUtils;
+import ee.ioc.phon.android.speak.utils.Utils;
 import ee.ioc.phon.android.speechutils.AudioRecorder;
-import ee.ioc.phon.android.speechutils.EncodedAudioRecorder;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
 /**
  * Implements RecognitionService, connects to the server via WebSocket.
+ * <p>
+ * Optionally uses a pool of servers (the configured server and the WebSocket servers in the
+ * server list): the session goes to the least loaded server, and moves to the next server if the
+ * server is busy or cannot be connected to. The audio recorded so far is then sent to the next server.
+ * <p>
+ * Optionally hedges the session: if the server has not returned any results within the deadline,
+ * then the audio (starting with the audio recorded so far) is sent also to a backup server.
+ * The connection that returns the first final result wins, and the other connection is closed.
+ * <p>
+ * In the unlimited duration mode, a connection that fails after it was opened is reopened
+ * (with an increasing delay), and the audio since the last final result is sent again.
+ * <p>
+ * In the duplex mode (see {@link #isDuplex()}), the end of the utterance does not end the socket,
+ * and the socket is parked after the final result, to carry the next utterance.
  */
 public class WebSocketRecognitionService extends AbstractRecognitionService {
 
-    // When does the chunk sending start and what is its interval
-    private static final int TASK_DELAY_SEND = 100;
-    private static final int TASK_INTERVAL_SEND = 200;
+    // Max size of the audio that is waiting to be sent, or is kept for sending it to
+    // another server (about 30 sec of raw audio)
+    private static final int FRAME_BUFFER_SIZE = 1024 * 1024;
+    // Max size of a message that the sender sends, i.e. the sender sends the audio that has
+    // arrived since the previous message, in messages of up to this size
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+    // Interval of checking if the socket has sent its backlog, while the sender waits for it
+    private static final int BACKLOG_POLL_INTERVAL = 20;
     // Limit to the number of hypotheses that the service will return
     // TODO: make configurable
     private static final int MAX_HYPOTHESES = 100;
@@ -52,33 +79,79 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
     // TODO: make configurable
     private static final boolean PRETTY_PRINT = true;
 
+    // Max total size of the stored adaptation states
+    private static final long ADAPTATION_STATE_STORE_SIZE = 1024 * 1024;
+
+    // Delay before the first reconnection attempt, doubled with each attempt
+    private static final int RECONNECT_DELAY = 500;
+    private static final int MAX_RECONNECTS = 5;
+
     private static final String EOS = "EOS";
 
     private static final String PROTOCOL = "";
 
     private static final int MSG_RESULT = 1;
     private static final int MSG_ERROR = 2;
+    private static final int MSG_FINISH = 3;
+    private static final int MSG_HEDGE = 4;
+    private static final int MSG_RECONNECT = 5;
 
-    private volatile Looper mSendLooper;
-    private volatile Handler mSendHandler;
+    // Pushes the recorded audio into the frame buffer, in the audio lane of the session scheduler
+    private SessionScheduler.Session mPumpSession;
 
+    // Parses the server responses and builds the result bundles in the audio lane
+    // of the session scheduler (referred to as the result thread)
     private MyHandler mMyHandler;
 
-    private Runnable mSendRunnable;
+    // Delivers the finished callbacks on the main thread
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Sequence number of the most recently posted callback, incremented only on the result thread
+    private volatile int mResultSeq;
+
+    private AudioFrameBuffer mFrameBuffer;
+
+    // Passes the recorded audio to the frame buffer and to the client
+    private volatile AudioTee mTee;
+    private boolean mIsRecordingFinished;
+    // Collapses the long silences before the audio is put into the frame buffer, null if off
+    private volatile SilenceFilter mSilenceFilter;
+    // Set by the pump if the silence in the current frame is dropped
+    private volatile boolean mIsDroppingSilence;
+    private int mNumBytesDropped;
 
-    private WebSocket mWebSocket;
+    // Open connections
+    private final List<Connection> mConnections = new ArrayList<>();
+    private int mNextConnectionId;
+    // Servers that the current session has connected to
+    private final Set<String> mUsedServerUrls = new HashSet<>();
 
-    private String mUrl;
+    // Server URLs (without the query parameters), the first one is the configured server
+    private List<String> mServerUrls;
+    // Query parameters, and the language and device ID of the adaptation state
+    private String mArgs;
+    private String mLang;
+    private String mDeviceId;
+    // Number of bytes per second of the audio format
+    private int mBytesPerSecond;
 
-    private boolean mIsEosSent;
+    private boolean mIsServerPool;
+    private boolean mIsPollStatus;
+    // Hedging deadline in milliseconds, 0 if hedging is off
+    private int mHedgeDeadline;
 
-    private int mNumBytesSent;
+    private AdaptationStateStore mAdaptationStateStore;
+    // Writes the adaptation states to the disk in the network lane, in the order of arrival
+    private final SessionScheduler.Session mStoreSession = SessionScheduler.newSession("WsAdaptationState");
 
     @Override
     void configure(Intent recognizerIntent) throws IOException {
         ChunkedWebRecSessionBuilder builder = new ChunkedWebRecSessionBuilder(this, getExtras(), null);
-        mUrl = getServerUrl(R.string.keyWsServer, R.string.defaultWsServer)
-                + getAudioRecorder().getWsArgs() + QueryUtils.getQueryParams(recognizerIntent, builder, "UTF-8");
+        String serverUrl = getServerUrl(R.string.keyWsServer, R.string.defaultWsServer);
+        String args = getAudioRecorder().getWsArgs() + QueryUtils.getQueryParams(recognizerIntent, builder, "UTF-8");
+        configureServer(serverUrl, args, builder);
+        configureServerPoolAndHedge(serverUrl);
+        configureUpload();
         boolean isUnlimitedDuration = getExtras().getBoolean(Extras.EXTRA_UNLIMITED_DURATION, false)
                 || getExtras().getBoolean(Extras.EXTRA_DICTATION_MODE, false);
         configureHandler(isUnlimitedDuration,
@@ -87,22 +160,37 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
 
     @Override
     void connect() {
-        startSocket(mUrl);
+        startSocket();
     }
 
     @Override
     void disconnect() {
-        if (mSendHandler != null) mSendHandler.removeCallbacks(mSendRunnable);
-        if (mSendLooper != null) {
-            mSendLooper.quit();
-            mSendLooper = null;
+        SessionScheduler.Session pumpSession;
+        synchronized (this) {
+            pumpSession = mPumpSession;
+            mPumpSession = null;
         }
+        if (pumpSession != null) {
+            pumpSession.cancel();
+        }
+        // Callbacks that have not been delivered yet belong to the finished session
+        cancelResultHandler();
+        mMainHandler.removeCallbacksAndMessages(null);
 
-        if (mWebSocket != null && mWebSocket.isOpen()) {
-            mWebSocket.end(); // TODO: or close?
-            mWebSocket = null;
+        List<Connection> connections;
+        synchronized (mConnections) {
+            connections = new ArrayList<>(mConnections);
+            mConnections.clear();
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+        if (mFrameBuffer != null) {
+            mFrameBuffer.release();
+        }
+        if (mNumBytesDropped > 0) {
+            Log.i("Number of bytes of silence dropped: " + mNumBytesDropped);
         }
-        Log.i("Number of bytes sent: " + mNumBytesSent);
     }
 
     @Override
@@ -111,227 +199,1041 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
                 R.string.keyImeAudioFormat, R.string.defaultAudioFormat);
     }
 
+    /**
+     * @return true iff the socket carries many utterances, i.e. the server returns the final result
+     * of the utterance after the end-of-utterance message and keeps the socket open
+     */
+    boolean isDuplex() {
+        return false;
+    }
+
+    /**
+     * @return message that is sent after the audio of the utterance
+     */
+    String getEndOfUtterance() {
+        return EOS;
+    }
+
+    /**
+     * @return lag of the connection that is the least behind, i.e. the audio that has been recorded
+     * but has not been sent (including the audio that waits in the frame buffer)
+     */
+    @Override
+    float getUploadLag() {
+        float lag = 0;
+        // Called by the pump for every frame, i.e. without copying the list
+        synchronized (mConnections) {
+            for (int i = 0; i < mConnections.size(); i++) {
+                float connectionLag = mConnections.get(i).getLag();
+                if (i == 0 || connectionLag < lag) {
+                    lag = connectionLag;
+                }
+            }
+        }
+        return lag;
+    }
+
+    @Override
+    boolean isAdaptiveAudio() {
+        return PreferenceUtils.getPrefBoolean(getSharedPreferences(), getResources(), R.string.keyImeAdaptiveAudio, R.bool.defaultAdaptiveAudio);
+    }
+
     @Override
     boolean isAudioCues() {
         return PreferenceUtils.getPrefBoolean(getSharedPreferences(), getResources(), R.string.keyImeAudioCues, R.bool.defaultImeAudioCues);
     }
 
-    void configureHandler(boolean isUnlimitedDuration, boolean isPartialResults) {
-        mMyHandler = new MyHandler(this, isUnlimitedDuration, isPartialResults);
+    /**
+     * Drains the audio that was recorded after the last frame through the tee (i.e. to the frame buffer
+     * and to the client), instead of returning it.
+     */
+    @Override
+    byte[] consumeRemainingRecording(AudioRecorder recorder) {
+        AudioTee tee = mTee;
+        if (tee != null) {
+            drain(tee, recorder, true);
+        }
+        return null;
     }
 
-    private void handleResult(String text) {
-        Message msg = new Message();
-        msg.what = MSG_RESULT;
-        msg.obj = text;
-        mMyHandler.sendMessage(msg);
+    /**
+     * Passes the pre-roll (the first time) and then the audio recorded since the last drain through the tee.
+     * The pre-roll is taken only after the start cue, because it ends with the comfort noise that replaces the cue.
+     */
+    private void drain(AudioTee tee, AudioRecorder recorder, boolean isLast) {
+        synchronized (tee) {
+            byte[] preRoll = takePreRoll();
+            if (preRoll != null) {
+                tee.offer(preRoll);
+            }
+            tee.drain(recorder, isLast);
+        }
     }
 
-    private void handleException(Exception error) {
-        Message msg = new Message();
-        msg.what = MSG_ERROR;
-        msg.obj = error;
-        mMyHandler.sendMessage(msg);
+    /**
+     * Pushes EOS without waiting for the next frame interval. If the pump has not started yet,
+     * then it does this as soon as it starts.
+     */
+    @Override
+    void afterRecording(byte[] recording) {
+        SessionScheduler.Session pumpSession;
+        synchronized (this) {
+            mIsRecordingFinished = true;
+            pumpSession = mPumpSession;
+        }
+        if (pumpSession != null) {
+            final AudioFrameBuffer buffer = mFrameBuffer;
+            pumpSession.post(new Runnable() {
+                @Override
+                public void run() {
+                    pushEos(buffer);
+                }
+            });
+        }
     }
 
     /**
-     * Opens the socket and starts recording/sending.
+     * Configures the session to use the given server only.
      *
-     * @param url Webservice URL
+     * @param serverUrl server URL without the query parameters, also used to look up the adaptation state
+     * @param args      query parameters
      */
-    void startSocket(String url) {
-        mIsEosSent = false;
-        Log.i(url);
-        AsyncHttpClient client = AsyncHttpClient.getDefaultInstance();
-
-        if (false) {
-            //http://stackoverflow.com/questions/37804816/androidasync-how-to-create-ssl-client-in-websocket-connection
-            AsyncSSLSocketMiddleware sslSocketMiddleware = new AsyncSSLSocketMiddleware(client);
-            SSLContext sslContext = null;
-            try {
-                sslContext = getSSLContext();
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            } catch (KeyManagementException e) {
-                e.printStackTrace();
+    void configureServer(String serverUrl, String args, ChunkedWebRecSessionBuilder builder) {
+        mServerUrls = new ArrayList<>();
+        mServerUrls.add(serverUrl);
+        mArgs = args;
+        mLang = builder.getLang();
+        mDeviceId = builder.getDeviceId();
+        mIsServerPool = false;
+        mIsPollStatus = false;
+        mHedgeDeadline = 0;
+    }
+
+    /**
+     * Adds the WebSocket servers in the server list to the servers of the session, if the server pool
+     * or hedging is enabled in the settings.
+     */
+    void configureServerPoolAndHedge(String serverUrl) {
+        SharedPreferences prefs = getSharedPreferences();
+        Resources res = getResources();
+        mIsServerPool = PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyWsServerPool, R.bool.defaultWsServerPool);
+        mIsPollStatus = mIsServerPool && PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyWsPollStatus, R.bool.defaultWsPollStatus);
+        if (PreferenceUtils.getPrefBoolean(prefs, res, R.string.keyWsHedge, R.bool.defaultWsHedge)) {
+            mHedgeDeadline = PreferenceUtils.getPrefInt(prefs, res, R.string.keyWsHedgeDeadline, R.string.defaultWsHedgeDeadline);
+        }
+        if (mIsServerPool || mHedgeDeadline > 0) {
+            for (String url : Utils.getWsServerUrls(this)) {
+                if (!url.equals(serverUrl)) {
+                    mServerUrls.add(url);
+                }
             }
-            sslSocketMiddleware.setSSLContext(sslContext);
-            client.insertMiddleware(sslSocketMiddleware);
         }
+    }
+
+    void configureUpload() throws IOException {
+        mBytesPerSecond = getAudioFormat().getBytesPerSecond();
+    }
+
+    void configureHandler(boolean isUnlimitedDuration, boolean isPartialResults) {
+        cancelResultHandler();
+        // Only the hypotheses that the caller asks for are read and pretty-printed
+        int maxResults = getExtras().getInt(RecognizerIntent.EXTRA_MAX_RESULTS);
+        if (maxResults <= 0 || maxResults > MAX_HYPOTHESES) {
+            maxResults = MAX_HYPOTHESES;
+        }
+        mMyHandler = new MyHandler(SessionScheduler.getResultLooper(), this, isUnlimitedDuration, isPartialResults, maxResults);
+    }
+
+    private void cancelResultHandler() {
+        if (mMyHandler != null) {
+            mMyHandler.removeCallbacksAndMessages(null);
+        }
+    }
+
+    private void handleResult(Connection connection, String text) {
+        Message.obtain(mMyHandler, MSG_RESULT, connection.mId, 0, text).sendToTarget();
+    }
+
+    private void handleException(Connection connection, Exception error) {
+        Message.obtain(mMyHandler, MSG_ERROR, connection.mId, 0, error).sendToTarget();
+    }
 
-        client.websocket(url, PROTOCOL, new AsyncHttpClient.WebSocketConnectCallback() {
+    private void handleClosed(Connection connection) {
+        Message.obtain(mMyHandler, MSG_FINISH, connection.mId, 0).sendToTarget();
+    }
 
+    /**
+     * Posts the given callback to the main thread. Partial results that are still waiting
+     * to be delivered are skipped, because this callback replaces them.
+     * Must be called from the result thread.
+     */
+    private void postToMain(Runnable runnable) {
+        mResultSeq++;
+        mMainHandler.post(runnable);
+    }
+
+    /**
+     * Posts the (non-final) partial results to the main thread. They are skipped if another
+     * callback is posted before they are delivered. Must be called from the result thread.
+     */
+    private void postPartialResults(final Bundle bundle) {
+        final int seq = ++mResultSeq;
+        mMainHandler.post(new Runnable() {
             @Override
-            public void onCompleted(Exception ex, final WebSocket webSocket) {
-                mWebSocket = webSocket;
+            public void run() {
+                if (seq == mResultSeq) {
+                    onPartialResults(bundle);
+                } else {
+                    Log.i("Skipping partial results, replaced by newer results");
+                }
+            }
+        });
+    }
 
-                if (ex != null) {
-                    handleException(ex);
-                    return;
+    private void postSemiFinalResults(final Bundle bundle) {
+        postToMain(new Runnable() {
+            @Override
+            public void run() {
+                onPartialResults(bundle);
+            }
+        });
+    }
+
+    private void postFinalResults(final Connection connection, final Bundle bundle) {
+        postToMain(new Runnable() {
+            @Override
+            public void run() {
+                connection.mIsEosSent = true;
+                onEndOfSpeech();
+                onResults(bundle);
+            }
+        });
+    }
+
+    private void postError(final int errorCode) {
+        postToMain(new Runnable() {
+            @Override
+            public void run() {
+                onError(errorCode);
+            }
+        });
+    }
+
+    private void postFinish(final Connection connection) {
+        postToMain(new Runnable() {
+            @Override
+            public void run() {
+                handleFinish(connection.mIsEosSent);
+            }
+        });
+    }
+
+    /**
+     * Starts pushing the recorded audio into the frame buffer, and opens the socket (or takes over
+     * the prewarmed socket) to start sending. The audio recorded before the socket is ready
+     * is sent as soon as it is.
+     */
+    void startSocket() {
+        synchronized (this) {
+            mIsRecordingFinished = false;
+        }
+        synchronized (mConnections) {
+            mUsedServerUrls.clear();
+        }
+        mFrameBuffer = new AudioFrameBuffer(FRAME_BUFFER_SIZE);
+        startPump();
+        if (mHedgeDeadline > 0 && mServerUrls.size() > 1) {
+            HedgeStats.onSession();
+            mMyHandler.sendEmptyMessageDelayed(MSG_HEDGE, mHedgeDeadline);
+        }
+        openConnection(pickServer(), true);
+    }
+
+    /**
+     * Picks the server for the next connection of the session, from the servers that the session
+     * has not connected to yet. Without the server pool, the servers are picked in the given order.
+     *
+     * @return server URL or null if all the servers have been used
+     */
+    private String pickServer() {
+        synchronized (mConnections) {
+            if (mIsServerPool) {
+                return WsServerPool.pick(mServerUrls, mUsedServerUrls, mIsPollStatus);
+            }
+            for (String url : mServerUrls) {
+                if (!mUsedServerUrls.contains(url)) {
+                    return url;
                 }
+            }
+        }
+        return null;
+    }
 
-                webSocket.setStringCallback(new WebSocket.StringCallback() {
-                    public void onStringAvailable(String s) {
-                        Log.i(s);
-                        handleResult(s);
-                    }
-                });
-
-                webSocket.setClosedCallback(new CompletedCallback() {
-                    @Override
-                    public void onCompleted(Exception ex) {
-                        if (ex == null) {
-                            Log.e("ClosedCallback");
-                            handleFinish(mIsEosSent);
-                        } else {
-                            Log.e("ClosedCallback: ", ex);
-                            handleException(ex);
-                        }
+    private void openConnection(String serverUrl, boolean isPrimary) {
+        Connection connection;
+        synchronized (mConnections) {
+            connection = new Connection(mNextConnectionId++, serverUrl, isPrimary, mFrameBuffer);
+            mConnections.add(connection);
+            mUsedServerUrls.add(serverUrl);
+        }
+        connection.open();
+    }
+
+    /**
+     * @return open connection with the given ID, or null if it has been closed
+     */
+    private Connection getConnection(int id) {
+        synchronized (mConnections) {
+            for (Connection connection : mConnections) {
+                if (connection.mId == id) {
+                    return connection;
+                }
+            }
+        }
+        return null;
+    }
+
+    private List<Connection> getConnections() {
+        synchronized (mConnections) {
+            return new ArrayList<>(mConnections);
+        }
+    }
+
+    private void closeConnection(Connection connection) {
+        synchronized (mConnections) {
+            mConnections.remove(connection);
+        }
+        connection.close();
+    }
+
+    /**
+     * Opens the connection to the backup server, which first gets the audio recorded so far.
+     * Must be called from the result thread.
+     *
+     * @return true iff the connection was opened
+     */
+    private boolean startHedge() {
+        if (getConnections().size() != 1 || !mFrameBuffer.isReplayable()) {
+            return false;
+        }
+        String serverUrl = pickServer();
+        if (serverUrl == null) {
+            return false;
+        }
+        Log.i("Hedge: no results within " + mHedgeDeadline + " ms, sending also to: " + serverUrl);
+        HedgeStats.onHedge();
+        openConnection(serverUrl, false);
+        return true;
+    }
+
+    /**
+     * Replaces the given connection by a connection to the next server in the pool, which first gets
+     * the audio recorded so far (since the last final result). Must be called from the result thread.
+     *
+     * @return true iff the new connection was opened
+     */
+    private boolean failover(Connection connection) {
+        if (!mIsServerPool || getConnections().size() != 1 || !mFrameBuffer.isReplayable()) {
+            return false;
+        }
+        String serverUrl = pickServer();
+        if (serverUrl == null) {
+            return false;
+        }
+        Log.i(connection + ": not available, moving to: " + serverUrl);
+        closeConnection(connection);
+        openConnection(serverUrl, connection.isPrimary());
+        return true;
+    }
+
+    /**
+     * Starts the pump, which drains the recorded audio through the tee into the frame buffer (the encoded
+     * audio) and to the client (the raw audio), one frame at a time. If the buffer is full, then the pump
+     * leaves the audio in the recorder until the next frame.
+     */
+    private void startPump() {
+        final AudioFrameBuffer buffer = mFrameBuffer;
+        try {
+            mSilenceFilter = newSilenceFilter(getAudioRecorder());
+        } catch (IOException e) {
+            mSilenceFilter = null;
+        }
+        final SilenceFilter silenceFilter = mSilenceFilter;
+        final SilenceFilter.Output output = new SilenceFilter.Output() {
+            @Override
+            public void write(byte[] audio, int offset, int length) {
+                if (mIsDroppingSilence) {
+                    mNumBytesDropped += length;
+                } else {
+                    buffer.put(audio, offset, length);
+                }
+            }
+        };
+        AudioTee tee = new AudioTee();
+        tee.addEncodedSink(new AudioTee.Sink() {
+            @Override
+            public void onFrame(byte[] frame) {
+                if (silenceFilter == null) {
+                    output.write(frame, 0, frame.length);
+                } else {
+                    silenceFilter.filter(frame, false, output);
+                }
+            }
+        });
+        tee.addRawSink(new AudioTee.Sink() {
+            @Override
+            public void onFrame(byte[] frame) {
+                onBufferReceived(frame);
+            }
+        });
+        mTee = tee;
+        // Length of the audio frame in milliseconds
+        final int frameLength = PreferenceUtils.getPrefInt(getSharedPreferences(), getResources(),
+                R.string.keyWsFrameLength, R.string.defaultWsFrameLength);
+
+        final SessionScheduler.Session session = SessionScheduler.newSession("WsPump");
+        synchronized (this) {
+            mPumpSession = session;
+        }
+        mIsDroppingSilence = false;
+        mNumBytesDropped = 0;
+
+        Runnable pumpRunnable = new Runnable() {
+            public void run() {
+                AudioRecorder recorder = getRecorder();
+                if (recorder == null || recorder.getState() != AudioRecorder.State.RECORDING) {
+                    pushEos(buffer);
+                } else if (applyUploadLagPolicy(recorder)) {
+                    if (buffer.hasCapacity() && !isCuePlaying()) {
+                        drain(mTee, recorder, false);
                     }
-                });
-
-                webSocket.setEndCallback(new CompletedCallback() {
-                    @Override
-                    public void onCompleted(Exception ex) {
-                        if (ex == null) {
-                            Log.e("EndCallback");
-                            handleFinish(mIsEosSent);
-                        } else {
-                            Log.e("EndCallback: ", ex);
-                            handleException(ex);
-                        }
+                    boolean success = session.postDelayed(this, frameLength);
+                    if (!success) {
+                        Log.i("Pump stopped, the session has been cancelled");
                     }
-                });
+                }
+            }
+        };
 
-                startSending(webSocket);
+        session.post(pumpRunnable);
+    }
+
+    /**
+     * Applies the policy if the upload lags behind more than the cap. With the wait policy,
+     * the senders wait until the socket has sent its backlog, i.e. the audio waits in the frame buffer
+     * (and in the recorder if the frame buffer is full). Must be called from the pump thread.
+     *
+     * @return false if the session has failed, i.e. the pump must stop
+     */
+    private boolean applyUploadLagPolicy(AudioRecorder recorder) {
+        if (UploadMeter.POLICY_FAIL.equals(getUploadLagPolicy()) && isUploadLagOverCap()) {
+            Log.i("Upload lag over the cap: " + getUploadLag() + " s");
+            postError(SpeechRecognizer.ERROR_NETWORK);
+            return false;
+        }
+        mIsDroppingSilence = isDroppingSilence(recorder);
+        return true;
+    }
+
+    /**
+     * Pushes EOS, provided that the recording has finished (the last frame has then been drained
+     * already). Must be called from the pump thread.
+     */
+    private void pushEos(AudioFrameBuffer buffer) {
+        synchronized (this) {
+            if (!mIsRecordingFinished) {
+                return;
             }
-        });
+        }
+        if (buffer != null) {
+            SilenceFilter silenceFilter = mSilenceFilter;
+            if (silenceFilter != null) {
+                buffer.put(silenceFilter.filter(null, true));
+            }
+            buffer.putEos();
+        }
     }
 
+    private synchronized AdaptationStateStore getAdaptationStateStore() {
+        if (mAdaptationStateStore == null) {
+            mAdaptationStateStore = new AdaptationStateStore(
+                    new File(getFilesDir(), "adaptation_state"), ADAPTATION_STATE_STORE_SIZE);
+        }
+        return mAdaptationStateStore;
+    }
 
-    private void startSending(final WebSocket webSocket) {
-        mNumBytesSent = 0;
-        HandlerThread thread = new HandlerThread("WsSendHandlerThread", Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mSendLooper = thread.getLooper();
-        mSendHandler = new Handler(mSendLooper);
+    private String loadAdaptationState(String key) {
+        if (key == null) {
+            return null;
+        }
+        return getAdaptationStateStore().get(key);
+    }
 
-        // Send chunks to the server
-        mSendRunnable = new Runnable() {
+    private void storeAdaptationState(final String key, WebSocketResponse.AdaptationState adaptationState) {
+        if (key == null) {
+            return;
+        }
+        if (!adaptationState.isValid()) {
+            Log.i("Ignoring adaptation state of type: " + adaptationState.getType());
+            return;
+        }
+        final String message;
+        try {
+            message = adaptationState.toMessage();
+        } catch (JSONException e) {
+            Log.e("Failed to store the adaptation state", e);
+            return;
+        }
+        mStoreSession.execute(new Runnable() {
+            @Override
             public void run() {
-                if (webSocket != null && webSocket.isOpen()) {
-                    AudioRecorder recorder = getRecorder();
-                    if (recorder == null || recorder.getState() != AudioRecorder.State.RECORDING) {
-                        Log.i("Sending: EOS (recorder == null)");
-                        webSocket.send(EOS);
-                        mIsEosSent = true;
-                    } else {
-                        byte[] buffer = recorder.consumeRecordingAndTruncate();
-                        if (recorder instanceof EncodedAudioRecorder) {
-                            send(webSocket, ((EncodedAudioRecorder) recorder).consumeRecordingEncAndTruncate());
-                        } else {
-                            send(webSocket, buffer);
+                getAdaptationStateStore().put(key, message);
+            }
+        });
+    }
+
+
+    /**
+     * WebSocket connection to one server. Its sender reads the session audio from the frame buffer,
+     * starting with the oldest frame in the buffer.
+     */
+    private class Connection {
+        private final int mId;
+        private final String mServerUrl;
+        private final String mUrl;
+        private final String mAdaptationStateKey;
+        private final boolean mIsPrimary;
+        private final AudioFrameBuffer mBuffer;
+        private final UploadMeter mMeter;
+
+        private WebSocket mWebSocket;
+        private SessionScheduler.Session mSendSession;
+        private volatile AudioFrameBuffer.Reader mReader;
+        private boolean mIsClosed;
+        private volatile boolean mIsConnected;
+        private volatile boolean mIsEosSent;
+        // Set if the end of the utterance was sent and its final result was received
+        private volatile boolean mIsUtteranceSent;
+        private volatile boolean mIsUtteranceFinished;
+        private volatile int mNumBytesSent;
+        // Time when the socket started buffering, 0 if it is not buffering
+        private long mBufferingSince;
+
+        Connection(int id, String serverUrl, boolean isPrimary, AudioFrameBuffer buffer) {
+            mId = id;
+            mServerUrl = serverUrl;
+            mUrl = serverUrl + mArgs;
+            mAdaptationStateKey = AdaptationStateStore.makeKey(serverUrl, mLang, mDeviceId);
+            mIsPrimary = isPrimary;
+            mBuffer = buffer;
+            mMeter = new UploadMeter(mBytesPerSecond);
+        }
+
+        boolean isPrimary() {
+            return mIsPrimary;
+        }
+
+        String getServerUrl() {
+            return mServerUrl;
+        }
+
+        /**
+         * @return true iff the socket was opened
+         */
+        boolean isConnected() {
+            return mIsConnected;
+        }
+
+        String getAdaptationStateKey() {
+            return mAdaptationStateKey;
+        }
+
+        void onUtteranceFinished() {
+            mIsUtteranceFinished = true;
+        }
+
+        /**
+         * @return duration (in seconds) of the audio that the server has not received yet, i.e. the audio
+         * in the frame buffer that the sender has not read (all of it if the sender has not started),
+         * and the audio that the socket has not sent
+         */
+        float getLag() {
+            AudioFrameBuffer.Reader reader = mReader;
+            long numBytes = reader == null ? mBuffer.getLength() : reader.getNumBytesAvailable();
+            return mMeter.toSeconds(numBytes + mMeter.getNumBytesOutstanding());
+        }
+
+        /**
+         * Opens the socket (the primary connection can take over the prewarmed socket)
+         * and starts sending once it is open.
+         */
+        void open() {
+            Log.i(mUrl);
+            WsServerPool.onOpen(mServerUrl);
+            final long openTime = SystemClock.uptimeMillis();
+            AsyncHttpClient client = AsyncHttpClient.getDefaultInstance();
+
+            if (false) {
+                //http://stackoverflow.com/questions/37804816/androidasync-how-to-create-ssl-client-in-websocket-connection
+                AsyncSSLSocketMiddleware sslSocketMiddleware = new AsyncSSLSocketMiddleware(client);
+                SSLContext sslContext = null;
+                try {
+                    sslContext = getSSLContext();
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                } catch (KeyManagementException e) {
+                    e.printStackTrace();
+                }
+                sslSocketMiddleware.setSSLContext(sslContext);
+                client.insertMiddleware(sslSocketMiddleware);
+            }
+
+            AsyncHttpClient.WebSocketConnectCallback callback = new AsyncHttpClient.WebSocketConnectCallback() {
+
+                @Override
+                public void onCompleted(Exception ex, final WebSocket webSocket) {
+                    if (ex != null) {
+                        handleException(Connection.this, ex);
+                        return;
+                    }
+
+                    WsServerPool.onConnected(mServerUrl, SystemClock.uptimeMillis() - openTime);
+                    synchronized (Connection.this) {
+                        if (mIsClosed) {
+                            webSocket.close();
+                            return;
                         }
-                        if (buffer.length > 0) {
-                            onBufferReceived(buffer);
+                        mWebSocket = webSocket;
+                        mIsConnected = true;
+                    }
+
+                    webSocket.setStringCallback(new WebSocket.StringCallback() {
+                        public void onStringAvailable(String s) {
+                            Log.i(s);
+                            handleResult(Connection.this, s);
                         }
-                        boolean success = mSendHandler.postDelayed(this, TASK_INTERVAL_SEND);
-                        if (!success) {
-                            Log.i("mSendHandler.postDelayed returned false");
+                    });
+
+                    webSocket.setClosedCallback(new CompletedCallback() {
+                        @Override
+                        public void onCompleted(Exception ex) {
+                            if (ex == null) {
+                                Log.e("ClosedCallback");
+                                handleClosed(Connection.this);
+                            } else {
+                                Log.e("ClosedCallback: ", ex);
+                                handleException(Connection.this, ex);
+                            }
+                        }
+                    });
+
+                    webSocket.setEndCallback(new CompletedCallback() {
+                        @Override
+                        public void onCompleted(Exception ex) {
+                            if (ex == null) {
+                                Log.e("EndCallback");
+                                handleClosed(Connection.this);
+                            } else {
+                                Log.e("EndCallback: ", ex);
+                                handleException(Connection.this, ex);
+                            }
                         }
+                    });
+
+                    startSending(webSocket);
+                }
+            };
+
+            if (mIsPrimary) {
+                WebSocketPrewarmer.setLastUrl(mUrl);
+                if (WebSocketPrewarmer.take(mUrl, callback)) {
+                    return;
+                }
+            }
+            // Only the time of opening a new socket is a round-trip time
+            final AsyncHttpClient.WebSocketConnectCallback connectCallback = callback;
+            client.websocket(mUrl, PROTOCOL, new AsyncHttpClient.WebSocketConnectCallback() {
+                @Override
+                public void onCompleted(Exception ex, WebSocket webSocket) {
+                    if (ex == null) {
+                        UploadEstimator.onRoundTrip(SystemClock.uptimeMillis() - openTime);
                     }
+                    connectCallback.onCompleted(ex, webSocket);
                 }
+            });
+        }
+
+        /**
+         * Closes the socket. In the duplex mode, the socket of a finished utterance is parked instead,
+         * so that the next session can continue on it.
+         */
+        synchronized void close() {
+            if (mIsClosed) {
+                return;
             }
-        };
+            mIsClosed = true;
+            WsServerPool.onClose(mServerUrl);
+            if (mSendSession != null) {
+                mSendSession.cancel();
+                mSendSession = null;
+            }
+            if (mWebSocket != null && mWebSocket.isOpen()) {
+                if (isDuplex() && mIsUtteranceSent && mIsUtteranceFinished) {
+                    WebSocketPrewarmer.park(mUrl, mWebSocket);
+                } else {
+                    mWebSocket.end(); // TODO: or close?
+                }
+            }
+            mWebSocket = null;
+            Log.i("Number of bytes sent: " + mNumBytesSent + " (" + this + ")");
+        }
 
-        mSendHandler.postDelayed(mSendRunnable, TASK_DELAY_SEND);
+        /**
+         * Starts the sender (in the stream lane of the session scheduler, because it runs until the end
+         * of the utterance), which sends each frame as soon as it arrives in the buffer.
+         */
+        private void startSending(final WebSocket webSocket) {
+            Runnable sender = new Runnable() {
+                @Override
+                public void run() {
+                    AudioFrameBuffer.Reader reader = mBuffer.newReader();
+                    mReader = reader;
+                    byte[] bytes = new byte[SEND_BUFFER_SIZE];
+                    try {
+                        // The server must receive the adaptation state before the audio
+                        String adaptationState = loadAdaptationState(mAdaptationStateKey);
+                        if (adaptationState != null && webSocket.isOpen()) {
+                            Log.i("Sending: adaptation state");
+                            webSocket.send(adaptationState);
+                        }
+                        while (webSocket.isOpen()) {
+                            awaitBacklog(webSocket);
+                            int length = reader.read(bytes);
+                            if (length < 0) {
+                                String endOfUtterance = getEndOfUtterance();
+                                Log.i("Sending: " + endOfUtterance);
+                                webSocket.send(endOfUtterance);
+                                mIsEosSent = true;
+                                mIsUtteranceSent = true;
+                                break;
+                            }
+                            send(webSocket, bytes, length);
+                        }
+                    } catch (InterruptedException e) {
+                        Log.i("Sending interrupted");
+                    } finally {
+                        reader.close();
+                    }
+                }
+            };
+            SessionScheduler.Session session = SessionScheduler.newSession("WsSend");
+            synchronized (this) {
+                if (mIsClosed) {
+                    return;
+                }
+                mSendSession = session;
+            }
+            if (!session.executeStream(sender)) {
+                synchronized (this) {
+                    if (mIsClosed) {
+                        return;
+                    }
+                }
+                handleException(this, new IOException("No thread for the sender"));
+            }
+        }
+
+        /**
+         * Hands the audio to the socket. The socket sends it asynchronously, i.e. the bytes are counted
+         * as sent once the socket is no longer buffering. If it was buffering since an earlier frame,
+         * then the link was the bottleneck, and the time tells the bandwidth.
+         */
+        private void send(WebSocket webSocket, byte[] buffer, int length) {
+            if (length > 0) {
+                long now = SystemClock.uptimeMillis();
+                checkSent(webSocket, now);
+                webSocket.send(buffer, 0, length);
+                mMeter.onQueued(length);
+                onAudioSent();
+                if (mBufferingSince == 0 && webSocket.isBuffering()) {
+                    mBufferingSince = now;
+                }
+                mNumBytesSent += length;
+                Log.i("Sent bytes: " + length);
+            }
+        }
+
+        /**
+         * Counts the queued bytes as sent if the socket is no longer buffering.
+         */
+        private void checkSent(WebSocket webSocket, long now) {
+            if (!webSocket.isBuffering()) {
+                mMeter.onSent(mMeter.getNumBytesOutstanding(), mBufferingSince > 0 ? now - mBufferingSince : 0);
+                mBufferingSince = 0;
+            }
+        }
+
+        /**
+         * Waits while the socket has more than the cap of audio to send, unless the policy is to fail
+         * (then the pump fails the session). The sender's audio waits meanwhile in the frame buffer.
+         */
+        private void awaitBacklog(WebSocket webSocket) throws InterruptedException {
+            if (UploadMeter.POLICY_FAIL.equals(getUploadLagPolicy())) {
+                return;
+            }
+            while (webSocket.isOpen() && mMeter.getLag() > getUploadLagCap()) {
+                checkSent(webSocket, SystemClock.uptimeMillis());
+                if (mBufferingSince == 0) {
+                    return;
+                }
+                Thread.sleep(BACKLOG_POLL_INTERVAL);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (mIsPrimary ? "primary: " : "backup: ") + mUrl;
+        }
     }
 
-    void send(WebSocket webSocket, byte[] buffer) {
-        if (buffer != null && buffer.length > 0) {
-            webSocket.send(buffer);
-            mNumBytesSent += buffer.length;
-            Log.i("Sent bytes: " + buffer.length);
+
+    /**
+     * Counts (since the start of the process) how often the hedge fires and which server wins.
+     */
+    private static final class HedgeStats {
+        private static int sNumSessions;
+        private static int sNumHedges;
+        private static int sNumPrimaryWins;
+        private static int sNumBackupWins;
+
+        static synchronized void onSession() {
+            sNumSessions++;
+        }
+
+        static synchronized void onHedge() {
+            sNumHedges++;
+        }
+
+        static synchronized void onWinner(boolean isPrimary) {
+            if (isPrimary) {
+                sNumPrimaryWins++;
+            } else {
+                sNumBackupWins++;
+            }
+            Log.i("Hedge: sessions: " + sNumSessions + ", hedged: " + sNumHedges
+                    + ", won by primary: " + sNumPrimaryWins + ", won by backup: " + sNumBackupWins);
         }
     }
 
 
+    /**
+     * Processes the server responses on the result thread, and posts only the finished
+     * callbacks to the main thread. If the session is hedged then it also decides
+     * which connection delivers the results.
+     */
     private static class MyHandler extends Handler {
         private final WeakReference<WebSocketRecognitionService> mRef;
         private final boolean mIsUnlimitedDuration;
         private final boolean mIsPartialResults;
+        private final int mMaxResults;
 
-        public MyHandler(WebSocketRecognitionService c, boolean isUnlimitedDuration, boolean isPartialResults) {
+        // Set if the backup connection was opened
+        private boolean mIsHedged;
+        // Connection that returned the first final result after the backup connection was opened
+        private Connection mWinner;
+        // Connection whose partial results are shown until one of the connections wins
+        private Connection mPartialResultsSource;
+        // Number of reconnection attempts since the last result
+        private int mNumReconnects;
+
+        public MyHandler(Looper looper, WebSocketRecognitionService c, boolean isUnlimitedDuration, boolean isPartialResults, int maxResults) {
+            super(looper);
             mRef = new WeakReference<>(c);
             mIsUnlimitedDuration = isUnlimitedDuration;
             mIsPartialResults = isPartialResults;
+            mMaxResults = maxResults;
         }
 
         @Override
         public void handleMessage(Message msg) {
             WebSocketRecognitionService outerClass = mRef.get();
-            if (outerClass != null) {
-                if (msg.what == MSG_ERROR) {
-                    Exception e = (Exception) msg.obj;
-                    if (e instanceof TimeoutException) {
-                        outerClass.onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
-                    } else {
-                        outerClass.onError(SpeechRecognizer.ERROR_NETWORK);
+            if (outerClass == null) {
+                return;
+            }
+            if (msg.what == MSG_HEDGE) {
+                mIsHedged = outerClass.startHedge();
+                return;
+            }
+            if (msg.what == MSG_RECONNECT) {
+                outerClass.openConnection((String) msg.obj, msg.arg1 == 1);
+                return;
+            }
+            Connection connection = outerClass.getConnection(msg.arg1);
+            if (connection == null) {
+                // The connection has been closed, e.g. it lost to the other connection
+                return;
+            }
+            if (msg.what == MSG_ERROR) {
+                Exception e = (Exception) msg.obj;
+                if (!connection.isConnected() && outerClass.failover(connection)) {
+                    return;
+                }
+                if ((connection.isConnected() || mNumReconnects > 0) && reconnect(outerClass, connection)) {
+                    return;
+                }
+                if (e instanceof TimeoutException) {
+                    onError(outerClass, connection, SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
+                } else {
+                    onError(outerClass, connection, SpeechRecognizer.ERROR_NETWORK);
+                }
+            } else if (msg.what == MSG_FINISH) {
+                if (outerClass.getConnections().size() > 1) {
+                    Log.i(connection + ": closed, continuing with the other connection");
+                    drop(outerClass, connection);
+                } else {
+                    outerClass.postFinish(connection);
+                }
+            } else if (msg.what == MSG_RESULT) {
+                handleResult(outerClass, connection, (String) msg.obj);
+            }
+        }
+
+        private void handleResult(WebSocketRecognitionService outerClass, Connection connection, String text) {
+            try {
+                WebSocketResponse response = new WebSocketResponse(text, mMaxResults);
+                int statusCode = response.getStatus();
+                if (statusCode == WebSocketResponse.STATUS_SUCCESS && response.isResult()) {
+                    mNumReconnects = 0;
+                    if (connection.isPrimary()) {
+                        // The primary server is responding, the backup server is not needed
+                        removeMessages(MSG_HEDGE);
                     }
-                } else if (msg.what == MSG_RESULT) {
-                    try {
-                        WebSocketResponse response = new WebSocketResponse((String) msg.obj);
-                        int statusCode = response.getStatus();
-                        if (statusCode == WebSocketResponse.STATUS_SUCCESS && response.isResult()) {
-                            WebSocketResponse.Result responseResult = response.parseResult();
-                            if (responseResult.isFinal()) {
-                                ArrayList<String> hypotheses = responseResult.getHypotheses(MAX_HYPOTHESES, PRETTY_PRINT);
-                                if (hypotheses.isEmpty()) {
-                                    Log.i("Empty final result (" + hypotheses + "), stopping");
-                                    outerClass.onError(SpeechRecognizer.ERROR_SPEECH_TIMEOUT);
-                                } else {
-                                    // We stop listening unless the caller explicitly asks us to carry on,
-                                    // by setting EXTRA_UNLIMITED_DURATION=true
-                                    if (mIsUnlimitedDuration) {
-                                        outerClass.onPartialResults(toResultsBundle(hypotheses, true));
-                                    } else {
-                                        outerClass.mIsEosSent = true;
-                                        outerClass.onEndOfSpeech();
-                                        outerClass.onResults(toResultsBundle(hypotheses, true));
-                                    }
-                                }
+                    WebSocketResponse.Result responseResult = response.parseResult();
+                    if (responseResult.isFinal()) {
+                        ArrayList<String> hypotheses = responseResult.getHypotheses(mMaxResults, PRETTY_PRINT);
+                        if (hypotheses.isEmpty()) {
+                            Log.i("Empty final result (" + hypotheses + "), stopping");
+                            onError(outerClass, connection, SpeechRecognizer.ERROR_SPEECH_TIMEOUT);
+                        } else {
+                            if (mIsHedged && mWinner == null) {
+                                setWinner(outerClass, connection);
+                            }
+                            // We stop listening unless the caller explicitly asks us to carry on,
+                            // by setting EXTRA_UNLIMITED_DURATION=true
+                            if (mIsUnlimitedDuration) {
+                                // The audio so far does not need to be sent to another server
+                                outerClass.mFrameBuffer.checkpoint();
+                                outerClass.postSemiFinalResults(toResultsBundle(hypotheses, true));
                             } else {
-                                // We fire this only if the caller wanted partial results
-                                if (mIsPartialResults) {
-                                    ArrayList<String> hypotheses = responseResult.getHypotheses(MAX_HYPOTHESES, PRETTY_PRINT);
-                                    if (hypotheses.isEmpty()) {
-                                        Log.i("Empty non-final result (" + hypotheses + "), ignoring");
-                                    } else {
-                                        outerClass.onPartialResults(toResultsBundle(hypotheses, false));
-                                    }
-                                }
+                                connection.onUtteranceFinished();
+                                outerClass.postFinalResults(connection, toResultsBundle(hypotheses, true));
                             }
-                        } else if (statusCode == WebSocketResponse.STATUS_SUCCESS) {
-                            // TODO: adaptation_state currently not handled
-                        } else if (statusCode == WebSocketResponse.STATUS_ABORTED) {
-                            outerClass.onError(SpeechRecognizer.ERROR_SERVER);
-                        } else if (statusCode == WebSocketResponse.STATUS_NOT_AVAILABLE) {
-                            outerClass.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
-                        } else if (statusCode == WebSocketResponse.STATUS_NO_SPEECH) {
-                            outerClass.onError(SpeechRecognizer.ERROR_SPEECH_TIMEOUT);
-                        } else if (statusCode == WebSocketResponse.STATUS_NO_VALID_FRAMES) {
-                            outerClass.onError(SpeechRecognizer.ERROR_NO_MATCH);
-                        } else {
-                            // Server sent unsupported status code, client should be updated
-                            outerClass.onError(SpeechRecognizer.ERROR_CLIENT);
                         }
-                    } catch (WebSocketResponse.WebSocketResponseException e) {
-                        // This results from a syntactically incorrect server response object
-                        Log.e((String) msg.obj, e);
-                        outerClass.onError(SpeechRecognizer.ERROR_SERVER);
+                    } else {
+                        // We fire this only if the caller wanted partial results
+                        if (mIsPartialResults && isPartialResultsSource(connection)) {
+                            ArrayList<String> hypotheses = responseResult.getHypotheses(mMaxResults, PRETTY_PRINT);
+                            if (hypotheses.isEmpty()) {
+                                Log.i("Empty non-final result (" + hypotheses + "), ignoring");
+                            } else {
+                                outerClass.postPartialResults(toResultsBundle(hypotheses, false));
+                            }
+                        }
+                    }
+                } else if (statusCode == WebSocketResponse.STATUS_SUCCESS && response.isAdaptationState()) {
+                    outerClass.storeAdaptationState(connection.getAdaptationStateKey(), response.parseAdaptationState());
+                } else if (statusCode == WebSocketResponse.STATUS_SUCCESS) {
+                    // Ignore other messages
+                } else if (statusCode == WebSocketResponse.STATUS_ABORTED) {
+                    onError(outerClass, connection, SpeechRecognizer.ERROR_SERVER);
+                } else if (statusCode == WebSocketResponse.STATUS_NOT_AVAILABLE) {
+                    WsServerPool.onBusy(connection.getServerUrl());
+                    if (!outerClass.failover(connection)) {
+                        onError(outerClass, connection, SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
                     }
+                } else if (statusCode == WebSocketResponse.STATUS_NO_SPEECH) {
+                    onError(outerClass, connection, SpeechRecognizer.ERROR_SPEECH_TIMEOUT);
+                } else if (statusCode == WebSocketResponse.STATUS_NO_VALID_FRAMES) {
+                    onError(outerClass, connection, SpeechRecognizer.ERROR_NO_MATCH);
+                } else {
+                    // Server sent unsupported status code, client should be updated
+                    onError(outerClass, connection, SpeechRecognizer.ERROR_CLIENT);
+                }
+            } catch (WebSocketResponse.WebSocketResponseException e) {
+                // This results from a syntactically incorrect server response object
+                Log.e(text, e);
+                onError(outerClass, connection, SpeechRecognizer.ERROR_SERVER);
+            }
+        }
+
+        /**
+         * Closes the failed connection, and reopens it after a delay that doubles with each attempt.
+         * The new connection first gets the audio since the last final result.
+         * Only in the unlimited duration mode or in the duplex mode (where the parked socket
+         * might have been closed by the server), and only if there is no other connection.
+         *
+         * @return true iff the reconnection was scheduled
+         */
+        private boolean reconnect(WebSocketRecognitionService outerClass, Connection connection) {
+            if (!(mIsUnlimitedDuration || outerClass.isDuplex()) || mNumReconnects >= MAX_RECONNECTS
+                    || outerClass.getConnections().size() != 1 || !outerClass.mFrameBuffer.isReplayable()) {
+                return false;
+            }
+            int delay = RECONNECT_DELAY << mNumReconnects;
+            mNumReconnects++;
+            Log.i(connection + ": connection lost, reconnecting in " + delay + " ms");
+            outerClass.closeConnection(connection);
+            sendMessageDelayed(obtainMessage(MSG_RECONNECT, connection.isPrimary() ? 1 : 0, 0, connection.getServerUrl()), delay);
+            return true;
+        }
+
+        /**
+         * Until one of the connections wins, only the partial results of the connection
+         * that returned the first partial result are shown.
+         */
+        private boolean isPartialResultsSource(Connection connection) {
+            if (!mIsHedged || mWinner != null) {
+                return true;
+            }
+            if (mPartialResultsSource == null) {
+                mPartialResultsSource = connection;
+            }
+            return mPartialResultsSource == connection;
+        }
+
+        /**
+         * Reports the error, unless the other connection can still deliver the results,
+         * in which case only the failed connection is closed.
+         */
+        private void onError(WebSocketRecognitionService outerClass, Connection connection, int errorCode) {
+            if (outerClass.getConnections().size() > 1) {
+                Log.i(connection + ": error " + errorCode + ", continuing with the other connection");
+                drop(outerClass, connection);
+            } else {
+                outerClass.postError(errorCode);
+            }
+        }
+
+        private void drop(WebSocketRecognitionService outerClass, Connection connection) {
+            outerClass.closeConnection(connection);
+            if (mPartialResultsSource == connection) {
+                mPartialResultsSource = null;
+            }
+            List<Connection> connections = outerClass.getConnections();
+            if (mIsHedged && mWinner == null && connections.size() == 1) {
+                setWinner(outerClass, connections.get(0));
+            }
+        }
+
+        private void setWinner(WebSocketRecognitionService outerClass, Connection winner) {
+            mWinner = winner;
+            Log.i("Hedge: winner: " + winner);
+            for (Connection connection : outerClass.getConnections()) {
+                if (connection != winner) {
+                    outerClass.closeConnection(connection);
                 }
             }
+            HedgeStats.onWinner(winner.isPrimary());
         }
     }
 
@@ -358,4 +1260,4 @@ public class WebSocketRecognitionService extends AbstractRecognitionService {
 
         return sslContext;
     }
-}
\ No newline at end of file
+}
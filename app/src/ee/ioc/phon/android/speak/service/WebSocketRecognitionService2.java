@@ -7,11 +7,22 @@ import java.io.IOException;
 import ee.ioc.phon.android.speak.ChunkedWebRecSessionBuilder;
 import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.utils.QueryUtils;
+import ee.ioc.phon.android.speak.utils.Utils;
+import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
+/**
+ * Recognition service that uses the duplex speech API, where one long-lived socket carries many
+ * utterances. The audio of each utterance is followed by the end-of-utterance message, after which
+ * the server returns the final result of the utterance and keeps the socket open. Between the sessions
+ * the socket is parked (see {@link WebSocketPrewarmer}), and if the server has closed it in the meantime,
+ * then a new socket is opened and the utterance is sent again.
+ */
 public class WebSocketRecognitionService2 extends WebSocketRecognitionService {
 
-    private String mUrl;
+    private static final String EOU = "EOU";
+
+    private static final String SERVER_URL = "ws://localhost:82/duplex-speech-api/ws/speech";
 
     @Override
     String getEncoderType() {
@@ -19,17 +30,30 @@ public class WebSocketRecognitionService2 extends WebSocketRecognitionService {
                 R.string.keyImeAudioFormat, R.string.defaultAudioFormat);
     }
 
+    @Override
+    boolean isDuplex() {
+        return true;
+    }
+
+    @Override
+    String getEndOfUtterance() {
+        return EOU;
+    }
+
     @Override
     void configure(Intent recognizerIntent) throws IOException {
         ChunkedWebRecSessionBuilder builder = new ChunkedWebRecSessionBuilder(this, recognizerIntent.getExtras(), null);
-        mUrl = "ws://localhost:82/duplex-speech-api/ws/speech"
-                + getAudioRecorder().getWsArgs() + QueryUtils.getQueryParams(recognizerIntent, builder, "UTF-8");
+        // The caller (e.g. a test against a stand-in server) can override the server
+        String serverUrl = Utils.chooseValue(getExtras().getString(Extras.EXTRA_SERVER_URL), SERVER_URL);
+        String args = getAudioRecorder().getWsArgs() + QueryUtils.getQueryParams(recognizerIntent, builder, "UTF-8");
+        configureServer(serverUrl, args, builder);
+        configureUpload();
         configureHandler(false, false);
     }
 
     @Override
     void connect() {
-        startSocket(mUrl);
+        startSocket();
     }
 
 }
\ No newline at end of file
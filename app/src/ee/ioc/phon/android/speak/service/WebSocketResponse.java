@@ -1,10 +1,18 @@
 package ee.ioc.phon.android.speak.service;
 
-import org.json.JSONArray;
+import android.util.Base64;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import ee.ioc.phon.android.speechutils.utils.TextUtils;
 
@@ -19,6 +27,9 @@ import ee.ioc.phon.android.speechutils.utils.TextUtils;
  *
  * {"status": 0, "adaptation_state": {"type": "string+gzip+base64", "value": "eJxlvcu7"}}
  * </pre>
+ * <p>
+ * The object is read with a streaming pull parser, i.e. no JSON tree is built. Only the fields
+ * listed above are kept, and only the first N transcripts. Everything else is skipped.
  */
 public class WebSocketResponse {
 
@@ -37,15 +48,51 @@ public class WebSocketResponse {
     // Used when all recognizer processes are currently in use and recognition cannot be performed.
     public static final int STATUS_NOT_AVAILABLE = 9;
 
-    private final JSONObject mJson;
-    private final int mStatus;
+    private int mStatus = -1;
+    private String mMessage;
+    private Result mResult;
+    private AdaptationState mAdaptationState;
 
     public WebSocketResponse(String data) throws WebSocketResponseException {
+        this(data, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param data          JSON object
+     * @param maxHypotheses max number of transcripts to read, the rest are skipped
+     */
+    public WebSocketResponse(String data, int maxHypotheses) throws WebSocketResponseException {
+        JsonReader reader = new JsonReader(new StringReader(data));
+        boolean hasStatus = false;
         try {
-            mJson = new JSONObject(data);
-            mStatus = mJson.getInt("status");
-        } catch (JSONException e) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("status".equals(name)) {
+                    mStatus = reader.nextInt();
+                    hasStatus = true;
+                } else if ("message".equals(name) && reader.peek() == JsonToken.STRING) {
+                    mMessage = reader.nextString();
+                } else if ("result".equals(name)) {
+                    mResult = readResult(reader, maxHypotheses);
+                } else if ("adaptation_state".equals(name)) {
+                    mAdaptationState = readAdaptationState(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
             throw new WebSocketResponseException(e);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Cannot happen with a StringReader
+            }
+        }
+        if (!hasStatus) {
+            throw new WebSocketResponseException("status missing");
         }
     }
 
@@ -54,60 +101,142 @@ public class WebSocketResponse {
     }
 
     public boolean isResult() {
-        return mJson.has("result");
+        return mResult != null;
+    }
+
+    public boolean isAdaptationState() {
+        return mAdaptationState != null;
     }
 
 
     public Result parseResult() throws WebSocketResponseException {
-        try {
-            return new Result(mJson.getJSONObject("result"));
-        } catch (JSONException e) {
-            throw new WebSocketResponseException(e);
+        if (mResult == null) {
+            throw new WebSocketResponseException("result missing");
         }
+        return mResult;
     }
 
 
     public Message parseMessage() throws WebSocketResponseException {
-        try {
-            return new Message(mJson.getString("message"));
-        } catch (JSONException e) {
-            throw new WebSocketResponseException(e);
+        if (mMessage == null) {
+            throw new WebSocketResponseException("message missing");
         }
+        return new Message(mMessage);
     }
 
     public AdaptationState parseAdaptationState() throws WebSocketResponseException {
-        try {
-            return new AdaptationState(mJson.getJSONObject("adaptation_state"));
-        } catch (JSONException e) {
-            throw new WebSocketResponseException(e);
+        if (mAdaptationState == null) {
+            throw new WebSocketResponseException("adaptation_state missing");
+        }
+        return mAdaptationState;
+    }
+
+
+    private static Result readResult(JsonReader reader, int maxHypotheses) throws IOException, WebSocketResponseException {
+        List<String> transcripts = null;
+        boolean isFinal = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("hypotheses".equals(name)) {
+                transcripts = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (transcripts.size() < maxHypotheses) {
+                        transcripts.add(readTranscript(reader));
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else if ("final".equals(name)) {
+                isFinal = readBoolean(reader);
+            } else {
+                reader.skipValue();
+            }
         }
+        reader.endObject();
+        if (transcripts == null) {
+            throw new WebSocketResponseException("hypotheses missing");
+        }
+        return new Result(transcripts, isFinal);
+    }
+
+    private static String readTranscript(JsonReader reader) throws IOException, WebSocketResponseException {
+        String transcript = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("transcript".equals(reader.nextName())) {
+                transcript = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (transcript == null) {
+            throw new WebSocketResponseException("transcript missing");
+        }
+        return transcript;
+    }
+
+    private static AdaptationState readAdaptationState(JsonReader reader) throws IOException, WebSocketResponseException {
+        String type = null;
+        String value = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("type".equals(name)) {
+                type = reader.nextString();
+            } else if ("value".equals(name)) {
+                value = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (type == null || value == null) {
+            throw new WebSocketResponseException("adaptation_state type or value missing");
+        }
+        return new AdaptationState(type, value);
+    }
+
+    /**
+     * The "final" field does not have to be a boolean, e.g. the string "true" is also accepted.
+     */
+    private static boolean readBoolean(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        if (token == JsonToken.STRING) {
+            return "true".equalsIgnoreCase(reader.nextString());
+        }
+        reader.skipValue();
+        return false;
     }
 
 
     public static class Result {
-        private final JSONObject mResult;
+        private final List<String> mTranscripts;
+        private final boolean mIsFinal;
 
-        public Result(JSONObject result) throws JSONException {
-            mResult = result;
+        public Result(List<String> transcripts, boolean isFinal) {
+            mTranscripts = transcripts;
+            mIsFinal = isFinal;
         }
 
-        // TODO: yield transcript and do pretty-printing in the client
-        public ArrayList<String> getHypotheses(int maxHypotheses, boolean prettyPrint) throws WebSocketResponseException {
-            try {
-                ArrayList<String> hypotheses = new ArrayList<>();
-                JSONArray array = mResult.getJSONArray("hypotheses");
-                for (int i = 0; i < array.length() && i < maxHypotheses; i++) {
-                    String transcript = array.getJSONObject(i).getString("transcript");
-                    if (prettyPrint) {
-                        hypotheses.add(TextUtils.prettyPrint(transcript));
-                    } else {
-                        hypotheses.add(transcript);
-                    }
-                }
-                return hypotheses;
-            } catch (JSONException e) {
-                throw new WebSocketResponseException(e);
+        /**
+         * Returns (at most) the first maxHypotheses hypotheses, pretty-printed if requested.
+         * Only the returned hypotheses are pretty-printed.
+         */
+        public ArrayList<String> getHypotheses(int maxHypotheses, boolean prettyPrint) {
+            int size = Math.min(maxHypotheses, mTranscripts.size());
+            ArrayList<String> hypotheses = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                String transcript = mTranscripts.get(i);
+                hypotheses.add(prettyPrint ? TextUtils.prettyPrint(transcript) : transcript);
             }
+            return hypotheses;
         }
 
         /**
@@ -116,7 +245,7 @@ public class WebSocketResponse {
          * @return true iff this result is final
          */
         public boolean isFinal() {
-            return mResult.optBoolean("final", false);
+            return mIsFinal;
         }
     }
 
@@ -124,7 +253,7 @@ public class WebSocketResponse {
     public static class Message {
         private final String mMessage;
 
-        public Message(String message) throws JSONException {
+        public Message(String message) {
             mMessage = message;
         }
 
@@ -134,15 +263,77 @@ public class WebSocketResponse {
     }
 
 
+    /**
+     * Speaker adaptation state, which can be sent back to the server at the beginning of the next
+     * session. Currently only the type "string+gzip+base64" is supported.
+     */
     public static class AdaptationState {
-        public AdaptationState(JSONObject result) throws JSONException {
+        public static final String TYPE_STRING_GZIP_BASE64 = "string+gzip+base64";
+
+        private final String mType;
+        private final String mValue;
+
+        public AdaptationState(String type, String value) {
+            mType = type;
+            mValue = value;
+        }
+
+        public String getType() {
+            return mType;
+        }
+
+        public String getValue() {
+            return mValue;
+        }
+
+        /**
+         * Decodes the value to check that it is well-formed.
+         *
+         * @return true iff the state has a supported type and its value can be decoded
+         */
+        public boolean isValid() {
+            if (!TYPE_STRING_GZIP_BASE64.equals(mType)) {
+                return false;
+            }
+            try {
+                byte[] bytes = Base64.decode(mValue, Base64.DEFAULT);
+                GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+                try {
+                    byte[] buffer = new byte[4096];
+                    while (in.read(buffer) != -1) {
+                        // Only checking that the value decodes
+                    }
+                } finally {
+                    in.close();
+                }
+                return true;
+            } catch (IllegalArgumentException | IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @return message that sends this state to the server, i.e.
+         * {"adaptation_state": {"type": "string+gzip+base64", "value": "eJxlvcu7"}}
+         */
+        public String toMessage() throws JSONException {
+            JSONObject adaptationState = new JSONObject();
+            adaptationState.put("type", mType);
+            adaptationState.put("value", mValue);
+            JSONObject message = new JSONObject();
+            message.put("adaptation_state", adaptationState);
+            return message.toString();
         }
     }
 
 
     public static class WebSocketResponseException extends Exception {
-        public WebSocketResponseException(JSONException e) {
+        public WebSocketResponseException(Exception e) {
             super(e);
         }
+
+        public WebSocketResponseException(String message) {
+            super(message);
+        }
     }
-}
\ No newline at end of file
+}
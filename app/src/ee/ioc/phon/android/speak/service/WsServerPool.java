@@ -0,0 +1,184 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.os.SystemClock;
+
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.http.AsyncHttpClient;
+import com.koushikdutta.async.http.WebSocket;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ee.ioc.phon.android.speak.Log;
+
+/**
+ * Keeps track of the WebSocket servers (shared by all the sessions of the process), and picks
+ * the server for the next connection: the server with the fewest outstanding sessions
+ * and the lowest recent connection latency. Servers that have recently reported that they are busy,
+ * or whose status endpoint reports that no workers are available, are picked only if there is
+ * no other choice. Ties are broken by the order of the given servers.
+ * <p>
+ * The status is polled from the kaldi-gstreamer-server status endpoint, which is assumed to be
+ * next to the speech endpoint, e.g. ws://localhost:8080/client/ws/status.
+ */
+final class WsServerPool {
+
+    // A busy server is avoided for this time
+    private static final int BUSY_TIMEOUT = 30000;
+    // The status of a server is polled at most this often
+    private static final int STATUS_POLL_INTERVAL = 10000;
+    // Latency assumed for the servers that have not been connected to yet
+    private static final float DEFAULT_LATENCY = 500;
+    // Weight of the latest latency measurement in the moving average
+    private static final float LATENCY_WEIGHT = 0.3f;
+    // Added to the score of the servers that are not available
+    private static final float UNAVAILABLE_PENALTY = 1000000;
+
+    private static final String PROTOCOL = "";
+
+    private static final Map<String, Node> NODES = new HashMap<>();
+
+    private WsServerPool() {
+    }
+
+    /**
+     * @param serverUrls   server URLs (without the query parameters) to pick from
+     * @param excluded     server URLs not to pick
+     * @param isPollStatus true iff the status of the servers should be polled (the result
+     *                     is used in the following picks)
+     * @return the server URL with the best score, or null if all the servers are excluded
+     */
+    static synchronized String pick(List<String> serverUrls, Collection<String> excluded, boolean isPollStatus) {
+        long now = SystemClock.uptimeMillis();
+        String bestUrl = null;
+        float bestScore = Float.MAX_VALUE;
+        for (String url : serverUrls) {
+            if (excluded.contains(url)) {
+                continue;
+            }
+            Node node = getNode(url);
+            if (isPollStatus) {
+                pollStatus(url, node, now);
+            }
+            float score = (node.mNumOutstanding + 1) * (node.mLatency < 0 ? DEFAULT_LATENCY : node.mLatency);
+            if (node.mBusyUntil > now || node.mNumWorkersAvailable == 0) {
+                score += UNAVAILABLE_PENALTY;
+            }
+            if (score < bestScore) {
+                bestUrl = url;
+                bestScore = score;
+            }
+        }
+        return bestUrl;
+    }
+
+    static synchronized void onOpen(String url) {
+        getNode(url).mNumOutstanding++;
+    }
+
+    static synchronized void onConnected(String url, long latency) {
+        Node node = getNode(url);
+        if (node.mLatency < 0) {
+            node.mLatency = latency;
+        } else {
+            node.mLatency = LATENCY_WEIGHT * latency + (1 - LATENCY_WEIGHT) * node.mLatency;
+        }
+    }
+
+    static synchronized void onClose(String url) {
+        Node node = getNode(url);
+        if (node.mNumOutstanding > 0) {
+            node.mNumOutstanding--;
+        }
+    }
+
+    static synchronized void onBusy(String url) {
+        Log.i("Server busy: " + url);
+        getNode(url).mBusyUntil = SystemClock.uptimeMillis() + BUSY_TIMEOUT;
+    }
+
+    private static synchronized void onStatus(String url, int numWorkersAvailable) {
+        Node node = getNode(url);
+        node.mIsPolling = false;
+        node.mNumWorkersAvailable = numWorkersAvailable;
+        if (numWorkersAvailable > 0) {
+            node.mBusyUntil = 0;
+        }
+    }
+
+    private static Node getNode(String url) {
+        Node node = NODES.get(url);
+        if (node == null) {
+            node = new Node();
+            NODES.put(url, node);
+        }
+        return node;
+    }
+
+    private static void pollStatus(final String url, Node node, long now) {
+        String statusUrl = toStatusUrl(url);
+        if (statusUrl == null || node.mIsPolling || now - node.mStatusTime < STATUS_POLL_INTERVAL) {
+            return;
+        }
+        node.mIsPolling = true;
+        node.mStatusTime = now;
+        AsyncHttpClient.getDefaultInstance().websocket(statusUrl, PROTOCOL, new AsyncHttpClient.WebSocketConnectCallback() {
+            @Override
+            public void onCompleted(Exception ex, final WebSocket webSocket) {
+                if (ex != null) {
+                    Log.e("Status polling failed: " + url, ex);
+                    onStatus(url, -1);
+                    return;
+                }
+                // The server sends the status as soon as the socket is open
+                webSocket.setStringCallback(new WebSocket.StringCallback() {
+                    @Override
+                    public void onStringAvailable(String s) {
+                        try {
+                            onStatus(url, new JSONObject(s).optInt("num_workers_available", -1));
+                        } catch (JSONException e) {
+                            Log.e("Status polling failed: " + s, e);
+                            onStatus(url, -1);
+                        }
+                        webSocket.close();
+                    }
+                });
+                webSocket.setClosedCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        synchronized (WsServerPool.class) {
+                            getNode(url).mIsPolling = false;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return URL of the status endpoint, e.g. ws://localhost:8080/client/ws/status, or null
+     * if the given URL does not end with "/speech"
+     */
+    private static String toStatusUrl(String url) {
+        if (url.endsWith("/speech")) {
+            return url.substring(0, url.length() - "speech".length()) + "status";
+        }
+        return null;
+    }
+
+    private static class Node {
+        private int mNumOutstanding;
+        // Moving average of the connection latency in milliseconds, -1 if unknown
+        private float mLatency = -1;
+        private long mBusyUntil;
+        // Number of available workers reported by the status endpoint, -1 if unknown
+        private int mNumWorkersAvailable = -1;
+        private long mStatusTime;
+        private boolean mIsPolling;
+    }
+}
@@ -0,0 +1,75 @@
+package ee.ioc.phon.android.speak.utils;
+
+/**
+ * Detects the end of the utterance from the levels (in dB) of the recorded audio: fires the endpoint event
+ * as soon as the trailing silence after the speech reaches the configured length. The silence before
+ * the speech does not count, i.e. the endpoint is never detected before the speaker has started speaking.
+ * The speech is the audio that is well above the noise floor, which is the minimum level over the last
+ * couple of seconds (see NoiseFloor), i.e. it follows the noise also if the noise gets louder.
+ * The levels of digital silence (e.g. of a muted cue) do not count for the noise floor.
+ * <p>
+ * The levels are given by the caller (e.g. whenever the volume meter is updated), the precision
+ * of the endpoint is thus the interval between the levels, rather than a separate polling interval.
+ */
+public class Endpointer {
+
+    public interface Listener {
+        void onEndpoint();
+    }
+
+    /**
+     * Trailing silence (in milliseconds) that ends the utterance, if the caller does not specify it.
+     */
+    public static final int DEFAULT_SILENCE_LENGTH = 1000;
+
+    // Level (in dB) above the noise floor that is speech
+    private static final float SPEECH_ABOVE_NOISE = 6;
+    // Length (in milliseconds) of the window of the noise floor, which must contain a pause of the speech
+    private static final int NOISE_WINDOW = 2000;
+    // Level (in dB) below which the audio is digital silence
+    private static final float DIGITAL_SILENCE_LEVEL = 1;
+
+    private final int mSilenceLength;
+    private final Listener mListener;
+
+    private final NoiseFloor mNoiseFloor = new NoiseFloor(NOISE_WINDOW, DIGITAL_SILENCE_LEVEL);
+    private boolean mIsSpeechHeard;
+    // Time (in milliseconds) of the first silent level after the speech, or -1 if the speech continues
+    private long mSilenceStart = -1;
+    private boolean mIsEndpoint;
+
+    /**
+     * @param silenceLength trailing silence (in milliseconds) that ends the utterance, positive
+     * @param listener      listener of the endpoint event, which fires at most once
+     */
+    public Endpointer(int silenceLength, Listener listener) {
+        mSilenceLength = silenceLength;
+        mListener = listener;
+    }
+
+    /**
+     * Adds the current level of the audio.
+     *
+     * @param rmsdb level of the recent audio in dB
+     * @param time  current time in milliseconds (e.g. SystemClock.uptimeMillis())
+     */
+    public void onLevel(float rmsdb, long time) {
+        if (mIsEndpoint) {
+            return;
+        }
+        if (mNoiseFloor.update(rmsdb, time) && rmsdb > mNoiseFloor.getFloor() + SPEECH_ABOVE_NOISE) {
+            mIsSpeechHeard = true;
+            mSilenceStart = -1;
+            return;
+        }
+        if (!mIsSpeechHeard) {
+            return;
+        }
+        if (mSilenceStart < 0) {
+            mSilenceStart = time;
+        } else if (time - mSilenceStart >= mSilenceLength) {
+            mIsEndpoint = true;
+            mListener.onEndpoint();
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package ee.ioc.phon.android.speak.utils;
+
+/**
+ * Streaming FLAC encoder for mono 16-bit PCM, in pure Java (i.e. it works on every API level,
+ * and also on the JVM). The audio is encoded frame by frame: the input can be given in chunks of
+ * any size, each call returns the frames that have been completed so far (preceded by the stream header
+ * in the first call), and the rest of the audio is kept until the next call or until the flush.
+ * <p>
+ * Each frame is encoded with the best of the fixed predictors (orders 0-4) and partitioned Rice coding
+ * of the residual, or verbatim if that is smaller. The total number of samples and the MD5
+ * in the stream header are left unknown (0), because the header is sent before the audio.
+ * <p>
+ * The buffers are allocated once and reused, i.e. in the steady state the encoder only allocates
+ * the returned array.
+ */
+public class FlacEncoder {
+
+    // 64 ms at 16 kHz, i.e. the server gets the audio without much delay
+    public static final int BLOCK_SIZE = 1024;
+    // Block size code of BLOCK_SIZE (256 * 2^(10 - 8))
+    private static final int BLOCK_SIZE_CODE = 10;
+    // Block size code of a block whose size (minus 1) follows the frame header in 16 bits
+    private static final int BLOCK_SIZE_CODE_16_BIT = 7;
+
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 4;
+    // Larger parameters are not allowed by the 4-bit Rice coding (15 is the escape code)
+    private static final int MAX_RICE_PARAM = 14;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mSampleRateCode;
+
+    private final int[] mBlock = new int[BLOCK_SIZE];
+    private int mBlockLength;
+    // Low byte of the sample whose high byte is in the next chunk, or -1
+    private int mPendingByte = -1;
+
+    // Residuals of the fixed predictors, indexed by the order
+    private final int[][] mResiduals = new int[MAX_FIXED_ORDER + 1][BLOCK_SIZE];
+    private final long[] mSums = new long[MAX_FIXED_ORDER + 1];
+    private final int[] mRiceParams = new int[1 << MAX_PARTITION_ORDER];
+    private final int[] mBestRiceParams = new int[1 << MAX_PARTITION_ORDER];
+    private int mPartitionOrder;
+
+    private final BitWriter mWriter = new BitWriter();
+    private long mFrameNumber;
+    private boolean mIsHeaderWritten;
+
+    private long mNumBytesIn;
+    private long mNumBytesOut;
+
+    /**
+     * @param sampleRate sample rate in Hz (at most 655350)
+     */
+    public FlacEncoder(int sampleRate) {
+        mSampleRate = sampleRate;
+        mSampleRateCode = getSampleRateCode(sampleRate);
+    }
+
+    public byte[] encode(byte[] pcm) {
+        return encode(pcm, 0, pcm.length);
+    }
+
+    /**
+     * Encodes the given little-endian 16-bit PCM.
+     *
+     * @return encoded bytes of the frames that have been completed (possibly none)
+     */
+    public byte[] encode(byte[] pcm, int offset, int length) {
+        mWriter.reset();
+        writeStreamHeader();
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (mPendingByte == -1) {
+                mPendingByte = pcm[i] & 0xFF;
+            } else {
+                mBlock[mBlockLength++] = (short) ((pcm[i] << 8) | mPendingByte);
+                mPendingByte = -1;
+                if (mBlockLength == BLOCK_SIZE) {
+                    writeFrame();
+                }
+            }
+        }
+        mNumBytesIn += length;
+        return toByteArray();
+    }
+
+    /**
+     * Encodes the audio that does not fill a whole frame, e.g. at the end of the recording.
+     * The encoding can continue after the flush.
+     *
+     * @return encoded bytes of the last frame (possibly none)
+     */
+    public byte[] flush() {
+        mWriter.reset();
+        writeStreamHeader();
+        if (mBlockLength > 0) {
+            writeFrame();
+        }
+        return toByteArray();
+    }
+
+    /**
+     * @return number of input bytes per output byte so far, or 0 if nothing has been output
+     */
+    public float getCompressionRatio() {
+        if (mNumBytesOut == 0) {
+            return 0;
+        }
+        return (float) mNumBytesIn / mNumBytesOut;
+    }
+
+    private byte[] toByteArray() {
+        byte[] bytes = mWriter.toByteArray();
+        mNumBytesOut += bytes.length;
+        return bytes;
+    }
+
+    /**
+     * Writes the stream marker, and the STREAMINFO metadata block, unless they have already been written.
+     */
+    private void writeStreamHeader() {
+        if (mIsHeaderWritten) {
+            return;
+        }
+        mIsHeaderWritten = true;
+        BitWriter w = mWriter;
+        // "fLaC"
+        w.writeBits(0x664C6143, 32);
+        // Last metadata block, type STREAMINFO, length 34
+        w.writeBits(0x80, 8);
+        w.writeBits(34, 24);
+        // Min and max block size (the last frame is allowed to be smaller)
+        w.writeBits(BLOCK_SIZE, 16);
+        w.writeBits(BLOCK_SIZE, 16);
+        // Min and max frame size are unknown
+        w.writeBits(0, 24);
+        w.writeBits(0, 24);
+        w.writeBits(mSampleRate, 20);
+        // Number of channels - 1, bits per sample - 1
+        w.writeBits(0, 3);
+        w.writeBits(BITS_PER_SAMPLE - 1, 5);
+        // Total number of samples (36 bits) and MD5 (128 bits) are unknown
+        w.writeBits(0, 4);
+        for (int i = 0; i < 5; i++) {
+            w.writeBits(0, 32);
+        }
+    }
+
+    private void writeFrame() {
+        BitWriter w = mWriter;
+        int n = mBlockLength;
+        int start = w.length();
+        // Sync code, fixed block size strategy
+        w.writeBits(0xFFF8, 16);
+        w.writeBits(n == BLOCK_SIZE ? BLOCK_SIZE_CODE : BLOCK_SIZE_CODE_16_BIT, 4);
+        w.writeBits(mSampleRateCode, 4);
+        // Mono, 16 bits per sample, reserved bit
+        w.writeBits(0x08, 8);
+        writeUtf8(mFrameNumber++);
+        if (n != BLOCK_SIZE) {
+            w.writeBits(n - 1, 16);
+        }
+        w.writeBits(crc8(w, start), 8);
+        writeSubframe(n);
+        w.alignToByte();
+        w.writeBits(crc16(w, start), 16);
+        mBlockLength = 0;
+    }
+
+    private void writeSubframe(int n) {
+        BitWriter w = mWriter;
+        int[] x = mBlock;
+
+        boolean isConstant = true;
+        for (int i = 1; i < n && isConstant; i++) {
+            isConstant = x[i] == x[0];
+        }
+        if (isConstant) {
+            w.writeBits(SUBFRAME_CONSTANT << 1, 8);
+            w.writeBits(x[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        int order = computeResiduals(n);
+        long bits = BITS_PER_SAMPLE * order + findRiceParams(mResiduals[order], order, n);
+        if (bits >= (long) BITS_PER_SAMPLE * n) {
+            w.writeBits(SUBFRAME_VERBATIM << 1, 8);
+            for (int i = 0; i < n; i++) {
+                w.writeBits(x[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+        w.writeBits((SUBFRAME_FIXED | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            w.writeBits(x[i], BITS_PER_SAMPLE);
+        }
+        writeResidual(mResiduals[order], order, n);
+    }
+
+    /**
+     * Computes the residuals of the fixed predictors.
+     *
+     * @return order of the predictor whose residual has the smallest sum of absolute values
+     */
+    private int computeResiduals(int n) {
+        int[] x = mBlock;
+        int maxOrder = Math.min(MAX_FIXED_ORDER, n - 1);
+        long[] sums = mSums;
+        for (int order = 0; order <= maxOrder; order++) {
+            sums[order] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            int r = x[i];
+            mResiduals[0][i] = r;
+            sums[0] += Math.abs(r);
+            for (int order = 1; order <= maxOrder && order <= i; order++) {
+                // The difference of the residuals of the previous order
+                r = r - mResiduals[order - 1][i - 1];
+                mResiduals[order][i] = r;
+                sums[order] += Math.abs(r);
+            }
+        }
+        int best = 0;
+        for (int order = 1; order <= maxOrder; order++) {
+            if (sums[order] < sums[best]) {
+                best = order;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds the partition order and the Rice parameters that minimize the size of the residual.
+     *
+     * @return size of the residual in bits
+     */
+    private long findRiceParams(int[] residual, int order, int n) {
+        long bestBits = Long.MAX_VALUE;
+        for (int p = 0; p <= MAX_PARTITION_ORDER; p++) {
+            int partitionSize = n >> p;
+            if ((n & ((1 << p) - 1)) != 0 || partitionSize <= order) {
+                break;
+            }
+            // Coding method and partition order
+            long bits = 6;
+            int from = order;
+            for (int part = 0; part < (1 << p); part++) {
+                int to = (part + 1) * partitionSize;
+                bits += 4 + findRiceParam(residual, from, to, part);
+                from = to;
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                mPartitionOrder = p;
+                System.arraycopy(mRiceParams, 0, mBestRiceParams, 0, 1 << p);
+            }
+        }
+        return bestBits;
+    }
+
+    /**
+     * @return size in bits of the given part of the residual, coded with the best Rice parameter
+     */
+    private long findRiceParam(int[] residual, int from, int to, int part) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += zigzag(residual[i]);
+        }
+        // The parameter near log2 of the mean is close to optimal, its neighbours are also tried
+        long mean = sum / Math.max(1, to - from);
+        int estimate = 0;
+        while (estimate < MAX_RICE_PARAM && (mean >> (estimate + 1)) > 0) {
+            estimate++;
+        }
+        long bestBits = Long.MAX_VALUE;
+        for (int k = Math.max(0, estimate - 1); k <= Math.min(MAX_RICE_PARAM, estimate + 1); k++) {
+            long bits = (long) (to - from) * (k + 1);
+            for (int i = from; i < to; i++) {
+                bits += zigzag(residual[i]) >>> k;
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                mRiceParams[part] = k;
+            }
+        }
+        return bestBits;
+    }
+
+    private void writeResidual(int[] residual, int order, int n) {
+        BitWriter w = mWriter;
+        int p = mPartitionOrder;
+        int partitionSize = n >> p;
+        // Rice coding with 4-bit parameters
+        w.writeBits(0, 2);
+        w.writeBits(p, 4);
+        int from = order;
+        for (int part = 0; part < (1 << p); part++) {
+            int k = mBestRiceParams[part];
+            w.writeBits(k, 4);
+            int to = (part + 1) * partitionSize;
+            for (int i = from; i < to; i++) {
+                int u = zigzag(residual[i]);
+                w.writeZeros(u >>> k);
+                w.writeBits(1, 1);
+                if (k > 0) {
+                    w.writeBits(u, k);
+                }
+            }
+            from = to;
+        }
+    }
+
+    /**
+     * Writes the frame number in the UTF-8-like coding of FLAC.
+     */
+    private void writeUtf8(long value) {
+        if (value < 0x80) {
+            mWriter.writeBits((int) value, 8);
+            return;
+        }
+        // Number of bytes, each continuation byte carries 6 bits
+        int numBytes = 2;
+        while (numBytes < 7 && value >= 1L << (5 * numBytes + 1)) {
+            numBytes++;
+        }
+        int shift = 6 * (numBytes - 1);
+        mWriter.writeBits(((0xFF00 >> numBytes) & 0xFF) | (int) (value >>> shift), 8);
+        while (shift > 0) {
+            shift -= 6;
+            mWriter.writeBits(0x80 | (int) ((value >>> shift) & 0x3F), 8);
+        }
+    }
+
+    private static int zigzag(int r) {
+        return (r << 1) ^ (r >> 31);
+    }
+
+    private static int crc8(BitWriter w, int start) {
+        int crc = 0;
+        for (int i = start; i < w.length(); i++) {
+            crc = CRC8_TABLE[crc ^ w.byteAt(i)];
+        }
+        return crc;
+    }
+
+    private static int crc16(BitWriter w, int start) {
+        int crc = 0;
+        for (int i = start; i < w.length(); i++) {
+            crc = ((crc << 8) & 0xFFFF) ^ CRC16_TABLE[(crc >> 8) ^ w.byteAt(i)];
+        }
+        return crc;
+    }
+
+    /**
+     * @return code of the given sample rate in the frame header, or 0 if the rate is taken from the stream header
+     */
+    private static int getSampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 8000:
+                return 4;
+            case 16000:
+                return 5;
+            case 22050:
+                return 6;
+            case 24000:
+                return 7;
+            case 32000:
+                return 8;
+            case 44100:
+                return 9;
+            case 48000:
+                return 10;
+            case 96000:
+                return 11;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Writes bits MSB-first into a growing byte array, which is reused by the following frames.
+     */
+    private static final class BitWriter {
+        private byte[] mBytes = new byte[4 * BLOCK_SIZE];
+        private int mLength;
+        private long mBits;
+        private int mNumBits;
+
+        void reset() {
+            mLength = 0;
+            mBits = 0;
+            mNumBits = 0;
+        }
+
+        /**
+         * Writes the lowest n (at most 32) bits of the given value.
+         */
+        void writeBits(int value, int n) {
+            mBits = (mBits << n) | (value & ((1L << n) - 1));
+            mNumBits += n;
+            while (mNumBits >= 8) {
+                mNumBits -= 8;
+                putByte((int) (mBits >>> mNumBits));
+            }
+            mBits &= (1L << mNumBits) - 1;
+        }
+
+        void writeZeros(int n) {
+            while (n >= 32) {
+                writeBits(0, 32);
+                n -= 32;
+            }
+            if (n > 0) {
+                writeBits(0, n);
+            }
+        }
+
+        void alignToByte() {
+            if (mNumBits > 0) {
+                writeBits(0, 8 - mNumBits);
+            }
+        }
+
+        /**
+         * @return number of complete bytes
+         */
+        int length() {
+            return mLength;
+        }
+
+        int byteAt(int i) {
+            return mBytes[i] & 0xFF;
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[mLength];
+            System.arraycopy(mBytes, 0, bytes, 0, mLength);
+            return bytes;
+        }
+
+        private void putByte(int b) {
+            if (mLength == mBytes.length) {
+                byte[] bytes = new byte[2 * mBytes.length];
+                System.arraycopy(mBytes, 0, bytes, 0, mLength);
+                mBytes = bytes;
+            }
+            mBytes[mLength++] = (byte) b;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ee.ioc.phon.android.speak.utils;
+
+/**
+ * Tracks the noise floor of a level signal (in dB) with minimum statistics: the floor is the minimum of
+ * the (slightly smoothed) level over a sliding window. The window is long enough to contain a pause
+ * of the speech, i.e. the speech does not raise the floor, while a floor that falls (e.g. to a single
+ * quiet frame, or before a step up of the noise) rises again to the actual noise within the window length.
+ * The window is kept as the minima of its sub-windows, i.e. the tracker does not allocate, and an update
+ * takes constant time.
+ * <p>
+ * Levels below the given minimum (e.g. the digital silence of a muted or a not yet running microphone,
+ * or of a cue that was replaced with zeros) and levels that are not numbers are ignored, because they say
+ * nothing about the noise.
+ */
+class NoiseFloor {
+
+    private static final int NUM_SUBWINDOWS = 4;
+    // Weight of the previous smoothed level
+    private static final double SMOOTHING = 0.5;
+
+    private final long mSubwindowLength;
+    private final double mMinLevel;
+
+    // Minima of the previous sub-windows of the window (NaN if a sub-window had no levels),
+    // and the minimum of the current one
+    private final double[] mMinima = new double[NUM_SUBWINDOWS - 1];
+    private int mNumMinima;
+    private int mNext;
+    private double mMinimum = Double.NaN;
+    // Start time of the current sub-window, or -1 before the first level
+    private long mSubwindowStart = -1;
+
+    private double mSmoothed = Double.NaN;
+    private double mFloor = Double.NaN;
+
+    /**
+     * @param windowLength length of the window (in the unit of the time of the levels, e.g. milliseconds)
+     * @param minLevel     levels below this are ignored
+     */
+    NoiseFloor(long windowLength, double minLevel) {
+        mSubwindowLength = Math.max(1, windowLength / NUM_SUBWINDOWS);
+        mMinLevel = minLevel;
+    }
+
+    /**
+     * @param level level in dB
+     * @param time  time of the level, non-decreasing
+     * @return true iff the level was used, i.e. it was not below the minimum level
+     */
+    boolean update(double level, long time) {
+        if (!(level >= mMinLevel)) {
+            return false;
+        }
+        mSmoothed = Double.isNaN(mSmoothed) ? level : SMOOTHING * mSmoothed + (1 - SMOOTHING) * level;
+        if (mSubwindowStart < 0) {
+            mSubwindowStart = time;
+        }
+        // Moves the window, also over the sub-windows that had no levels (e.g. only ignored levels)
+        long numElapsed = (time - mSubwindowStart) / mSubwindowLength;
+        for (long i = 0; i < numElapsed && i < NUM_SUBWINDOWS; i++) {
+            mMinima[mNext] = mMinimum;
+            mNext = (mNext + 1) % mMinima.length;
+            mNumMinima = Math.min(mNumMinima + 1, mMinima.length);
+            mMinimum = Double.NaN;
+        }
+        mSubwindowStart += numElapsed * mSubwindowLength;
+        if (Double.isNaN(mMinimum) || mSmoothed < mMinimum) {
+            mMinimum = mSmoothed;
+        }
+        double floor = mMinimum;
+        for (int i = 0; i < mNumMinima; i++) {
+            // The comparison is false for NaN
+            if (mMinima[i] < floor) {
+                floor = mMinima[i];
+            }
+        }
+        mFloor = floor;
+        return true;
+    }
+
+    /**
+     * @return noise floor in dB, or NaN if no level has been used yet
+     */
+    double getFloor() {
+        return mFloor;
+    }
+
+    /**
+     * @return true iff the levels cover a whole window, i.e. the floor is not biased by the start of the audio
+     * (e.g. if the audio starts with speech)
+     */
+    boolean isWindowFull() {
+        return mNumMinima == mMinima.length;
+    }
+}
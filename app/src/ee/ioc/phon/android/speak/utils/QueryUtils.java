@@ -42,6 +42,21 @@ public final class QueryUtils {
         return PARAMETER_SEPARATOR + encodeKeyValuePairs(list, encoding);
     }
 
+    /**
+     * Query parameters of the streaming HTTP request, i.e. the parameters that
+     * ChunkedWebRecSession would send when creating the session.
+     */
+    public static String getHttpQueryParams(ChunkedWebRecSessionBuilder builder, String encoding) throws UnsupportedEncodingException {
+        List<Pair<String, String>> list = new ArrayList<>();
+        listAdd(list, "lang", builder.getLang());
+        listAdd(list, "lm", toString(builder.getGrammarUrl()));
+        listAdd(list, "output-lang", builder.getGrammarTargetLang());
+        listAdd(list, "nbest", "" + builder.getNbest());
+        listAdd(list, "phrase", builder.getPhrase());
+        listAdd(list, "device-id", builder.getDeviceId());
+        return encodeKeyValuePairs(list, encoding);
+    }
+
     private static boolean listAdd(List<Pair<String, String>> list, String key, String value) {
         if (value == null || value.length() == 0) {
             return false;
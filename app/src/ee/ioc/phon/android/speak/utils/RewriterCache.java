@@ -0,0 +1,118 @@
+package ee.ioc.phon.android.speak.utils;
+
+import android.content.ComponentName;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speechutils.editor.CommandMatcherFactory;
+import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
+
+/**
+ * Process-wide cache of the compiled rewrite tables, so that rewriting a result does not parse
+ * the TSV (and compile its regular expressions) again. A rewriter is keyed by the name of the table
+ * and its command matcher (i.e. the language, service and app that it is created for), and it is used
+ * only if the content of the table has not changed since. The number of rewriters is bounded,
+ * the least recently used ones are evicted first. The cache is cleared whenever a rewrite table
+ * is changed, added or removed.
+ */
+final class RewriterCache {
+
+    // Max number of rewriters, i.e. of (table, language, service, app) combinations
+    private static final int MAX_ENTRIES = 16;
+
+    // Key (see makeKey) -> rewriter, in access order (the eldest first)
+    private static final Map<String, Entry> CACHE = newLruMap(MAX_ENTRIES);
+
+    private static SharedPreferences sPrefs;
+    private static String sKeyRewritesMap;
+
+    // Held here, because SharedPreferences holds its listeners weakly
+    private static final SharedPreferences.OnSharedPreferenceChangeListener LISTENER =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    onChanged(key);
+                }
+            };
+
+    private RewriterCache() {
+    }
+
+    /**
+     * Returns the compiled rewrite table, compiling it only if the table has not been compiled for
+     * this content and command matcher yet.
+     *
+     * @param content content of the table (TSV)
+     */
+    static synchronized UtteranceRewriter get(SharedPreferences prefs, Resources res, String name, String content,
+                                              String language, ComponentName service, ComponentName app) {
+        listen(prefs, res);
+        String key = makeKey(name, language, flatten(service), flatten(app));
+        Entry entry = CACHE.get(key);
+        if (entry == null || !entry.mContent.equals(content)) {
+            entry = new Entry(content, new UtteranceRewriter(content,
+                    CommandMatcherFactory.createCommandFilter(language, service, app)));
+            CACHE.put(key, entry);
+            Log.i("Rewriter cache: compiled: " + name + " (" + CACHE.size() + ")");
+        }
+        return entry.mRewriter;
+    }
+
+    static String makeKey(String name, String language, String service, String app) {
+        return name + "\n" + language + "\n" + service + "\n" + app;
+    }
+
+    /**
+     * @return map that holds at most the given number of entries, and evicts the least recently used one
+     */
+    static <V> Map<String, V> newLruMap(final int maxEntries) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    private static synchronized void onChanged(String key) {
+        // The key is null if all the preferences were cleared
+        if (key == null || key.startsWith(sKeyRewritesMap)) {
+            CACHE.clear();
+        }
+    }
+
+    private static void listen(SharedPreferences prefs, Resources res) {
+        if (sPrefs == prefs) {
+            return;
+        }
+        if (sPrefs != null) {
+            sPrefs.unregisterOnSharedPreferenceChangeListener(LISTENER);
+        }
+        CACHE.clear();
+        sPrefs = prefs;
+        sKeyRewritesMap = res.getString(R.string.keyRewritesMap);
+        sPrefs.registerOnSharedPreferenceChangeListener(LISTENER);
+    }
+
+    private static String flatten(ComponentName componentName) {
+        if (componentName == null) {
+            return null;
+        }
+        return componentName.flattenToShortString();
+    }
+
+    private static final class Entry {
+        private final String mContent;
+        private final UtteranceRewriter mRewriter;
+
+        private Entry(String content, UtteranceRewriter rewriter) {
+            mContent = content;
+            mRewriter = rewriter;
+        }
+    }
+}
@@ -67,9 +67,8 @@ import ee.ioc.phon.android.speak.R;
 import ee.ioc.phon.android.speak.activity.SpeechActionActivity;
 import ee.ioc.phon.android.speak.model.CallerInfo;
 import ee.ioc.phon.android.speak.model.Combo;
+import ee.ioc.phon.android.speak.provider.Server;
 import ee.ioc.phon.android.speechutils.Extras;
-import ee.ioc.phon.android.speechutils.editor.CommandMatcher;
-import ee.ioc.phon.android.speechutils.editor.CommandMatcherFactory;
 import ee.ioc.phon.android.speechutils.editor.UtteranceRewriter;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
 
@@ -104,6 +103,31 @@ public final class Utils {
     }
 
 
+    /**
+     * @return WebSocket URLs (ws:// and wss://) in the servers-table, in the order of insertion
+     */
+    public static List<String> getWsServerUrls(Context context) {
+        List<String> urls = new ArrayList<>();
+        Cursor c = context.getContentResolver().query(
+                Server.Columns.CONTENT_URI,
+                new String[]{Server.Columns.URL},
+                null,
+                null,
+                Server.Columns._ID + " ASC");
+        if (c == null) {
+            return urls;
+        }
+        while (c.moveToNext()) {
+            String url = c.getString(0);
+            if (url != null && (url.startsWith("ws://") || url.startsWith("wss://"))) {
+                urls.add(url);
+            }
+        }
+        c.close();
+        return urls;
+    }
+
+
     /**
      * <p>Pretty-prints an integer value which expresses a size
      * of some data.</p>
@@ -307,13 +331,14 @@ public final class Utils {
      * If a name does not resolve to a rewrite table then generates null.
      * If the given list is null, then the default rewriter is returned (currently at most one).
      * Passing an empty list effectively turns off rewriting.
+     * The tables are compiled once (see RewriterCache), i.e. iterating does not parse them again.
      */
     public static Iterable<UtteranceRewriter> genRewriters(final SharedPreferences prefs,
                                                            final Resources resources,
                                                            String[] rewritesByName,
-                                                           String language,
-                                                           ComponentName service,
-                                                           ComponentName app) {
+                                                           final String language,
+                                                           final ComponentName service,
+                                                           final ComponentName app) {
         final String[] names;
         if (rewritesByName == null) {
             Set<String> defaults = PreferenceUtils.getPrefStringSet(prefs, resources, R.string.defaultRewriteTables);
@@ -331,7 +356,6 @@ public final class Utils {
         if (length == 0) {
             return Collections.EMPTY_LIST;
         }
-        final CommandMatcher commandMatcher = CommandMatcherFactory.createCommandFilter(language, service, app);
 
         return new Iterable<UtteranceRewriter>() {
             @Override
@@ -347,11 +371,12 @@ public final class Utils {
 
                     @Override
                     public UtteranceRewriter next() {
-                        String rewritesAsStr = PreferenceUtils.getPrefMapEntry(prefs, resources, R.string.keyRewritesMap, names[mCurrent++]);
+                        String name = names[mCurrent++];
+                        String rewritesAsStr = PreferenceUtils.getPrefMapEntry(prefs, resources, R.string.keyRewritesMap, name);
                         if (rewritesAsStr == null) {
                             return null;
                         }
-                        return new UtteranceRewriter(rewritesAsStr, commandMatcher);
+                        return RewriterCache.get(prefs, resources, name, rewritesAsStr, language, service, app);
                     }
                 };
             }
@@ -366,6 +391,26 @@ public final class Utils {
         return list;
     }
 
+    /**
+     * Returns the trailing silence (in milliseconds) that completes the input, as specified by the caller
+     * in EXTRA_SPEECH_INPUT_COMPLETE_SILENCE_LENGTH_MILLIS (as int or long), or the default if the caller
+     * did not specify it, or specified a length that is not positive (which would end the input
+     * at the first pause).
+     */
+    public static int getCompleteSilenceLength(Bundle extras) {
+        if (extras != null) {
+            Object value = extras.get(RecognizerIntent.EXTRA_SPEECH_INPUT_COMPLETE_SILENCE_LENGTH_MILLIS);
+            if (value instanceof Number) {
+                long length = ((Number) value).longValue();
+                if (length > 0) {
+                    return (int) Math.min(length, Integer.MAX_VALUE);
+                }
+                Log.i("Ignoring the complete silence length: " + length);
+            }
+        }
+        return Endpointer.DEFAULT_SILENCE_LENGTH;
+    }
+
     public static Intent getRecognizerIntent(String action, CallerInfo callerInfo, String language) {
         Intent intent = new Intent(action);
         Bundle extras = callerInfo.getExtras();
@@ -379,7 +424,7 @@ public final class Utils {
             intent.putExtra(Extras.EXTRA_EDITOR_INFO, toBundle(callerInfo.getEditorInfo()));
         }
         // Declaring that in the IME we would like to allow longer pauses (2 sec).
-        // The service might not implement these (e.g. Kõnele currently does not)
+        // The service might not implement these (Kõnele implements only the first one)
         // TODO: what is the difference of these two constants?
         //intent.putExtra(RecognizerIntent.EXTRA_SPEECH_INPUT_COMPLETE_SILENCE_LENGTH_MILLIS, 2000);
         //intent.putExtra(RecognizerIntent.EXTRA_SPEECH_INPUT_POSSIBLY_COMPLETE_SILENCE_LENGTH_MILLIS, 2000);
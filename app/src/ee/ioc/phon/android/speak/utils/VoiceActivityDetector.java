@@ -0,0 +1,97 @@
+package ee.ioc.phon.android.speak.utils;
+
+/**
+ * Frame-level voice activity detector for 16-bit PCM, in pure Java. A frame is speech if its energy is
+ * well above the noise floor, or if it is somewhat above the noise floor and has a high zero-crossing rate
+ * (i.e. it is likely a fricative, which has little energy). The noise floor is the minimum energy over
+ * the last couple of seconds (see NoiseFloor), i.e. it does not depend on the decisions, and it follows
+ * the noise also if the noise gets louder. The digital silence (e.g. zeros) is not noise, and does not
+ * count for the noise floor. After the last speech frame, the frames are still reported as speech
+ * for the hangover time, to bridge the short pauses within the speech.
+ */
+public class VoiceActivityDetector {
+
+    public static final int FRAME_LENGTH = 20;
+
+    // Energy (in dB, relative to 1) below which a frame is never speech
+    private static final double MIN_SPEECH_ENERGY = 30;
+    // Zero-crossing rate (crossings per sample) above which a quiet frame can be a fricative
+    private static final double FRICATIVE_ZCR = 0.25;
+    // Length (in milliseconds) of the window of the noise floor, which must contain a pause of the speech
+    private static final int NOISE_WINDOW = 2000;
+    // Energy (in dB) below which a frame is digital silence (the RMS of its samples is below 1.7)
+    private static final double DIGITAL_SILENCE_ENERGY = 6;
+    // Upper bound of the noise floor until its window is full, in case the recording starts with speech
+    private static final double MAX_INITIAL_NOISE_FLOOR = 45;
+
+    private final int mFrameSize;
+    private final double mThreshold;
+    private final int mHangoverFrames;
+
+    private final NoiseFloor mNoiseFloor = new NoiseFloor(NOISE_WINDOW, DIGITAL_SILENCE_ENERGY);
+    // Time (in milliseconds) of the current frame
+    private long mTime;
+    private int mHangover;
+
+    /**
+     * @param sampleRate sample rate in Hz
+     * @param threshold  energy (in dB) above the noise floor that makes a frame speech
+     * @param hangover   time (in milliseconds) after the last speech frame that is still speech
+     */
+    public VoiceActivityDetector(int sampleRate, double threshold, int hangover) {
+        mFrameSize = 2 * sampleRate * FRAME_LENGTH / 1000;
+        mThreshold = threshold;
+        mHangoverFrames = hangover / FRAME_LENGTH;
+    }
+
+    /**
+     * @return number of bytes in a frame
+     */
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Classifies the frame of little-endian 16-bit PCM that starts at the given offset.
+     *
+     * @return true iff the frame is speech (or within the hangover time after speech)
+     */
+    public boolean isSpeech(byte[] pcm, int offset) {
+        int numSamples = mFrameSize / 2;
+        double sum = 0;
+        int numCrossings = 0;
+        int previous = 0;
+        for (int i = 0; i < numSamples; i++) {
+            int sample = (short) ((pcm[offset + 2 * i + 1] << 8) | (pcm[offset + 2 * i] & 0xFF));
+            sum += (double) sample * sample;
+            if (i > 0 && (sample ^ previous) < 0) {
+                numCrossings++;
+            }
+            previous = sample;
+        }
+        double energy = 10 * Math.log10(sum / numSamples + 1);
+        double zcr = (double) numCrossings / numSamples;
+
+        mNoiseFloor.update(energy, mTime);
+        mTime += FRAME_LENGTH;
+        double noiseFloor = mNoiseFloor.getFloor();
+        if (Double.isNaN(noiseFloor)) {
+            // Only digital silence so far
+            noiseFloor = MAX_INITIAL_NOISE_FLOOR;
+        } else if (!mNoiseFloor.isWindowFull()) {
+            noiseFloor = Math.min(noiseFloor, MAX_INITIAL_NOISE_FLOOR);
+        }
+        boolean isSpeech = energy > MIN_SPEECH_ENERGY
+                && (energy > noiseFloor + mThreshold
+                || energy > noiseFloor + mThreshold / 2 && zcr > FRICATIVE_ZCR);
+        if (isSpeech) {
+            mHangover = mHangoverFrames;
+            return true;
+        }
+        if (mHangover > 0) {
+            mHangover--;
+            return true;
+        }
+        return false;
+    }
+}
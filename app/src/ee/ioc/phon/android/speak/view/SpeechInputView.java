@@ -18,16 +18,18 @@ import android.widget.ImageButton;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import ee.ioc.phon.android.speak.Log;
 import ee.ioc.phon.android.speak.OnSwipeTouchListener;
 import ee.ioc.phon.android.speak.R;
+import ee.ioc.phon.android.speak.RecognizerPool;
 import ee.ioc.phon.android.speak.ServiceLanguageChooser;
 import ee.ioc.phon.android.speak.activity.ComboSelectorActivity;
 import ee.ioc.phon.android.speak.model.CallerInfo;
 import ee.ioc.phon.android.speak.model.Combo;
+import ee.ioc.phon.android.speak.service.AbstractRecognitionService;
+import ee.ioc.phon.android.speak.service.LocalRecognitionListener;
 import ee.ioc.phon.android.speechutils.Extras;
 import ee.ioc.phon.android.speechutils.utils.IntentUtils;
 import ee.ioc.phon.android.speechutils.utils.PreferenceUtils;
@@ -35,6 +37,9 @@ import ee.ioc.phon.android.speechutils.view.MicButton;
 
 public class SpeechInputView extends LinearLayout {
 
+    // Upload lag (in seconds) beyond which the partial results are shown with a warning
+    private static final float UPLOAD_LAG_WARNING = 2;
+
     private MicButton mBImeStartStop;
     private ImageButton mBImeKeyboard;
     private Button mBComboSelector;
@@ -42,7 +47,10 @@ public class SpeechInputView extends LinearLayout {
     private TextView mTvMessage;
 
     private SpeechInputViewListener mListener;
-    private SpeechRecognizer mRecognizer;
+    // Recognizer of the current (or last) session, kept in the pool between the sessions
+    private RecognizerPool.Entry mRecognizer;
+    // Listener of the current (or last) session of the recognizer, which owns the session
+    private SpeechInputRecognitionListener mRecognitionListener;
     private ServiceLanguageChooser mSlc;
 
     private MicButton.State mState;
@@ -120,7 +128,7 @@ public class SpeechInputView extends LinearLayout {
             buttonSearch.setOnClickListener(new OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    cancelOrDestroy();
+                    cancelSession();
                     mListener.onSearch();
                 }
             });
@@ -196,7 +204,7 @@ public class SpeechInputView extends LinearLayout {
                 mBComboSelector.setVisibility(View.GONE);
             }
         }
-        updateServiceLanguage(mSlc.getSpeechRecognizer());
+        cancelSession();
         if (mBComboSelector != null) {
             updateComboSelector(mSlc);
         }
@@ -231,7 +239,7 @@ public class SpeechInputView extends LinearLayout {
                         break;
                     case LISTENING:
                     case TRANSCRIBING:
-                        cancelOrDestroy();
+                        cancelSession();
                         setGuiInitState(0);
                         break;
                     default:
@@ -255,7 +263,7 @@ public class SpeechInputView extends LinearLayout {
             mBComboSelector.setOnLongClickListener(new OnLongClickListener() {
                 @Override
                 public boolean onLongClick(View view) {
-                    cancelOrDestroy();
+                    cancelSession();
                     Context context = getContext();
                     Intent intent = new Intent(context, ComboSelectorActivity.class);
                     intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -277,13 +285,13 @@ public class SpeechInputView extends LinearLayout {
     // TODO: make public?
     private void stopListening() {
         if (mRecognizer != null) {
-            mRecognizer.stopListening();
+            mRecognizer.stopListening(mRecognitionListener);
         }
         mListener.onStopListening();
     }
 
     public void cancel() {
-        cancelOrDestroy();
+        cancelSession();
         setGuiInitState(0);
     }
 
@@ -415,35 +423,45 @@ public class SpeechInputView extends LinearLayout {
         mBComboSelector.setText(combo.getLongLabel());
     }
 
-    private void updateServiceLanguage(SpeechRecognizer sr) {
-        cancelOrDestroy();
-        mRecognizer = sr;
-        mRecognizer.setRecognitionListener(new SpeechInputRecognitionListener());
-    }
-
     private void startListening(ServiceLanguageChooser slc) {
         setGuiState(MicButton.State.WAITING);
-        updateServiceLanguage(slc.getSpeechRecognizer());
-        mRecognizer.startListening(slc.getIntent());
+        cancelSession();
+        // The recognizer is not destroyed between the sessions, i.e. its service stays bound
+        mRecognizer = slc.getRecognizer();
+        mRecognitionListener = new SpeechInputRecognitionListener(mRecognizer);
+        mRecognizer.startListening(slc.getIntent(), mRecognitionListener);
         mListener.onStartListening();
     }
 
     /**
-     * TODO: not sure if its better to call cancel or destroy
-     * Note that SpeechRecognizer#destroy calls cancel first.
+     * Cancels the current session (if any), but keeps the recognizer and its service in the pool,
+     * which destroys it after it has been idle for a while.
      */
-    private void cancelOrDestroy() {
+    private void cancelSession() {
         if (mRecognizer != null) {
-            mRecognizer.destroy();
-            mRecognizer = null;
+            mRecognizer.cancel(mRecognitionListener);
         }
     }
 
 
-    private class SpeechInputRecognitionListener implements RecognitionListener {
+    /**
+     * Listens to the service either via SpeechRecognizer (Bundles), or in-process (values).
+     */
+    private class SpeechInputRecognitionListener implements RecognitionListener, LocalRecognitionListener {
+
+        private final RecognizerPool.Entry mEntry;
+
+        SpeechInputRecognitionListener(RecognizerPool.Entry entry) {
+            mEntry = entry;
+        }
 
         @Override
         public void onReadyForSpeech(Bundle params) {
+            onReadyForSpeech();
+        }
+
+        @Override
+        public void onReadyForSpeech() {
             Log.i("onReadyForSpeech: state = " + mState);
             setGuiState(MicButton.State.LISTENING);
             setText(mTvInstruction, R.string.buttonImeStop);
@@ -479,6 +497,7 @@ public class SpeechInputView extends LinearLayout {
         @Override
         public void onError(final int errorCode) {
             Log.i("onError: " + errorCode);
+            mEntry.finishSession(this);
             mListener.onError(errorCode);
 
             switch (errorCode) {
@@ -518,12 +537,26 @@ public class SpeechInputView extends LinearLayout {
 
         @Override
         public void onPartialResults(final Bundle bundle) {
+            // This can be true only with kaldi-gstreamer-server
+            onPartialResults(bundle.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION),
+                    bundle.getBoolean(Extras.EXTRA_SEMI_FINAL),
+                    bundle.getFloat(AbstractRecognitionService.EXTRA_UPLOAD_LAG), bundle);
+        }
+
+        @Override
+        public void onPartialResults(List<String> results, boolean isSemiFinal, float lag) {
+            onPartialResults(results, isSemiFinal, lag, new Bundle());
+        }
+
+        private void onPartialResults(List<String> results, boolean isSemiFinal, float lag, Bundle bundle) {
             Log.i("onPartialResults: state = " + mState);
-            ArrayList<String> results = bundle.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
             if (results != null && !results.isEmpty()) {
-                // This can be true only with kaldi-gstreamer-server
-                boolean isSemiFinal = bundle.getBoolean(Extras.EXTRA_SEMI_FINAL);
-                showMessage(lastChars(results, isSemiFinal));
+                if (lag > UPLOAD_LAG_WARNING) {
+                    showMessage(String.format(getResources().getString(R.string.warningUploadLag), lag,
+                            lastChars(results, isSemiFinal)));
+                } else {
+                    showMessage(lastChars(results, isSemiFinal));
+                }
                 if (isSemiFinal) {
                     mListener.onFinalResult(results, bundle);
                 } else {
@@ -540,9 +573,14 @@ public class SpeechInputView extends LinearLayout {
 
         @Override
         public void onResults(final Bundle bundle) {
+            onResults(bundle.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION), bundle);
+        }
+
+        @Override
+        public void onResults(List<String> results, Bundle bundle) {
             Log.i("onResults: state = " + mState);
-            ArrayList<String> results = bundle.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
             Log.i("onResults: results = " + results);
+            mEntry.finishSession(this);
             if (results == null || results.isEmpty()) {
                 // If we got empty results then assume that the session ended,
                 // e.g. cancel was called.
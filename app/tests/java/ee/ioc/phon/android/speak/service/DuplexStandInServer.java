@@ -0,0 +1,106 @@
+package ee.ioc.phon.android.speak.service;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.DataCallback;
+import com.koushikdutta.async.http.WebSocket;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+
+/**
+ * Local stand-in for the duplex speech API server. It accepts the audio of an utterance, and answers
+ * the end-of-utterance message with the final result of the utterance, keeping the socket open.
+ * The transcript of the n-th utterance (counted from 1 over all the sockets) is TRANSCRIPT + " " + n.
+ */
+class DuplexStandInServer {
+
+    static final String PATH = "/duplex-speech-api/ws/speech";
+    static final String TRANSCRIPT = "tere";
+
+    private static final String EOU = "EOU";
+
+    private final AsyncHttpServer mServer = new AsyncHttpServer();
+
+    private int mNumSockets;
+    private int mNumClosedSockets;
+    private int mNumUtterances;
+    // Number of audio bytes of the current utterance, and of the last finished utterance
+    private int mNumBytes;
+    private int mNumBytesLastUtterance;
+
+    void start(int port) {
+        mServer.websocket(PATH, new AsyncHttpServer.WebSocketRequestCallback() {
+            @Override
+            public void onConnected(final WebSocket webSocket, AsyncHttpServerRequest request) {
+                onSocket();
+                webSocket.setDataCallback(new DataCallback() {
+                    @Override
+                    public void onDataAvailable(DataEmitter emitter, ByteBufferList bb) {
+                        onAudio(bb.remaining());
+                        bb.recycle();
+                    }
+                });
+                webSocket.setStringCallback(new WebSocket.StringCallback() {
+                    @Override
+                    public void onStringAvailable(String s) {
+                        if (EOU.equals(s)) {
+                            webSocket.send(makeFinalResult(onEndOfUtterance()));
+                        }
+                    }
+                });
+                webSocket.setClosedCallback(new CompletedCallback() {
+                    @Override
+                    public void onCompleted(Exception ex) {
+                        onClosed();
+                    }
+                });
+            }
+        });
+        mServer.listen(AsyncServer.getDefault(), port);
+    }
+
+    void stop() {
+        mServer.stop();
+    }
+
+    synchronized int getNumSockets() {
+        return mNumSockets;
+    }
+
+    synchronized int getNumClosedSockets() {
+        return mNumClosedSockets;
+    }
+
+    synchronized int getNumUtterances() {
+        return mNumUtterances;
+    }
+
+    synchronized int getNumBytesLastUtterance() {
+        return mNumBytesLastUtterance;
+    }
+
+    private synchronized void onSocket() {
+        mNumSockets++;
+    }
+
+    private synchronized void onClosed() {
+        mNumClosedSockets++;
+    }
+
+    private synchronized void onAudio(int numBytes) {
+        mNumBytes += numBytes;
+    }
+
+    private synchronized int onEndOfUtterance() {
+        mNumBytesLastUtterance = mNumBytes;
+        mNumBytes = 0;
+        return ++mNumUtterances;
+    }
+
+    private static String makeFinalResult(int utterance) {
+        return "{\"status\": 0, \"result\": {\"hypotheses\": [{\"transcript\": \""
+                + TRANSCRIPT + " " + utterance + "\"}], \"final\": true}}";
+    }
+}
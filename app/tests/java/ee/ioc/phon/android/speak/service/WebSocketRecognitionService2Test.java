@@ -0,0 +1,184 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.Manifest;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.GrantPermissionRule;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ee.ioc.phon.android.speechutils.Extras;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs utterances through WebSocketRecognitionService2 against the local stand-in server, and checks
+ * that the end of each utterance is sent as EOU, that its final result is returned, and that
+ * all the utterances go over the same socket.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WebSocketRecognitionService2Test {
+
+    private static final int PORT = 8082;
+    private static final String SERVER_URL = "ws://localhost:" + PORT + DuplexStandInServer.PATH;
+    private static final int NUM_UTTERANCES = 3;
+    // Length of the audio of an utterance
+    private static final int UTTERANCE_LENGTH = 500;
+    private static final int TIMEOUT = 10000;
+
+    @Rule
+    public final GrantPermissionRule mPermissionRule = GrantPermissionRule.grant(Manifest.permission.RECORD_AUDIO);
+
+    private final BlockingQueue<Object> mEvents = new ArrayBlockingQueue<>(100);
+    private Context mContext;
+    private ComponentName mService;
+    private DuplexStandInServer mServer;
+    private SpeechRecognizer mRecognizer;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mService = new ComponentName(mContext, WebSocketRecognitionService2.class);
+        // The service is disabled in the manifest
+        mContext.getPackageManager().setComponentEnabledSetting(mService,
+                PackageManager.COMPONENT_ENABLED_STATE_ENABLED, PackageManager.DONT_KILL_APP);
+        mServer = new DuplexStandInServer();
+        mServer.start(PORT);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mRecognizer = SpeechRecognizer.createSpeechRecognizer(mContext, mService);
+                mRecognizer.setRecognitionListener(new QueueingListener());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mRecognizer.destroy();
+            }
+        });
+        mServer.stop();
+        mContext.getPackageManager().setComponentEnabledSetting(mService,
+                PackageManager.COMPONENT_ENABLED_STATE_DEFAULT, PackageManager.DONT_KILL_APP);
+    }
+
+    @Test
+    public void endOfUtteranceAndFinalResult() throws InterruptedException {
+        for (int i = 1; i <= NUM_UTTERANCES; i++) {
+            final Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+            intent.putExtra(Extras.EXTRA_SERVER_URL, SERVER_URL);
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mRecognizer.startListening(intent);
+                }
+            });
+            assertEquals("onReadyForSpeech", awaitEvent(String.class));
+            Thread.sleep(UTTERANCE_LENGTH);
+            runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    mRecognizer.stopListening();
+                }
+            });
+
+            // The service sends EOU after the audio, and returns the final result of the server
+            List<?> results = awaitEvent(List.class);
+            assertEquals(DuplexStandInServer.TRANSCRIPT + " " + i, results.get(0));
+            assertEquals(i, mServer.getNumUtterances());
+            assertTrue(mServer.getNumBytesLastUtterance() > 0);
+        }
+        // The socket carried all the utterances, and was not closed between them
+        assertEquals(1, mServer.getNumSockets());
+        assertEquals(0, mServer.getNumClosedSockets());
+    }
+
+    /**
+     * Waits for the next event of the given type, skipping the other events, and fails on an error.
+     */
+    private <T> T awaitEvent(Class<T> type) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            Object event = mEvents.poll(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            assertNotNull("Timeout waiting for " + type.getSimpleName(), event);
+            if (event instanceof Integer) {
+                throw new AssertionError("onError: " + event);
+            }
+            if (type.isInstance(event)) {
+                return type.cast(event);
+            }
+        }
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+
+    /**
+     * Puts onReadyForSpeech (as a string), the errors (as integers) and the results (as lists) into the queue.
+     */
+    private class QueueingListener implements RecognitionListener {
+
+        @Override
+        public void onReadyForSpeech(Bundle params) {
+            mEvents.add("onReadyForSpeech");
+        }
+
+        @Override
+        public void onBeginningOfSpeech() {
+        }
+
+        @Override
+        public void onRmsChanged(float rmsdB) {
+        }
+
+        @Override
+        public void onBufferReceived(byte[] buffer) {
+        }
+
+        @Override
+        public void onEndOfSpeech() {
+        }
+
+        @Override
+        public void onError(int error) {
+            mEvents.add(error);
+        }
+
+        @Override
+        public void onResults(Bundle results) {
+            mEvents.add(results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION));
+        }
+
+        @Override
+        public void onPartialResults(Bundle partialResults) {
+        }
+
+        @Override
+        public void onEvent(int eventType, Bundle params) {
+        }
+    }
+}
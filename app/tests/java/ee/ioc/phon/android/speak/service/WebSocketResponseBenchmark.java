@@ -0,0 +1,182 @@
+package ee.ioc.phon.android.speak.service;
+
+import android.os.Bundle;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ee.ioc.phon.android.speak.Log;
+import ee.ioc.phon.android.speechutils.utils.TextUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Compares the streaming parser of the server messages with the JSONObject-based parser that it replaced,
+ * on a trace of the messages of a dictation session. Runs on the device, because both parsers use
+ * the platform's JSON classes. Reports the time and the number of allocations per message.
+ * <p>
+ * The trace is a text file with one server message per line, e.g. the messages that a
+ * kaldi-gstreamer-server sent during a real session. Its path on the device is given by the
+ * instrumentation argument "trace":
+ * <pre>
+ * adb push responses.txt /data/local/tmp/
+ * adb shell am instrument -w -e trace /data/local/tmp/responses.txt \
+ *     -e class ee.ioc.phon.android.speak.service.WebSocketResponseBenchmark ...
+ * </pre>
+ * Without it, the sample trace in the assets of the tests is used. It has the form of the
+ * server messages (growing partial results with one hypothesis, final results with an n-best list,
+ * an adaptation state), but is not a recording of a session.
+ * <p>
+ * As in the service, each result is read up to maxResults hypotheses (the instrumentation argument
+ * "maxResults", by default the cap that the service applies if the caller does not set
+ * EXTRA_MAX_RESULTS), and all the returned hypotheses are read.
+ */
+@RunWith(AndroidJUnit4.class)
+public class WebSocketResponseBenchmark {
+
+    private static final String ASSET_TRACE = "websocket-responses.txt";
+    // Same as WebSocketRecognitionService.MAX_HYPOTHESES
+    private static final int MAX_HYPOTHESES = 100;
+    private static final int NUM_WARMUP_ROUNDS = 5;
+    private static final int NUM_ROUNDS = 20;
+
+    private static List<String> sTrace;
+    private static int sMaxResults;
+
+    private interface Parser {
+        List<String> parse(String message) throws Exception;
+    }
+
+    private static final Parser STREAMING = new Parser() {
+        @Override
+        public List<String> parse(String message) throws Exception {
+            WebSocketResponse response = new WebSocketResponse(message, sMaxResults);
+            if (!response.isResult()) {
+                return Collections.emptyList();
+            }
+            return response.parseResult().getHypotheses(sMaxResults, true);
+        }
+    };
+
+    private static final Parser DOM = new Parser() {
+        @Override
+        public List<String> parse(String message) throws Exception {
+            return parseDom(message, sMaxResults);
+        }
+    };
+
+    @BeforeClass
+    public static void loadTrace() throws IOException {
+        Bundle args = InstrumentationRegistry.getArguments();
+        String path = args.getString("trace");
+        InputStream is;
+        if (path == null) {
+            is = InstrumentationRegistry.getContext().getAssets().open(ASSET_TRACE);
+        } else {
+            is = new FileInputStream(path);
+        }
+        sTrace = readLines(is);
+        sMaxResults = Integer.parseInt(args.getString("maxResults", String.valueOf(MAX_HYPOTHESES)));
+        Log.i("Benchmark: " + sTrace.size() + " messages from " + (path == null ? ASSET_TRACE : path)
+                + ", maxResults = " + sMaxResults);
+    }
+
+    @Test
+    public void sameResults() throws Exception {
+        assertFalse(sTrace.isEmpty());
+        for (String message : sTrace) {
+            assertEquals(DOM.parse(message), STREAMING.parse(message));
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        for (int i = 0; i < NUM_WARMUP_ROUNDS; i++) {
+            run(DOM, sTrace);
+            run(STREAMING, sTrace);
+        }
+        measure("DOM", DOM, sTrace);
+        measure("streaming", STREAMING, sTrace);
+    }
+
+    private static void measure(String name, Parser parser, List<String> trace) throws Exception {
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_ROUNDS; i++) {
+            run(parser, trace);
+        }
+        long time = System.nanoTime() - start;
+        long numAllocs = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        long numParsed = (long) trace.size() * NUM_ROUNDS;
+        Log.i("Benchmark: " + name + ": " + (time / numParsed) + " ns/message, "
+                + (numAllocs / numParsed) + " allocations/message");
+    }
+
+    /**
+     * Reads all the returned hypotheses, as the service puts them all into the results bundle.
+     */
+    private static int run(Parser parser, List<String> trace) throws Exception {
+        int length = 0;
+        for (String message : trace) {
+            for (String hypothesis : parser.parse(message)) {
+                length += hypothesis.length();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * The parser that the streaming parser replaced: builds the JSON tree,
+     * and pretty-prints the hypotheses up to maxHypotheses.
+     */
+    private static List<String> parseDom(String message, int maxHypotheses) throws JSONException {
+        JSONObject json = new JSONObject(message);
+        json.getInt("status");
+        JSONObject result = json.optJSONObject("result");
+        if (result == null) {
+            return Collections.emptyList();
+        }
+        result.optBoolean("final", false);
+        ArrayList<String> hypotheses = new ArrayList<>();
+        JSONArray array = result.getJSONArray("hypotheses");
+        for (int i = 0; i < array.length() && i < maxHypotheses; i++) {
+            hypotheses.add(TextUtils.prettyPrint(array.getJSONObject(i).getString("transcript")));
+        }
+        return hypotheses;
+    }
+
+    private static List<String> readLines(InputStream is) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+}
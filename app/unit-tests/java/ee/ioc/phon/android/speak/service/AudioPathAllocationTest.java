@@ -0,0 +1,166 @@
+package ee.ioc.phon.android.speak.service;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the app's part of the WebSocket audio path does not allocate per frame in the steady state:
+ * the tee, the silence filter, the frame buffer and the sender's reader, called the way the pump and
+ * the sender call them. The recorder (which returns a new array for every frame) is not included,
+ * because it is in the speechutils library.
+ * <p>
+ * Counts the bytes that the test thread allocates, i.e. runs on a HotSpot JVM only.
+ */
+public class AudioPathAllocationTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    // Length of a frame of the pump in milliseconds
+    private static final int FRAME_LENGTH = 100;
+    private static final int FRAME_SIZE = 2 * SAMPLE_RATE * FRAME_LENGTH / 1000;
+    // Alternating speech and silence (in frames), so that the filter passes, pads and drops audio
+    private static final int SPEECH_FRAMES = 15;
+    private static final int SILENCE_FRAMES = 25;
+    private static final int NUM_WARMUP_FRAMES = 20000;
+    private static final int NUM_FRAMES = 10000;
+
+    private byte[][] mFrames;
+    private byte[] mReadBytes;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(isAllocationCounted());
+        Random random = new Random(1);
+        mFrames = new byte[SPEECH_FRAMES + SILENCE_FRAMES][];
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = makeFrame(random, i < SPEECH_FRAMES ? 8000 : 50);
+        }
+        mReadBytes = new byte[FRAME_SIZE];
+    }
+
+    @Test
+    public void rawAudio() {
+        AudioFrameBuffer buffer = new AudioFrameBuffer(10 * FRAME_SIZE);
+        Pump pump = new Pump(buffer, null);
+        assertNoAllocation(pump);
+        buffer.release();
+    }
+
+    @Test
+    public void silenceFilter() {
+        AudioFrameBuffer buffer = new AudioFrameBuffer(10 * FRAME_SIZE);
+        Pump pump = new Pump(buffer, new SilenceFilter(SAMPLE_RATE, 10, 300));
+        assertNoAllocation(pump);
+        assertTrue("Nothing was dropped", pump.mNumBytesRead < (long) (NUM_WARMUP_FRAMES + NUM_FRAMES) * FRAME_SIZE);
+        buffer.release();
+    }
+
+    @Test
+    public void frameBufferPassesTheAudio() throws InterruptedException {
+        AudioFrameBuffer buffer = new AudioFrameBuffer(10 * FRAME_SIZE);
+        AudioFrameBuffer.Reader reader = buffer.newReader();
+        byte[] bytes = new byte[FRAME_SIZE];
+        for (int i = 0; i < 3 * mFrames.length; i++) {
+            byte[] frame = mFrames[i % mFrames.length];
+            // The part of the array that is put is read back, also across the end of the ring
+            buffer.put(frame, 1, FRAME_SIZE - 1);
+            assertEquals(FRAME_SIZE - 1, reader.read(bytes));
+            byte[] expected = new byte[FRAME_SIZE - 1];
+            byte[] actual = new byte[FRAME_SIZE - 1];
+            System.arraycopy(frame, 1, expected, 0, expected.length);
+            System.arraycopy(bytes, 0, actual, 0, actual.length);
+            assertArrayEquals(expected, actual);
+        }
+        buffer.release();
+    }
+
+    /**
+     * Runs the pump until it has warmed up (the arrays have grown, and the code is compiled),
+     * and checks that the frames after that do not allocate. Allows for a one-off allocation,
+     * but not for one per frame.
+     */
+    private void assertNoAllocation(Pump pump) {
+        pump.run(NUM_WARMUP_FRAMES);
+        long overhead = -getAllocatedBytes() + getAllocatedBytes();
+        long start = getAllocatedBytes();
+        pump.run(NUM_FRAMES);
+        long allocated = getAllocatedBytes() - start - overhead;
+        assertEquals("Allocated " + allocated + " bytes in " + NUM_FRAMES + " frames", 0, allocated / NUM_FRAMES);
+    }
+
+    private static byte[] makeFrame(Random random, int amplitude) {
+        byte[] frame = new byte[FRAME_SIZE];
+        for (int i = 0; i < FRAME_SIZE / 2; i++) {
+            double value = amplitude * (0.7 * Math.sin(2 * Math.PI * 220 * i / SAMPLE_RATE) + 0.3 * random.nextGaussian());
+            int sample = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            frame[2 * i] = (byte) sample;
+            frame[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return frame;
+    }
+
+    private static boolean isAllocationCounted() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled();
+    }
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The pump and the sender of WebSocketRecognitionService, on one thread: the frame goes through
+     * the tee and the (optional) silence filter into the frame buffer, and the reader takes it out.
+     */
+    private class Pump {
+        private final AudioTee mTee = new AudioTee();
+        private final AudioFrameBuffer.Reader mReader;
+        private int mIndex;
+        private long mNumBytesRead;
+
+        Pump(final AudioFrameBuffer buffer, final SilenceFilter silenceFilter) {
+            mReader = buffer.newReader();
+            final SilenceFilter.Output output = new SilenceFilter.Output() {
+                @Override
+                public void write(byte[] audio, int offset, int length) {
+                    buffer.put(audio, offset, length);
+                }
+            };
+            mTee.addEncodedSink(new AudioTee.Sink() {
+                @Override
+                public void onFrame(byte[] frame) {
+                    if (silenceFilter == null) {
+                        output.write(frame, 0, frame.length);
+                    } else {
+                        silenceFilter.filter(frame, false, output);
+                    }
+                }
+            });
+        }
+
+        void run(int numFrames) {
+            try {
+                for (int i = 0; i < numFrames; i++) {
+                    mTee.offer(mFrames[mIndex]);
+                    mIndex = (mIndex + 1) % mFrames.length;
+                    while (mReader.getNumBytesAvailable() > 0) {
+                        mNumBytesRead += mReader.read(mReadBytes);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
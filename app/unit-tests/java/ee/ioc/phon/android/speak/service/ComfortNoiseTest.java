@@ -0,0 +1,122 @@
+package ee.ioc.phon.android.speak.service;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import ee.ioc.phon.android.speak.utils.VoiceActivityDetector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replaces a recorded start cue (a beep in the room noise) with comfort noise, and checks its level.
+ */
+public class ComfortNoiseTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final double NOISE = 30;
+    private static final double BEEP = 8000;
+
+    @Test
+    public void levelOfTheRoomNoise() {
+        Random random = new Random(1);
+        // 50 ms of noise before the beep, 300 ms of beep, 100 ms of noise after it
+        byte[] cue = concat(noise(random, NOISE, 50), beep(random, 300), noise(random, NOISE, 100));
+        double rms = ComfortNoise.getMinRms(cue, SAMPLE_RATE);
+        assertEquals(NOISE, rms, NOISE / 3);
+
+        ComfortNoise.fill(cue, rms, random);
+        assertTrue(ComfortNoise.getMinRms(cue, SAMPLE_RATE) > NOISE / 2);
+        assertEquals(rms, getRms(cue), rms / 10);
+    }
+
+    @Test
+    public void digitalSilenceStaysSilent() {
+        Random random = new Random(2);
+        byte[] cue = concat(new byte[2 * SAMPLE_RATE / 20], beep(random, 300));
+        ComfortNoise.fill(cue, ComfortNoise.getMinRms(cue, SAMPLE_RATE), random);
+        assertEquals(0, getRms(cue), 0);
+    }
+
+    /**
+     * If the beep covers the whole recording, its level is not the noise.
+     */
+    @Test
+    public void onlyBeep() {
+        Random random = new Random(3);
+        byte[] cue = beep(random, 300);
+        ComfortNoise.fill(cue, ComfortNoise.getMinRms(cue, SAMPLE_RATE), random);
+        assertEquals(0, getRms(cue), 0);
+    }
+
+    @Test
+    public void shorterThanAFrame() {
+        byte[] cue = beep(new Random(4), 5);
+        double rms = ComfortNoise.getMinRms(cue, SAMPLE_RATE);
+        assertTrue(Double.isInfinite(rms));
+        ComfortNoise.fill(cue, rms, new Random(4));
+        assertEquals(0, getRms(cue), 0);
+    }
+
+    /**
+     * The room noise after the replaced cue is not speech.
+     */
+    @Test
+    public void noiseAfterTheCueIsNotSpeech() {
+        Random random = new Random(5);
+        byte[] cue = concat(noise(random, NOISE, 50), beep(random, 300), noise(random, NOISE, 100));
+        ComfortNoise.fill(cue, ComfortNoise.getMinRms(cue, SAMPLE_RATE), random);
+        byte[] audio = concat(cue, noise(random, NOISE, 3000));
+        VoiceActivityDetector vad = new VoiceActivityDetector(SAMPLE_RATE, 9, 0);
+        for (int offset = 0; offset + vad.getFrameSize() <= audio.length; offset += vad.getFrameSize()) {
+            assertFalse("Frame at " + offset, vad.isSpeech(audio, offset));
+        }
+    }
+
+    private static byte[] noise(Random random, double rms, int length) {
+        byte[] pcm = new byte[2 * SAMPLE_RATE * length / 1000];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            put(pcm, i, rms * random.nextGaussian());
+        }
+        return pcm;
+    }
+
+    private static byte[] beep(Random random, int length) {
+        byte[] pcm = new byte[2 * SAMPLE_RATE * length / 1000];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            put(pcm, i, BEEP * Math.sin(2 * Math.PI * 1000 * i / SAMPLE_RATE) + NOISE * random.nextGaussian());
+        }
+        return pcm;
+    }
+
+    private static void put(byte[] pcm, int i, double value) {
+        long sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+        pcm[2 * i] = (byte) sample;
+        pcm[2 * i + 1] = (byte) (sample >> 8);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] pcm = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, pcm, offset, part.length);
+            offset += part.length;
+        }
+        return pcm;
+    }
+
+    private static double getRms(byte[] pcm) {
+        double sum = 0;
+        for (int i = 0; i < pcm.length / 2; i++) {
+            int sample = (short) ((pcm[2 * i + 1] << 8) | (pcm[2 * i] & 0xFF));
+            sum += (double) sample * sample;
+        }
+        return Math.sqrt(sum / (pcm.length / 2));
+    }
+}
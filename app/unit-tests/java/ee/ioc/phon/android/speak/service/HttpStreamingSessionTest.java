@@ -0,0 +1,56 @@
+package ee.ioc.phon.android.speak.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The chunks and the end of a request that failed to open are reported as I/O errors (and not as
+ * a NullPointerException, which would kill the pool thread).
+ */
+public class HttpStreamingSessionTest {
+
+    private static final byte[] CHUNK = new byte[320];
+
+    private HttpStreamingSession mSession;
+
+    @Before
+    public void setUp() throws IOException {
+        // A port that nobody listens on, i.e. the connection is refused
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        mSession = new HttpStreamingSession(new URL("http://127.0.0.1:" + port + "/recognize"), "audio/x-raw", null);
+        try {
+            mSession.open();
+            fail("Connected to a closed port");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void sendAfterFailedOpen() throws IOException {
+        mSession.send(CHUNK);
+    }
+
+    @Test(expected = IOException.class)
+    public void finishAfterFailedOpen() throws IOException {
+        mSession.finish(null);
+    }
+
+    @Test
+    public void cancelledAfterFailedOpen() throws IOException {
+        mSession.cancel();
+        assertTrue(mSession.isFinished());
+        mSession.send(CHUNK);
+        assertNull(mSession.finish(CHUNK));
+    }
+}
@@ -0,0 +1,109 @@
+package ee.ioc.phon.android.speak.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds the endpointer with the levels of the volume meter (every 100 ms, as in the service),
+ * and checks when the endpoint fires.
+ */
+public class EndpointerTest {
+
+    private static final long STEP = 100;
+    private static final int SILENCE_LENGTH = 1000;
+    private static final float NOISE = 12;
+    private static final float SPEECH = 30;
+
+    private Endpointer mEndpointer;
+    // Time of the endpoint, or -1
+    private long mEndpoint;
+    private long mTime;
+
+    @Before
+    public void setUp() {
+        mEndpoint = -1;
+        mTime = 0;
+        mEndpointer = new Endpointer(SILENCE_LENGTH, new Endpointer.Listener() {
+            @Override
+            public void onEndpoint() {
+                assertEquals(-1, mEndpoint);
+                mEndpoint = mTime;
+            }
+        });
+    }
+
+    @Test
+    public void trailingSilence() {
+        add(NOISE, 1000);
+        add(SPEECH, 2000);
+        long silenceStart = mTime;
+        add(NOISE, 3000);
+        assertEquals(silenceStart + SILENCE_LENGTH, mEndpoint);
+    }
+
+    @Test
+    public void noEndpointBeforeSpeech() {
+        add(NOISE, 5000);
+        assertEquals(-1, mEndpoint);
+    }
+
+    @Test
+    public void pauseShorterThanSilenceLength() {
+        add(NOISE, 1000);
+        add(SPEECH, 1000);
+        add(NOISE, SILENCE_LENGTH - STEP);
+        add(SPEECH, 1000);
+        long silenceStart = mTime;
+        add(NOISE, 3000);
+        assertEquals(silenceStart + SILENCE_LENGTH, mEndpoint);
+    }
+
+    /**
+     * The muted start cue (digital silence) does not pull the noise floor down, i.e. the noise after it
+     * is not speech.
+     */
+    @Test
+    public void leadingDigitalSilence() {
+        add(0, 800);
+        add(NOISE, 1000);
+        add(SPEECH, 2000);
+        long silenceStart = mTime;
+        add(NOISE, 3000);
+        assertEquals(silenceStart + SILENCE_LENGTH, mEndpoint);
+    }
+
+    /**
+     * The noise gets louder after the speech. The louder noise is first taken for speech, but the noise floor
+     * follows it within its window, i.e. the endpoint is delayed, but it does fire.
+     */
+    @Test
+    public void noiseStepAfterSpeech() {
+        add(NOISE, 1000);
+        add(SPEECH, 2000);
+        long silenceStart = mTime;
+        add(NOISE + 10, 6000);
+        assertTrue("Endpoint: " + mEndpoint, mEndpoint > 0 && mEndpoint <= silenceStart + 2000 + SILENCE_LENGTH + 2 * STEP);
+    }
+
+    /**
+     * The microphone goes silent after the speech.
+     */
+    @Test
+    public void digitalSilenceAfterSpeech() {
+        add(NOISE, 1000);
+        add(SPEECH, 2000);
+        long silenceStart = mTime;
+        add(Float.NEGATIVE_INFINITY, 3000);
+        assertEquals(silenceStart + SILENCE_LENGTH, mEndpoint);
+    }
+
+    private void add(float level, long length) {
+        long end = mTime + length;
+        for (; mTime < end; mTime += STEP) {
+            mEndpointer.onLevel(level, mTime);
+        }
+    }
+}
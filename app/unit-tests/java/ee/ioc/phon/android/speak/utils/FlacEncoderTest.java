@@ -0,0 +1,308 @@
+package ee.ioc.phon.android.speak.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes synthetic audio, decodes it with a minimal FLAC decoder (of the subset that the encoder writes,
+ * checking the CRCs), and compares the result to the input. The benchmark reports the encoding speed
+ * (as a multiple of real time) and the compression ratio, on the JVM rather than on a device.
+ */
+public class FlacEncoderTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int NUM_BENCHMARK_SECONDS = 60;
+    private static final int NUM_BENCHMARK_ROUNDS = 5;
+    // Length of a chunk of the recorder, as given to the encoder
+    private static final int CHUNK_SIZE = 3200;
+
+    @Test
+    public void speechRoundTrip() {
+        short[] samples = makeSpeech(new Random(1), 10 * SAMPLE_RATE);
+        assertArrayEquals(samples, encode(samples, new Random(2)));
+    }
+
+    @Test
+    public void silenceIsConstant() {
+        short[] samples = new short[3 * FlacEncoder.BLOCK_SIZE + 7];
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+        byte[] flac = concat(encoder.encode(toPcm(samples)), encoder.flush());
+        assertArrayEquals(samples, new Decoder(flac).decode());
+        // A frame of silence takes 11 bytes (a constant subframe and the frame header), the stream header 42
+        assertTrue("Compression ratio: " + encoder.getCompressionRatio(), encoder.getCompressionRatio() > 50);
+    }
+
+    @Test
+    public void noiseIsVerbatim() {
+        Random random = new Random(3);
+        short[] samples = new short[5 * FlacEncoder.BLOCK_SIZE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+        byte[] flac = concat(encoder.encode(toPcm(samples)), encoder.flush());
+        assertArrayEquals(samples, new Decoder(flac).decode());
+        // Full-scale white noise does not compress, but it does not grow much either
+        assertTrue(encoder.getCompressionRatio() > 0.95);
+    }
+
+    @Test
+    public void unknownSampleRate() {
+        short[] samples = makeSpeech(new Random(4), 11025);
+        FlacEncoder encoder = new FlacEncoder(11025);
+        byte[] flac = concat(encoder.encode(toPcm(samples)), encoder.flush());
+        assertArrayEquals(samples, new Decoder(flac).decode());
+    }
+
+    @Test
+    public void benchmark() {
+        short[] samples = makeSpeech(new Random(5), NUM_BENCHMARK_SECONDS * SAMPLE_RATE);
+        byte[] pcm = toPcm(samples);
+        float ratio = 0;
+        long bestTime = Long.MAX_VALUE;
+        for (int round = 0; round < NUM_BENCHMARK_ROUNDS; round++) {
+            FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+            long start = System.nanoTime();
+            for (int offset = 0; offset < pcm.length; offset += CHUNK_SIZE) {
+                encoder.encode(pcm, offset, Math.min(CHUNK_SIZE, pcm.length - offset));
+            }
+            encoder.flush();
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            ratio = encoder.getCompressionRatio();
+        }
+        System.out.println("FlacEncoder: " + (NUM_BENCHMARK_SECONDS * 1e9 / bestTime) + "x real time, compression ratio "
+                + ratio + " (" + (int) (2 * SAMPLE_RATE / ratio) + " bytes/s)");
+        assertTrue("Compression ratio: " + ratio, ratio > 1.3);
+    }
+
+    /**
+     * Encodes the samples in chunks of random length (also of odd length, i.e. splitting the samples),
+     * and decodes them.
+     */
+    private static short[] encode(short[] samples, Random random) {
+        byte[] pcm = toPcm(samples);
+        FlacEncoder encoder = new FlacEncoder(SAMPLE_RATE);
+        ByteArrayOutputStream flac = new ByteArrayOutputStream();
+        int offset = 0;
+        while (offset < pcm.length) {
+            int length = Math.min(pcm.length - offset, random.nextInt(2 * CHUNK_SIZE) + 1);
+            byte[] encoded = encoder.encode(pcm, offset, length);
+            flac.write(encoded, 0, encoded.length);
+            offset += length;
+        }
+        byte[] encoded = encoder.flush();
+        flac.write(encoded, 0, encoded.length);
+        return new Decoder(flac.toByteArray()).decode();
+    }
+
+    /**
+     * Voiced segments (harmonics of a gliding pitch, with a syllable-rate envelope), fricative-like noise,
+     * and pauses with background noise.
+     */
+    private static short[] makeSpeech(Random random, int numSamples) {
+        short[] samples = new short[numSamples];
+        double phase = 0;
+        int i = 0;
+        while (i < numSamples) {
+            int type = random.nextInt(3);
+            int length = Math.min(numSamples - i, SAMPLE_RATE / 10 + random.nextInt(SAMPLE_RATE / 3));
+            double pitch = 90 + random.nextInt(150);
+            for (int j = 0; j < length; j++, i++) {
+                double envelope = Math.sin(Math.PI * j / length);
+                double value;
+                if (type == 0) {
+                    phase += 2 * Math.PI * (pitch + 20 * Math.sin(2 * Math.PI * j / length)) / SAMPLE_RATE;
+                    value = 0;
+                    for (int h = 1; h <= 8; h++) {
+                        value += Math.sin(h * phase) / h;
+                    }
+                    value = 6000 * envelope * value + 30 * random.nextGaussian();
+                } else if (type == 1) {
+                    value = 1500 * envelope * random.nextGaussian();
+                } else {
+                    value = 30 * random.nextGaussian();
+                }
+                samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+            }
+        }
+        return samples;
+    }
+
+    private static byte[] toPcm(short[] samples) {
+        byte[] pcm = new byte[2 * samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            pcm[2 * i] = (byte) samples[i];
+            pcm[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return pcm;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+
+    /**
+     * Decoder of mono 16-bit FLAC with constant, verbatim and fixed subframes, and Rice-coded residuals.
+     */
+    private static class Decoder {
+        private final byte[] mBytes;
+        private int mBitPosition;
+
+        Decoder(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        short[] decode() {
+            assertEquals(0x664C6143, readBits(32));
+            assertEquals(0x80, readBits(8));
+            assertEquals(34, readBits(24));
+            assertEquals(FlacEncoder.BLOCK_SIZE, readBits(16));
+            assertEquals(FlacEncoder.BLOCK_SIZE, readBits(16));
+            readBits(24);
+            readBits(24);
+            int sampleRate = readBits(20);
+            assertEquals(0, readBits(3));
+            assertEquals(15, readBits(5));
+            mBitPosition += 4 + 32 + 128;
+
+            short[] samples = new short[0];
+            int numSamples = 0;
+            long frameNumber = 0;
+            while (mBitPosition < 8 * mBytes.length) {
+                int start = mBitPosition / 8;
+                assertEquals(0xFFF8, readBits(16));
+                int blockSizeCode = readBits(4);
+                int sampleRateCode = readBits(4);
+                assertEquals(sampleRate == 16000 ? 5 : 0, sampleRateCode);
+                assertEquals(0x08, readBits(8));
+                assertEquals(frameNumber++, readUtf8());
+                int n;
+                if (blockSizeCode == 10) {
+                    n = 1024;
+                } else {
+                    assertEquals(7, blockSizeCode);
+                    n = readBits(16) + 1;
+                }
+                assertEquals(crc8(start, mBitPosition / 8), readBits(8));
+                if (numSamples + n > samples.length) {
+                    samples = Arrays.copyOf(samples, 2 * (numSamples + n));
+                }
+                readSubframe(samples, numSamples, n);
+                numSamples += n;
+                mBitPosition = (mBitPosition + 7) / 8 * 8;
+                assertEquals(crc16(start, mBitPosition / 8), readBits(16));
+            }
+            return Arrays.copyOf(samples, numSamples);
+        }
+
+        private void readSubframe(short[] samples, int offset, int n) {
+            int header = readBits(8);
+            int type = header >> 1;
+            if (type == 0) {
+                short value = (short) readBits(16);
+                Arrays.fill(samples, offset, offset + n, value);
+            } else if (type == 1) {
+                for (int i = 0; i < n; i++) {
+                    samples[offset + i] = (short) readBits(16);
+                }
+            } else {
+                assertEquals(8, type & ~7);
+                int order = type & 7;
+                int[] x = new int[n];
+                for (int i = 0; i < order; i++) {
+                    x[i] = (short) readBits(16);
+                }
+                assertEquals(0, readBits(2));
+                int partitionOrder = readBits(4);
+                int i = order;
+                for (int part = 0; part < (1 << partitionOrder); part++) {
+                    int k = readBits(4);
+                    int end = (part + 1) * (n >> partitionOrder);
+                    for (; i < end; i++) {
+                        int q = 0;
+                        while (readBits(1) == 0) {
+                            q++;
+                        }
+                        int u = (q << k) | (k > 0 ? readBits(k) : 0);
+                        x[i] = predict(x, i, order) + ((u >>> 1) ^ -(u & 1));
+                    }
+                }
+                for (int j = 0; j < n; j++) {
+                    assertEquals(x[j], (short) x[j]);
+                    samples[offset + j] = (short) x[j];
+                }
+            }
+        }
+
+        private static int predict(int[] x, int i, int order) {
+            switch (order) {
+                case 0:
+                    return 0;
+                case 1:
+                    return x[i - 1];
+                case 2:
+                    return 2 * x[i - 1] - x[i - 2];
+                case 3:
+                    return 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                default:
+                    return 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+            }
+        }
+
+        private long readUtf8() {
+            int first = readBits(8);
+            if (first < 0x80) {
+                return first;
+            }
+            int numBytes = Integer.numberOfLeadingZeros(~(first << 24));
+            long value = first & (0xFF >> (numBytes + 1));
+            for (int i = 1; i < numBytes; i++) {
+                int b = readBits(8);
+                assertEquals(0x80, b & 0xC0);
+                value = (value << 6) | (b & 0x3F);
+            }
+            return value;
+        }
+
+        private int readBits(int n) {
+            long value = 0;
+            for (int i = 0; i < n; i++) {
+                int b = mBytes[mBitPosition / 8] >> (7 - mBitPosition % 8) & 1;
+                value = (value << 1) | b;
+                mBitPosition++;
+            }
+            return (int) value;
+        }
+
+        private int crc8(int from, int to) {
+            int crc = 0;
+            for (int i = from; i < to; i++) {
+                crc ^= mBytes[i] & 0xFF;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+                }
+            }
+            return crc;
+        }
+
+        private int crc16(int from, int to) {
+            int crc = 0;
+            for (int i = from; i < to; i++) {
+                crc ^= (mBytes[i] & 0xFF) << 8;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xFFFF : (crc << 1) & 0xFFFF;
+                }
+            }
+            return crc;
+        }
+    }
+}
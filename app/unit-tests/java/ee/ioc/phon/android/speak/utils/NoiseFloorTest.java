@@ -0,0 +1,86 @@
+package ee.ioc.phon.android.speak.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NoiseFloorTest {
+
+    private static final long WINDOW = 2000;
+    private static final long STEP = 20;
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void ignoresDigitalSilence() {
+        NoiseFloor floor = new NoiseFloor(WINDOW, 6);
+        assertFalse(floor.update(0, 0));
+        assertFalse(floor.update(Double.NEGATIVE_INFINITY, STEP));
+        assertFalse(floor.update(Double.NaN, 2 * STEP));
+        assertTrue(Double.isNaN(floor.getFloor()));
+        assertTrue(floor.update(40, 3 * STEP));
+        assertFalse(floor.update(0, 4 * STEP));
+        assertEquals(40, floor.getFloor(), DELTA);
+    }
+
+    @Test
+    public void speechShorterThanWindowDoesNotRaiseTheFloor() {
+        NoiseFloor floor = new NoiseFloor(WINDOW, 6);
+        long time = update(floor, 40, 0, 500);
+        time = update(floor, 80, time, WINDOW * 3 / 4);
+        assertEquals(40, floor.getFloor(), DELTA);
+        assertTrue(floor.isWindowFull());
+    }
+
+    @Test
+    public void risesAfterANoiseStep() {
+        NoiseFloor floor = new NoiseFloor(WINDOW, 6);
+        long time = update(floor, 40, 0, 1000);
+        time = update(floor, 60, time, WINDOW / 2);
+        assertEquals(40, floor.getFloor(), 1);
+        update(floor, 60, time, WINDOW + STEP);
+        assertEquals(60, floor.getFloor(), DELTA);
+    }
+
+    @Test
+    public void recoversFromAQuietFrame() {
+        NoiseFloor floor = new NoiseFloor(WINDOW, 6);
+        long time = update(floor, 40, 0, 1000);
+        floor.update(10, time);
+        assertTrue(floor.getFloor() < 40);
+        update(floor, 40, time + STEP, WINDOW + STEP);
+        // The smoothed level approaches the level
+        assertEquals(40, floor.getFloor(), 0.01);
+    }
+
+    @Test
+    public void fallsAtOnce() {
+        NoiseFloor floor = new NoiseFloor(WINDOW, 6);
+        long time = update(floor, 60, 0, 1000);
+        update(floor, 40, time, 200);
+        assertEquals(40, floor.getFloor(), 0.1);
+    }
+
+    @Test
+    public void windowFullAfterItsLength() {
+        NoiseFloor floor = new NoiseFloor(WINDOW, 6);
+        long time = update(floor, 40, 0, WINDOW / 2);
+        assertFalse(floor.isWindowFull());
+        update(floor, 40, time, WINDOW / 2);
+        assertTrue(floor.isWindowFull());
+    }
+
+    /**
+     * Updates the floor with the given level every STEP ms for the given length.
+     *
+     * @return time after the last update
+     */
+    private static long update(NoiseFloor floor, double level, long start, long length) {
+        long time = start;
+        for (; time < start + length; time += STEP) {
+            floor.update(level, time);
+        }
+        return time;
+    }
+}
@@ -0,0 +1,62 @@
+package ee.ioc.phon.android.speak.utils;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RewriterCacheTest {
+
+    private static final String SERVICE = "ee.ioc.phon.android.speak/.service.WebSocketRecognitionService";
+    private static final String APP = "com.example.notes/.MainActivity";
+
+    @Test
+    public void keyDependsOnAllFields() {
+        String key = RewriterCache.makeKey("Commands", "et-EE", SERVICE, APP);
+        assertEquals(key, RewriterCache.makeKey("Commands", "et-EE", SERVICE, APP));
+        assertNotEquals(key, RewriterCache.makeKey("Commands2", "et-EE", SERVICE, APP));
+        assertNotEquals(key, RewriterCache.makeKey("Commands", "en-US", SERVICE, APP));
+        assertNotEquals(key, RewriterCache.makeKey("Commands", "et-EE", null, APP));
+        assertNotEquals(key, RewriterCache.makeKey("Commands", "et-EE", SERVICE, null));
+    }
+
+    /**
+     * The fields are separated, i.e. moving a boundary between them changes the key.
+     */
+    @Test
+    public void keyKeepsTheFieldsApart() {
+        assertNotEquals(RewriterCache.makeKey("ab", "c", SERVICE, APP), RewriterCache.makeKey("a", "bc", SERVICE, APP));
+        assertNotEquals(RewriterCache.makeKey("a", "b", null, APP), RewriterCache.makeKey("a", "b", APP, null));
+    }
+
+    @Test
+    public void lruEvictsTheEldest() {
+        Map<String, Integer> map = RewriterCache.newLruMap(2);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        assertEquals(2, map.size());
+        assertFalse(map.containsKey("a"));
+        assertTrue(map.containsKey("b"));
+        assertTrue(map.containsKey("c"));
+    }
+
+    @Test
+    public void lruKeepsTheRecentlyUsed() {
+        Map<String, Integer> map = RewriterCache.newLruMap(2);
+        map.put("a", 1);
+        map.put("b", 2);
+        assertEquals(Integer.valueOf(1), map.get("a"));
+        map.put("c", 3);
+        assertTrue(map.containsKey("a"));
+        assertFalse(map.containsKey("b"));
+        // Replacing an entry (e.g. the table has changed) does not grow the map
+        map.put("a", 4);
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(4), map.get("a"));
+    }
+}
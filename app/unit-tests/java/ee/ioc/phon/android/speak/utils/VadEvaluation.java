@@ -0,0 +1,213 @@
+package ee.ioc.phon.android.speak.utils;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a labelled WAV file (16-bit mono PCM) through the VoiceActivityDetector, and compares its
+ * decisions with the labels, frame by frame. The labels are in the Audacity format, i.e. a line
+ * "start\tend\tlabel" (in seconds) for each segment of speech. A frame is speech iff its middle is
+ * within a segment.
+ * <p>
+ * The detector runs without hangover, i.e. the errors are the errors of the frame decisions.
+ */
+class VadEvaluation {
+
+    private final int mNumSpeechFrames;
+    private final int mNumNonSpeechFrames;
+    private final int mNumMisses;
+    private final int mNumFalseAlarms;
+
+    private VadEvaluation(int numSpeechFrames, int numNonSpeechFrames, int numMisses, int numFalseAlarms) {
+        mNumSpeechFrames = numSpeechFrames;
+        mNumNonSpeechFrames = numNonSpeechFrames;
+        mNumMisses = numMisses;
+        mNumFalseAlarms = numFalseAlarms;
+    }
+
+    /**
+     * @param labels    labels of the WAV
+     * @param threshold threshold of the detector (in dB)
+     * @param from      time (in seconds) from which on the decisions are evaluated
+     */
+    static VadEvaluation evaluate(File wav, File labels, double threshold, double from) throws IOException {
+        int[] sampleRate = new int[1];
+        byte[] pcm = readWav(wav, sampleRate);
+        List<double[]> segments = readLabels(labels);
+        VoiceActivityDetector vad = new VoiceActivityDetector(sampleRate[0], threshold, 0);
+        int frameSize = vad.getFrameSize();
+        int numSpeechFrames = 0;
+        int numNonSpeechFrames = 0;
+        int numMisses = 0;
+        int numFalseAlarms = 0;
+        for (int offset = 0; offset + frameSize <= pcm.length; offset += frameSize) {
+            boolean isSpeech = vad.isSpeech(pcm, offset);
+            double middle = (offset + frameSize / 2.0) / 2 / sampleRate[0];
+            if (middle < from) {
+                continue;
+            }
+            if (isLabelled(segments, middle)) {
+                numSpeechFrames++;
+                if (!isSpeech) {
+                    numMisses++;
+                }
+            } else {
+                numNonSpeechFrames++;
+                if (isSpeech) {
+                    numFalseAlarms++;
+                }
+            }
+        }
+        return new VadEvaluation(numSpeechFrames, numNonSpeechFrames, numMisses, numFalseAlarms);
+    }
+
+    /**
+     * @return share of the speech frames that were not detected
+     */
+    double getMissRate() {
+        return mNumSpeechFrames == 0 ? 0 : (double) mNumMisses / mNumSpeechFrames;
+    }
+
+    /**
+     * @return share of the non-speech frames that were detected as speech
+     */
+    double getFalseAlarmRate() {
+        return mNumNonSpeechFrames == 0 ? 0 : (double) mNumFalseAlarms / mNumNonSpeechFrames;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("miss rate %.3f (of %d frames), false alarm rate %.3f (of %d frames)",
+                getMissRate(), mNumSpeechFrames, getFalseAlarmRate(), mNumNonSpeechFrames);
+    }
+
+    static void writeWav(File file, short[] samples, int sampleRate) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeBytes("RIFF");
+            writeInt(out, 36 + 2 * samples.length);
+            out.writeBytes("WAVEfmt ");
+            writeInt(out, 16);
+            writeShort(out, 1);
+            writeShort(out, 1);
+            writeInt(out, sampleRate);
+            writeInt(out, 2 * sampleRate);
+            writeShort(out, 2);
+            writeShort(out, 16);
+            out.writeBytes("data");
+            writeInt(out, 2 * samples.length);
+            for (short sample : samples) {
+                writeShort(out, sample);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static void writeLabels(File file, List<double[]> segments) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            for (double[] segment : segments) {
+                out.println(segment[0] + "\t" + segment[1] + "\tspeech");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return PCM of the data chunk (little-endian)
+     */
+    private static byte[] readWav(File file, int[] sampleRate) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] id = new byte[4];
+            in.readFully(id);
+            checkId(id, "RIFF");
+            readInt(in);
+            in.readFully(id);
+            checkId(id, "WAVE");
+            while (true) {
+                in.readFully(id);
+                int length = readInt(in);
+                if (new String(id, "US-ASCII").equals("fmt ")) {
+                    int format = readShort(in);
+                    int numChannels = readShort(in);
+                    sampleRate[0] = readInt(in);
+                    in.skipBytes(6);
+                    int bitsPerSample = readShort(in);
+                    if (format != 1 || numChannels != 1 || bitsPerSample != 16) {
+                        throw new IOException(file + ": not 16-bit mono PCM");
+                    }
+                    in.skipBytes(length - 16);
+                } else if (new String(id, "US-ASCII").equals("data")) {
+                    byte[] pcm = new byte[length];
+                    in.readFully(pcm);
+                    return pcm;
+                } else {
+                    in.skipBytes(length + (length & 1));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<double[]> readLabels(File file) throws IOException {
+        List<double[]> segments = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length >= 2) {
+                    segments.add(new double[]{Double.parseDouble(fields[0]), Double.parseDouble(fields[1])});
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return segments;
+    }
+
+    private static boolean isLabelled(List<double[]> segments, double time) {
+        for (double[] segment : segments) {
+            if (segment[0] <= time && time < segment[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void checkId(byte[] id, String expected) throws IOException {
+        if (!new String(id, "US-ASCII").equals(expected)) {
+            throw new IOException("Not a WAV file");
+        }
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static int readShort(DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort());
+    }
+
+    private static void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeInt(Integer.reverseBytes(value));
+    }
+
+    private static void writeShort(DataOutputStream out, int value) throws IOException {
+        out.writeShort(Short.reverseBytes((short) value));
+    }
+}
@@ -0,0 +1,184 @@
+package ee.ioc.phon.android.speak.utils;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays labelled WAVs through the detector (see VadEvaluation). The cases are synthesized here:
+ * voiced speech (harmonics of a gliding pitch) in pauses of Gaussian noise. A directory of recorded
+ * labelled WAVs can be given with -Dvad.corpus=DIR (each X.wav with its labels in X.txt), the results
+ * on these are reported but not checked.
+ */
+public class VoiceActivityDetectorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    // Default threshold of the settings
+    private static final double THRESHOLD = 9;
+    private static final double MAX_MISS_RATE = 0.1;
+    private static final double MAX_FALSE_ALARM_RATE = 0.05;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * The audio starts with digital silence (e.g. the muted start cue, or a microphone that starts up),
+     * which must not pull the noise floor down to zero.
+     */
+    @Test
+    public void leadingDigitalSilence() throws IOException {
+        Synthesizer synthesizer = new Synthesizer(1);
+        synthesizer.addZeros(1);
+        synthesizer.addNoise(100, 2);
+        synthesizer.addUtterance(100, 20);
+        VadEvaluation result = synthesizer.evaluate(0);
+        assertWithin(result);
+    }
+
+    /**
+     * The noise gets 20 dB louder. The noise after the step must not be speech once the noise floor
+     * window has passed.
+     */
+    @Test
+    public void noiseStep() throws IOException {
+        Synthesizer synthesizer = new Synthesizer(2);
+        synthesizer.addNoise(30, 2);
+        synthesizer.addUtterance(30, 8);
+        double step = synthesizer.getTime();
+        synthesizer.addNoise(300, 1);
+        synthesizer.addUtterance(300, 20);
+        VadEvaluation result = synthesizer.evaluate(step + 2.5);
+        assertWithin(result);
+    }
+
+    /**
+     * The noise gets 20 dB quieter, e.g. the fan is switched off.
+     */
+    @Test
+    public void noiseStepDown() throws IOException {
+        Synthesizer synthesizer = new Synthesizer(3);
+        synthesizer.addNoise(300, 2);
+        synthesizer.addUtterance(300, 8);
+        double step = synthesizer.getTime();
+        synthesizer.addNoise(30, 1);
+        synthesizer.addUtterance(30, 20);
+        VadEvaluation result = synthesizer.evaluate(step + 0.5);
+        assertWithin(result);
+    }
+
+    /**
+     * The audio starts with speech, i.e. the noise floor is first estimated from the speech.
+     */
+    @Test
+    public void leadingSpeech() throws IOException {
+        Synthesizer synthesizer = new Synthesizer(4);
+        synthesizer.addUtterance(100, 20);
+        VadEvaluation result = synthesizer.evaluate(0);
+        assertWithin(result);
+    }
+
+    @Test
+    public void corpus() throws IOException {
+        String corpus = System.getProperty("vad.corpus");
+        Assume.assumeTrue(corpus != null);
+        File[] files = new File(corpus).listFiles();
+        Assume.assumeTrue(files != null);
+        for (File wav : files) {
+            File labels = new File(wav.getPath().replaceFirst("\\.wav$", ".txt"));
+            if (wav.getName().endsWith(".wav") && labels.exists()) {
+                System.out.println(wav.getName() + ": " + VadEvaluation.evaluate(wav, labels, THRESHOLD, 0));
+            }
+        }
+    }
+
+    private static void assertWithin(VadEvaluation result) {
+        assertTrue(result.toString(), result.getMissRate() <= MAX_MISS_RATE);
+        assertTrue(result.toString(), result.getFalseAlarmRate() <= MAX_FALSE_ALARM_RATE);
+    }
+
+    /**
+     * Builds a labelled WAV.
+     */
+    private class Synthesizer {
+        private final Random mRandom;
+        private final List<Short> mSamples = new ArrayList<>();
+        private final List<double[]> mSegments = new ArrayList<>();
+        private double mPhase;
+
+        Synthesizer(long seed) {
+            mRandom = new Random(seed);
+        }
+
+        double getTime() {
+            return (double) mSamples.size() / SAMPLE_RATE;
+        }
+
+        void addZeros(double length) {
+            for (int i = 0; i < length * SAMPLE_RATE; i++) {
+                mSamples.add((short) 0);
+            }
+        }
+
+        void addNoise(double amplitude, double length) {
+            for (int i = 0; i < length * SAMPLE_RATE; i++) {
+                add(amplitude * mRandom.nextGaussian());
+            }
+        }
+
+        /**
+         * Adds words (0.2-1.2 s) and pauses (0.2-0.8 s) in the noise of the given amplitude.
+         */
+        void addUtterance(double noiseAmplitude, int numWords) {
+            for (int w = 0; w < numWords; w++) {
+                double start = getTime();
+                addVoiced(noiseAmplitude, 0.2 + mRandom.nextDouble());
+                mSegments.add(new double[]{start, getTime()});
+                addNoise(noiseAmplitude, 0.2 + 0.6 * mRandom.nextDouble());
+            }
+        }
+
+        VadEvaluation evaluate(double from) throws IOException {
+            short[] samples = new short[mSamples.size()];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = mSamples.get(i);
+            }
+            File wav = mFolder.newFile();
+            File labels = mFolder.newFile();
+            VadEvaluation.writeWav(wav, samples, SAMPLE_RATE);
+            VadEvaluation.writeLabels(labels, mSegments);
+            return VadEvaluation.evaluate(wav, labels, THRESHOLD, from);
+        }
+
+        /**
+         * Adds a vowel-like sound with 10 ms ramps, 30-40 dB above the noise.
+         */
+        private void addVoiced(double noiseAmplitude, double length) {
+            int numSamples = (int) (length * SAMPLE_RATE);
+            int ramp = SAMPLE_RATE / 100;
+            double amplitude = noiseAmplitude * (40 + 60 * mRandom.nextDouble());
+            double pitch = 90 + 150 * mRandom.nextDouble();
+            for (int i = 0; i < numSamples; i++) {
+                double envelope = Math.min(1, Math.min(i, numSamples - i) / (double) ramp);
+                mPhase += 2 * Math.PI * (pitch + 20 * Math.sin(2 * Math.PI * i / numSamples)) / SAMPLE_RATE;
+                double value = 0;
+                for (int h = 1; h <= 8; h++) {
+                    value += Math.sin(h * mPhase) / h;
+                }
+                add(amplitude * envelope * value / 2 + noiseAmplitude * mRandom.nextGaussian());
+            }
+        }
+
+        private void add(double value) {
+            mSamples.add((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value))));
+        }
+    }
+}